@@ -62,6 +62,7 @@ import com.igalia.wolvic.browser.engine.SessionStore;
 import com.igalia.wolvic.crashreporting.CrashReporterService;
 import com.igalia.wolvic.crashreporting.GlobalExceptionHandler;
 import com.igalia.wolvic.geolocation.GeolocationWrapper;
+import com.igalia.wolvic.input.ControllerInputQueue;
 import com.igalia.wolvic.input.MotionEventGenerator;
 import com.igalia.wolvic.search.SearchEngineWrapper;
 import com.igalia.wolvic.speech.SpeechRecognizer;
@@ -74,12 +75,14 @@ import com.igalia.wolvic.ui.widgets.KeyboardWidget;
 import com.igalia.wolvic.ui.widgets.NavigationBarWidget;
 import com.igalia.wolvic.ui.widgets.RootWidget;
 import com.igalia.wolvic.ui.widgets.TrayWidget;
+import com.igalia.wolvic.ui.widgets.UIRedrawScheduler;
 import com.igalia.wolvic.ui.widgets.UISurfaceTextureRenderer;
 import com.igalia.wolvic.ui.widgets.UIWidget;
 import com.igalia.wolvic.ui.widgets.WebXRInterstitialWidget;
 import com.igalia.wolvic.ui.widgets.Widget;
 import com.igalia.wolvic.ui.widgets.WidgetManagerDelegate;
 import com.igalia.wolvic.ui.widgets.WidgetPlacement;
+import com.igalia.wolvic.ui.widgets.WidgetPlacementBatch;
 import com.igalia.wolvic.ui.widgets.WindowWidget;
 import com.igalia.wolvic.ui.widgets.Windows;
 import com.igalia.wolvic.ui.widgets.dialogs.CrashDialogWidget;
@@ -102,14 +105,10 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 public class VRBrowserActivity extends PlatformActivity implements WidgetManagerDelegate,
@@ -194,7 +193,6 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
     static final int GestureSwipeRight = 1;
     static final int SwipeDelay = 1000; // milliseconds
     static final long RESET_CRASH_COUNT_DELAY = 5000;
-    static final int UPDATE_NATIVE_WIDGETS_DELAY = 50; // milliseconds
 
     // Passthrough was enabled on Pico version 5.7.1, via XR_FB_passthrough extension
     static final String kPicoVersionPassthroughUpdate = "5.7.1";
@@ -209,6 +207,9 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
     SwipeRunnable mLastRunnable;
     Handler mHandler = new Handler(Looper.getMainLooper());
     Runnable mAudioUpdateRunnable;
+    private final AtomicBoolean mAudioUpdatePending = new AtomicBoolean(false);
+    private ControllerInputQueue mInputQueue;
+    private float mDisplayDpiScale = 1.0f;
     Windows mWindows;
     RootWidget mRootWidget;
     KeyboardWidget mKeyboard;
@@ -238,9 +239,7 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
     private float mCurrentCylinderDensity = 0;
     private boolean mHideWebXRIntersitial = false;
     private FragmentController mFragmentController;
-    private LinkedHashMap<Integer, WidgetPlacement> mPendingNativeWidgetUpdates = new LinkedHashMap<>();
-    private ScheduledThreadPoolExecutor mPendingNativeWidgetUpdatesExecutor = new ScheduledThreadPoolExecutor(1);
-    private ScheduledFuture<?> mNativeWidgetUpdatesTask = null;
+    private final WidgetPlacementBatch mPlacementBatch = new WidgetPlacementBatch(this::updateWidgetNative, this::queueRunnable);
     private Media mPrevActiveMedia = null;
     private boolean mIsPassthroughEnabled = false;
     private long mLastBatteryUpdate = System.nanoTime();
@@ -347,10 +346,16 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
             Log.i(LOGTAG, "AudioEngine sounds preloaded!");
             // mAudioEngine.playSound(AudioEngine.Sound.AMBIENT, true);
         });
-        mAudioUpdateRunnable = () -> mAudioEngine.update();
+        mAudioUpdateRunnable = () -> {
+            mAudioUpdatePending.set(false);
+            mAudioEngine.update();
+        };
 
         mSettings = SettingsStore.getInstance(this);
         mSettings.initModel(this);
+        // Changing the display DPI restarts the activity.
+        mDisplayDpiScale = mSettings.getDisplayDpi() / 100.0f;
+        mInputQueue = new ControllerInputQueue(mInputConsumer);
 
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
         mPrefs.registerOnSharedPreferenceChangeListener(this);
@@ -403,6 +408,7 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
 
     protected void initializeWidgets() {
         UISurfaceTextureRenderer.setRenderActive(true);
+        UIRedrawScheduler.get().setFrameRequester(this::requestFrameCallbackNative);
 
         // Empty widget just for handling focus on empty space
         mRootWidget = new RootWidget(this);
@@ -615,6 +621,9 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
     @Override
     protected void onStop() {
         SettingsStore.getInstance(getBaseContext()).setPid(0);
+        if (mWindows != null) {
+            mWindows.saveStateNow();
+        }
         super.onStop();
         mFragmentController.dispatchStop();
         TelemetryService.sessionStop();
@@ -701,6 +710,7 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
 
         mFragmentController.dispatchDestroy();
 
+        UIRedrawScheduler.get().setFrameRequester(null);
         for (Widget widget: mWidgets.values()) {
             widget.releaseWidget();
         }
@@ -976,9 +986,9 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
             case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
             case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
             case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
-                // It looks like these come in all at the same time so just always suspend inactive Sessions.
-                Log.d(LOGTAG, "Memory pressure, suspending inactive sessions.");
-                SessionStore.get().suspendAllInactiveSessions();
+                // The suspension policy decides how many inactive sessions to suspend for each level.
+                Log.d(LOGTAG, "Memory pressure, level " + level + ", limiting inactive sessions.");
+                SessionStore.get().onTrimMemory(level);
                 break;
             default:
                 Log.e(LOGTAG, "onTrimMemory unknown level: " + level);
@@ -1148,7 +1158,18 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
     @Keep
     @SuppressWarnings("unused")
     void handleMotionEvent(final int aHandle, final int aDevice, final boolean aFocused, final boolean aPressed, final float aX, final float aY) {
-        runOnUiThread(() -> {
+        mInputQueue.addMotionEvent(aHandle, aDevice, aFocused, aPressed, aX, aY);
+    }
+
+    @Keep
+    @SuppressWarnings("unused")
+    void handleScrollEvent(final int aHandle, final int aDevice, final float aX, final float aY) {
+        mInputQueue.addScrollEvent(aHandle, aDevice, aX, aY);
+    }
+
+    private final ControllerInputQueue.Consumer mInputConsumer = new ControllerInputQueue.Consumer() {
+        @Override
+        public void onMotionEvent(int aHandle, int aDevice, boolean aFocused, boolean aPressed, float aX, float aY) {
             Widget widget = mWidgets.get(aHandle);
 
             if (!isWidgetInputEnabled(widget)) {
@@ -1156,7 +1177,7 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
             }
             mLastMotionEventWidgetHandle = widget != null ? widget.getHandle() : 0;
 
-            float scale = widget != null ? widget.getPlacement().textureScale : SettingsStore.getInstance(this).getDisplayDpi() / 100.0f;
+            float scale = widget != null ? widget.getPlacement().textureScale : mDisplayDpiScale;
             // We shouldn't divide the scale factor when we pass the motion event to the web engine
             if (widget instanceof WindowWidget) {
                 WindowWidget windowWidget = (WindowWidget) widget;
@@ -1168,22 +1189,19 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
             final float y = aY / scale;
 
             if (widget == null) {
-                MotionEventGenerator.dispatch(this, mRootWidget, aDevice, aFocused, aPressed, x, y);
+                MotionEventGenerator.dispatch(VRBrowserActivity.this, mRootWidget, aDevice, aFocused, aPressed, x, y);
 
             } else if (widget.getBorderWidth() > 0) {
                 final int border = widget.getBorderWidth();
-                MotionEventGenerator.dispatch(this, widget, aDevice, aFocused, aPressed, x - border, y - border);
+                MotionEventGenerator.dispatch(VRBrowserActivity.this, widget, aDevice, aFocused, aPressed, x - border, y - border);
 
             } else {
-                MotionEventGenerator.dispatch(this, widget, aDevice, aFocused, aPressed, x, y);
+                MotionEventGenerator.dispatch(VRBrowserActivity.this, widget, aDevice, aFocused, aPressed, x, y);
             }
-        });
-    }
+        }
 
-    @Keep
-    @SuppressWarnings("unused")
-    void handleScrollEvent(final int aHandle, final int aDevice, final float aX, final float aY) {
-        runOnUiThread(() -> {
+        @Override
+        public void onScrollEvent(int aHandle, int aDevice, float aX, float aY) {
             Widget widget = mWidgets.get(aHandle);
             if (!isWidgetInputEnabled(widget)) {
                 return;
@@ -1198,8 +1216,13 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
             }
             float scrollDirection = mSettings.getScrollDirection() == 0 ? 1.0f : -1.0f;
             MotionEventGenerator.dispatchScroll(widget, aDevice, true,aX * scrollDirection, aY * scrollDirection);
-        });
-    }
+        }
+
+        @Override
+        public void onSamplesDrained() {
+            MotionEventGenerator.flush();
+        }
+    };
 
     @Keep
     @SuppressWarnings("unused")
@@ -1260,7 +1283,10 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
 
         // https://developers.google.com/vr/reference/android/com/google/vr/sdk/audio/GvrAudioEngine.html#resume()
         // The initialize method must be called from the main thread at a regular rate.
-        runOnUiThread(mAudioUpdateRunnable);
+        // Skip the frames whose update has not run yet, instead of queueing one per frame.
+        if (mAudioUpdatePending.compareAndSet(false, true)) {
+            runOnUiThread(mAudioUpdateRunnable);
+        }
     }
 
     @Keep
@@ -1599,6 +1625,12 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
     @SuppressWarnings("unused")
     private void setEyeTrackingSupported(final boolean isSupported) { mIsEyeTrackingSupported = isSupported; }
 
+    @Keep
+    @SuppressWarnings("unused")
+    private void onCompositorFrame() {
+        UIRedrawScheduler.get().onCompositorFrame();
+    }
+
     private SurfaceTexture createSurfaceTexture() {
         int[] ids = new int[1];
         GLES20.glGenTextures(1, ids, 0);
@@ -1672,32 +1704,23 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
         ((View)aWidget).setVisibility(aWidget.getPlacement().visible ? View.VISIBLE : View.GONE);
         final int handle = aWidget.getHandle();
         final WidgetPlacement clone = aWidget.getPlacement().clone();
-        queueRunnable(() -> addWidgetNative(handle, clone));
+        mPlacementBatch.close();
+        queueRunnable(() -> {
+            addWidgetNative(handle, clone);
+            mPlacementBatch.reset(handle);
+        });
         updateActiveDialog(aWidget);
     }
 
-    private void enqueueUpdateWidgetNativeCall(int handle, WidgetPlacement placement) {
-        mPendingNativeWidgetUpdates.put(handle, placement);
-
-        if (mNativeWidgetUpdatesTask == null || mNativeWidgetUpdatesTask.isDone()) {
-            mNativeWidgetUpdatesTask = mPendingNativeWidgetUpdatesExecutor.schedule(() -> {
-                for (Map.Entry<Integer, WidgetPlacement> entry : mPendingNativeWidgetUpdates.entrySet()) {
-                    queueRunnable(() -> updateWidgetNative(entry.getKey(), entry.getValue()));
-                }
-                mPendingNativeWidgetUpdates.clear();
-            }, UPDATE_NATIVE_WIDGETS_DELAY, TimeUnit.MILLISECONDS);
-        }
-    }
-
     @Override
     public void updateWidget(final Widget aWidget) {
         if (aWidget == null) {
             return;
         }
-        // Enqueue widget update calls in order to batch updates on the same widget. If a widget
-        // updates several times in a short period of time, it's enough to call the native
-        // method just once. This effectively reduces the amount of XR layer creation/destruction.
-        enqueueUpdateWidgetNativeCall(aWidget.getHandle(), aWidget.getPlacement().clone());
+        // Batch the updates until the next frame. If a widget updates several times before it,
+        // it's enough to call the native method just once, and not at all if nothing changed.
+        // This effectively reduces the amount of XR layer creation/destruction.
+        mPlacementBatch.update(aWidget.getHandle(), aWidget.getPlacement());
 
         final int textureWidth = aWidget.getPlacement().textureWidth();
         final int textureHeight = aWidget.getPlacement().textureHeight();
@@ -1743,7 +1766,12 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
         mWidgets.remove(aWidget.getHandle());
         mWidgetContainer.removeView((View) aWidget);
         aWidget.setFirstPaintReady(false);
-        queueRunnable(() -> removeWidgetNative(aWidget.getHandle()));
+        mPlacementBatch.discard(aWidget.getHandle());
+        mPlacementBatch.close();
+        queueRunnable(() -> {
+            removeWidgetNative(aWidget.getHandle());
+            mPlacementBatch.reset(aWidget.getHandle());
+        });
         if (aWidget == mActiveDialog) {
             mActiveDialog = null;
         }
@@ -1765,7 +1793,11 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
 
     @Override
     public void recreateWidgetSurface(Widget aWidget) {
-        queueRunnable(() -> recreateWidgetSurfaceNative(aWidget.getHandle()));
+        mPlacementBatch.close();
+        queueRunnable(() -> {
+            recreateWidgetSurfaceNative(aWidget.getHandle());
+            mPlacementBatch.reset(aWidget.getHandle());
+        });
     }
 
     @Override
@@ -2141,6 +2173,11 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
         mWindows.saveState();
     }
 
+    @Override
+    public void saveStateNow() {
+        mWindows.saveStateNow();
+    }
+
     @Override
     public void updateLocale(@NonNull Context context) {
         onConfigurationChanged(context.getResources().getConfiguration());
@@ -2230,4 +2267,5 @@ public class VRBrowserActivity extends PlatformActivity implements WidgetManager
     private native void setWebXRIntersitialStateNative(@WebXRInterstitialState int aState);
     private native void setIsServo(boolean aIsServo);
     private native void setPointerModeNative(@PointerMode int aMode);
+    private native void requestFrameCallbackNative();
 }
@@ -12,7 +12,11 @@ import androidx.lifecycle.ProcessLifecycleOwner
 import com.igalia.wolvic.VRBrowserApplication
 import com.igalia.wolvic.utils.SystemUtils
 import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.future.future
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import mozilla.components.concept.storage.*
 import mozilla.components.service.fxa.sync.SyncStatusObserver
 import mozilla.components.support.base.log.logger.Logger
@@ -27,7 +31,41 @@ class HistoryStore constructor(val context: Context) {
     private var listeners = ArrayList<HistoryListener>()
     private var storage = (context.applicationContext as VRBrowserApplication).places.history
 
+    private class PendingVisit(val url: String, val visit: PageVisit, val time: Long)
+
+    private class PendingWrites {
+        val visits = ArrayList<PendingVisit>()
+        val observations = LinkedHashMap<String, PageObservation>()
+        val result = CompletableFuture<Unit>()
+
+        /**
+         * Drops the visits matching a delete, and the observations of their URLs unless other
+         * visits of the same URL are kept.
+         */
+        fun dropVisits(predicate: (PendingVisit) -> Boolean) {
+            val dropped = HashSet<String>()
+            visits.removeIf { visit -> predicate(visit).also { if (it) dropped.add(visit.url) } }
+            visits.forEach { visit -> dropped.remove(visit.url) }
+            dropped.forEach { url -> observations.remove(url) }
+        }
+    }
+
+    private val writesLock = Any()
+    private var pendingWrites: PendingWrites? = null
+    // Serializes the batched writes with the deletes and the reads that must see them.
+    private val storageMutex = Mutex()
+
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val notifyListenersRunnable = Runnable {
+        for (listener in ArrayList(listeners)) {
+            listener.onHistoryUpdated()
+        }
+    }
+
     companion object {
+        private const val WRITE_BATCH_DELAY_MS = 500L
+        private const val NOTIFY_DELAY_MS = 100L
+
         @JvmStatic
         val BLOCK_LIST: MutableList<String> = Stream.of(
                 "https://accounts.firefox.com/authorization",
@@ -78,6 +116,7 @@ class HistoryStore constructor(val context: Context) {
     }
 
     fun getHistory(): CompletableFuture<List<String>?> = GlobalScope.future {
+        writePendingWrites()
         storage.getVisited()
     }
 
@@ -101,54 +140,135 @@ class HistoryStore constructor(val context: Context) {
                 VisitType.REDIRECT_PERMANENT))
     }
 
-    fun recordVisit(aURL: String, pageVisit: PageVisit) = GlobalScope.future {
-        if(BLOCK_LIST.stream().noneMatch {
-                    aURL.startsWith(it)
-                }) {
-            storage.recordVisit(aURL, pageVisit)
-            notifyListeners()
+    fun recordVisit(aURL: String, pageVisit: PageVisit): CompletableFuture<Unit> = enqueueWrite(aURL) { batch ->
+        if (batch.visits.none { it.url == aURL && it.visit == pageVisit }) {
+            batch.visits.add(PendingVisit(aURL, pageVisit, System.currentTimeMillis()))
+        }
+    }
+
+    fun recordObservation(aURL: String, observation: PageObservation): CompletableFuture<Unit> = enqueueWrite(aURL) { batch ->
+        val previous = batch.observations[aURL]
+        batch.observations[aURL] = if (previous == null) observation else PageObservation(
+                observation.title ?: previous.title,
+                observation.previewImageUrl ?: previous.previewImageUrl)
+    }
+
+    private fun isBlocked(aURL: String): Boolean {
+        for (prefix in BLOCK_LIST) {
+            if (aURL.startsWith(prefix)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Adds a write to the current batch, starting a new one if needed. The batch is written
+     * [WRITE_BATCH_DELAY_MS] after its first write, so the several visits and observations
+     * recorded during a page load end up in a single pass over the storage.
+     */
+    private fun enqueueWrite(aURL: String, add: (PendingWrites) -> Unit): CompletableFuture<Unit> {
+        if (isBlocked(aURL)) {
+            return CompletableFuture.completedFuture(Unit)
+        }
+        synchronized(writesLock) {
+            var batch = pendingWrites
+            if (batch == null) {
+                batch = PendingWrites()
+                pendingWrites = batch
+                GlobalScope.launch {
+                    delay(WRITE_BATCH_DELAY_MS)
+                    flushWrites()
+                }
+            }
+            add(batch)
+            return batch.result
         }
     }
 
-    fun recordObservation(aURL: String, observation: PageObservation) = GlobalScope.future {
-        if(BLOCK_LIST.stream().noneMatch {
-                    aURL.startsWith(it)
-                }) {
-            storage.recordObservation(aURL, observation)
+    private suspend fun flushWrites() {
+        if (writePendingWrites()) {
             notifyListeners()
         }
     }
 
-    fun deleteHistory(aUrl: String, timestamp: Long) = GlobalScope.future {
-        storage.deleteVisit(aUrl, timestamp)
+    /**
+     * Writes the current batch now, if any.
+     *
+     * @return true if there was a batch to write.
+     */
+    private suspend fun writePendingWrites(): Boolean = storageMutex.withLock {
+        writePendingWritesLocked()
+    }
+
+    private suspend fun writePendingWritesLocked(): Boolean {
+        // The batch is taken while holding the mutex, so it is written before any later delete.
+        val batch = synchronized(writesLock) {
+            val pending = pendingWrites
+            pendingWrites = null
+            pending
+        } ?: return false
+
+        try {
+            // Visits first, so the observations are applied to existing pages.
+            for (pending in batch.visits) {
+                storage.recordVisit(pending.url, pending.visit)
+            }
+            for ((url, observation) in batch.observations) {
+                storage.recordObservation(url, observation)
+            }
+            batch.result.complete(Unit)
+        } catch (e: Exception) {
+            Logger(LOGTAG).error("Error writing history", e)
+            batch.result.completeExceptionally(e)
+        }
+        return true
+    }
+
+    /**
+     * Runs a delete in the storage after dropping the matching visits of the current batch, so
+     * they are not written afterwards. It holds the storage mutex, so a batch already being
+     * written is written before the delete.
+     *
+     * @param matches Whether a visit not written yet is deleted too.
+     */
+    private fun deleteVisits(matches: (PendingVisit) -> Boolean, delete: suspend () -> Unit): CompletableFuture<Unit> = GlobalScope.future {
+        storageMutex.withLock {
+            synchronized(writesLock) {
+                pendingWrites?.dropVisits(matches)
+            }
+            delete()
+        }
         notifyListeners()
     }
 
-    fun deleteVisitsFor(aUrl: String) = GlobalScope.future {
+    fun deleteHistory(aUrl: String, timestamp: Long) = deleteVisits({ it.url == aUrl && it.time == timestamp }) {
+        storage.deleteVisit(aUrl, timestamp)
+    }
+
+    fun deleteVisitsFor(aUrl: String) = deleteVisits({ it.url == aUrl }) {
         storage.deleteVisitsFor(aUrl)
-        notifyListeners()
     }
 
-    fun deleteEverything() = GlobalScope.future {
+    fun deleteEverything() = deleteVisits({ true }) {
         storage.deleteEverything()
-        notifyListeners()
     }
 
-    fun deleteVisitsSince(since: Long) = GlobalScope.future {
+    fun deleteVisitsSince(since: Long) = deleteVisits({ it.time >= since }) {
         storage.deleteVisitsSince(since)
-        notifyListeners()
     }
 
-    fun deleteVisitsBetween(startTime: Long, endTime: Long) = GlobalScope.future {
+    fun deleteVisitsBetween(startTime: Long, endTime: Long) = deleteVisits({ it.time in startTime..endTime }) {
         storage.deleteVisitsBetween(startTime, endTime)
-        notifyListeners()
     }
 
     fun getVisited(uris: List<String>) = GlobalScope.future {
+        writePendingWrites()
         storage.getVisited(uris)
     }
 
     fun isInHistory(aURL: String): CompletableFuture<Boolean> = GlobalScope.future {
+        writePendingWrites()
         var result = storage.getVisited(listOf(aURL))
         result.isNotEmpty() && result[0]
     }
@@ -157,15 +277,10 @@ class HistoryStore constructor(val context: Context) {
         storage.getSuggestions(query, limit)
     }
 
+    // Debounced, so a burst of changes results in a single update of the listeners.
     private fun notifyListeners() {
-        if (listeners.size > 0) {
-            val listenersCopy = ArrayList(listeners)
-            Handler(Looper.getMainLooper()).post {
-                for (listener in listenersCopy) {
-                    listener.onHistoryUpdated()
-                }
-            }
-        }
+        mainHandler.removeCallbacks(notifyListenersRunnable)
+        mainHandler.postDelayed(notifyListenersRunnable, NOTIFY_DELAY_MS)
     }
 }
 
@@ -9,7 +9,6 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.lifecycle.Observer;
 
 import com.igalia.wolvic.PlatformActivity;
 import com.igalia.wolvic.R;
@@ -19,6 +18,7 @@ import com.igalia.wolvic.browser.engine.Session;
 import com.igalia.wolvic.browser.engine.SessionState;
 import com.igalia.wolvic.browser.engine.SessionStore;
 import com.igalia.wolvic.db.SitePermission;
+import com.igalia.wolvic.db.SitePermissionIndex;
 import com.igalia.wolvic.ui.viewmodel.SitePermissionViewModel;
 import com.igalia.wolvic.ui.widgets.WidgetManagerDelegate;
 import com.igalia.wolvic.ui.widgets.WindowWidget;
@@ -29,7 +29,6 @@ import com.igalia.wolvic.utils.UrlUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 public class PermissionDelegate implements WSession.PermissionDelegate, WidgetManagerDelegate.PermissionListener {
 
@@ -42,7 +41,7 @@ public class PermissionDelegate implements WSession.PermissionDelegate, WidgetMa
     private WSession.PermissionDelegate.Callback mCallback;
     private PermissionWidget mPermissionWidget;
     private SitePermissionViewModel mSitePermissionModel;
-    private List<SitePermission> mSitePermissions;
+    private SitePermissionIndex mSitePermissions;
 
     public interface PlatformLocationOverride {
         void onLocationGranted(Session session);
@@ -55,7 +54,7 @@ public class PermissionDelegate implements WSession.PermissionDelegate, WidgetMa
         mWidgetManager.addPermissionListener(this);
         SessionStore.get().setPermissionDelegate(this);
         mSitePermissionModel = new SitePermissionViewModel((Application)aContext.getApplicationContext());
-        mSitePermissionModel.getAll().observeForever(mSitePermissionObserver);
+        mSitePermissions = mSitePermissionModel.getIndex();
     }
 
     public void setParentWidgetHandle(int aHandle) {
@@ -100,27 +99,19 @@ public class PermissionDelegate implements WSession.PermissionDelegate, WidgetMa
         }
 
         final String domain = UrlUtils.getHost(aUri);
-        if (mSitePermissions != null) {
-            SitePermission site = mSitePermissions.stream()
-                    .filter(sitePermission -> sitePermission.category == toSitePermission(aType) && sitePermission.url.equalsIgnoreCase(domain))
-                    .findFirst().orElse(null);
-            if (site != null) {
-                Log.d(LOGTAG, "Permission " + aType + " already " + (site.allowed ? "granted" : "denied") + " for " + aUri);
-                if (site.allowed)
-                    aCallback.grant();
-                else
-                    aCallback.reject();
-                return;
-            }
+        SitePermission site = mSitePermissions.get(domain, toSitePermission(aType));
+        if (site != null) {
+            Log.d(LOGTAG, "Permission " + aType + " already " + (site.allowed ? "granted" : "denied") + " for " + aUri);
+            if (site.allowed)
+                aCallback.grant();
+            else
+                aCallback.reject();
+            return;
         }
 
         mPermissionWidget.showWebsitePermissionsPrompt(aUri, aType, aCallback);
     }
 
-    private Observer<List<SitePermission>> mSitePermissionObserver = sites -> {
-        mSitePermissions = sites;
-    };
-
     WResult<Integer> handleWebXRPermission(WSession aSession, ContentPermission perm) {
         Session session = SessionStore.get().getSession(aSession);
         if (session == null || !SettingsStore.getInstance(mContext).isWebXREnabled()) {
@@ -128,13 +119,7 @@ public class PermissionDelegate implements WSession.PermissionDelegate, WidgetMa
         }
         final String domain = UrlUtils.getHost(perm.uri);
 
-        @Nullable SitePermission site = null;
-        if (mSitePermissions != null) {
-            site = mSitePermissions.stream()
-                    .filter(sitePermission -> sitePermission.category == SitePermission.SITE_PERMISSION_WEBXR &&
-                            sitePermission.url.equalsIgnoreCase(domain))
-                    .findFirst().orElse(null);
-        }
+        @Nullable SitePermission site = mSitePermissions.get(domain, SitePermission.SITE_PERMISSION_WEBXR);
 
         if (site == null) {
             session.setWebXRState(SessionState.WEBXR_ALLOWED);
@@ -146,7 +131,6 @@ public class PermissionDelegate implements WSession.PermissionDelegate, WidgetMa
     }
 
     public void release() {
-        mSitePermissionModel.getAll().removeObserver(mSitePermissionObserver);
         mWidgetManager.removePermissionListener(this);
         SessionStore.get().setPermissionDelegate(null);
         mCallback = null;
@@ -272,10 +256,7 @@ public class PermissionDelegate implements WSession.PermissionDelegate, WidgetMa
                     return;
 
                 final String domain = UrlUtils.getHost(perm.uri);
-                SitePermission site = mSitePermissions.stream()
-                        .filter(sitePermission -> sitePermission.category == sitePermissionCategory && sitePermission.url.equalsIgnoreCase(domain))
-                        .findFirst().orElse(null);
-                if (site != null)
+                if (mSitePermissions.contains(domain, sitePermissionCategory))
                     return;
                 Log.d(LOGTAG, "Adding permission exception " + allowed + " for " + perm.uri + " for permission " + type);
                 addPermissionException(UrlUtils.getHost(perm.uri), sitePermissionCategory, allowed);
@@ -394,13 +375,10 @@ public class PermissionDelegate implements WSession.PermissionDelegate, WidgetMa
     }
     public void addPermissionException(@NonNull String uri, @SitePermission.Category int category, boolean allowed) {
         assert category != SitePermission.SITE_PERMISSION_NONE;
-        @Nullable SitePermission site = mSitePermissions.stream()
-                .filter((item) -> item.category == category && item.url.equals(uri))
-                .findFirst().orElse(null);
+        @Nullable SitePermission site = mSitePermissions.get(uri, category);
 
         if (site == null) {
             site = new SitePermission(uri, "", category);
-            mSitePermissions.add(site);
         }
         site.allowed = allowed;
         mSitePermissionModel.insertSite(site);
@@ -417,11 +395,7 @@ public class PermissionDelegate implements WSession.PermissionDelegate, WidgetMa
 
     public void removePermissionException(String uri, @SitePermission.Category int category) {
         assert category != SitePermission.SITE_PERMISSION_NONE;
-        @Nullable SitePermission site = mSitePermissions.stream()
-                .filter((item) -> item.category == category && item.url.equals(uri))
-                .findFirst().orElse(null);
-
-        mSitePermissions.removeIf(sitePermission -> sitePermission.url.equals(uri));
+        @Nullable SitePermission site = mSitePermissions.get(uri, category);
         if (site != null) {
             mSitePermissionModel.deleteSite(site);
         }
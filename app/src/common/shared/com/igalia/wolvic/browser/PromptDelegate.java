@@ -6,7 +6,6 @@ import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.lifecycle.Observer;
 
 import com.igalia.wolvic.R;
 import com.igalia.wolvic.browser.api.WAllowOrDeny;
@@ -19,6 +18,7 @@ import com.igalia.wolvic.browser.engine.Session;
 import com.igalia.wolvic.browser.engine.SessionState;
 import com.igalia.wolvic.browser.engine.SessionStore;
 import com.igalia.wolvic.db.SitePermission;
+import com.igalia.wolvic.db.SitePermissionIndex;
 import com.igalia.wolvic.ui.viewmodel.SitePermissionViewModel;
 import com.igalia.wolvic.ui.widgets.UIWidget;
 import com.igalia.wolvic.ui.widgets.WidgetManagerDelegate;
@@ -39,7 +39,6 @@ import com.igalia.wolvic.ui.widgets.settings.SettingsView;
 import com.igalia.wolvic.utils.StringUtils;
 import com.igalia.wolvic.utils.UrlUtils;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -56,9 +55,7 @@ public class PromptDelegate implements
     private ConfirmPromptWidget mSlowScriptPrompt;
     private Context mContext;
     private WindowWidget mAttachedWindow;
-    private List<SitePermission> mAllowedPopUpSites;
-    private List<SitePermission> mSavedLoginBlockedSites;
-    private SitePermissionViewModel mViewModel;
+    private SitePermissionIndex mSitePermissions;
     private WidgetManagerDelegate mWidgetManager;
     private SaveLoginPromptWidget mSaveLoginPrompt;
     private SelectLoginPromptWidget mSelectLoginPrompt;
@@ -66,9 +63,7 @@ public class PromptDelegate implements
     public PromptDelegate(@NonNull Context context) {
         mContext = context;
         mWidgetManager = (WidgetManagerDelegate) mContext;
-        mViewModel = new SitePermissionViewModel(((Application)context.getApplicationContext()));
-        mAllowedPopUpSites = new ArrayList<>();
-        mSavedLoginBlockedSites = new ArrayList<>();
+        mSitePermissions = new SitePermissionViewModel(((Application)context.getApplicationContext())).getIndex();
         mSaveLoginPrompt = null;
         mSelectLoginPrompt = null;
     }
@@ -81,8 +76,6 @@ public class PromptDelegate implements
 
         mAttachedWindow = window;
         mAttachedWindow.addWindowListener(this);
-        mViewModel.getAll(SitePermission.SITE_PERMISSION_POPUP).observeForever(mPopUpSiteObserver);
-        mViewModel.getAll(SitePermission.SITE_PERMISSION_AUTOFILL).observeForever(mSavedLoginExceptionsObserver);
 
         if (getSession() != null) {
             setUpSession(getSession());
@@ -98,8 +91,6 @@ public class PromptDelegate implements
             mAttachedWindow.removeWindowListener(this);
             mAttachedWindow = null;
         }
-        mViewModel.getAll(SitePermission.SITE_PERMISSION_POPUP).removeObserver(mPopUpSiteObserver);
-        mViewModel.getAll(SitePermission.SITE_PERMISSION_AUTOFILL).removeObserver(mSavedLoginExceptionsObserver);
     }
 
     private Session getSession() {
@@ -339,14 +330,6 @@ public class PromptDelegate implements
         return result;
     }
 
-    private Observer<List<SitePermission>> mPopUpSiteObserver = sites -> {
-        mAllowedPopUpSites = sites;
-    };
-
-    private Observer<List<SitePermission>> mSavedLoginExceptionsObserver = sites -> {
-        mSavedLoginBlockedSites = sites;
-    };
-
     @Nullable
     @Override
     public WResult<PromptResponse> onPopupPrompt(@NonNull WSession aSession, @NonNull PopupPrompt popupPrompt) {
@@ -359,8 +342,7 @@ public class PromptDelegate implements
             Session session = mAttachedWindow.getSession();
             if (session != null) {
                 final String uri = UrlUtils.getHost(session.getCurrentUri());
-                SitePermission site = mAllowedPopUpSites.stream().filter((item) -> UrlUtils.getHost(item.url).equals(uri)).findFirst().orElse(null);
-                if (site != null) {
+                if (mSitePermissions.contains(uri, SitePermission.SITE_PERMISSION_POPUP)) {
                     result.complete(popupPrompt.confirm(WAllowOrDeny.ALLOW));
                     session.setPopUpState(SessionState.POPUP_ALLOWED);
                 } else {
@@ -393,7 +375,7 @@ public class PromptDelegate implements
         // We always get at least one item, at the moment only one item is support.
         if (autocompleteRequest.options().length > 0 && SettingsStore.getInstance(mContext).isLoginAutocompleteEnabled()) {
             WAutocomplete.LoginSaveOption saveOption = autocompleteRequest.options()[0];
-            boolean originHasException = mSavedLoginBlockedSites.stream().anyMatch(site -> site.url.equals(saveOption.value.origin));
+            boolean originHasException = mSitePermissions.contains(saveOption.value.origin, SitePermission.SITE_PERMISSION_AUTOFILL);
             if (originHasException || !SettingsStore.getInstance(mContext).isLoginAutocompleteEnabled()) {
                 result.complete(autocompleteRequest.dismiss());
 
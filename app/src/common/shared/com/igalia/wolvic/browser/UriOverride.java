@@ -1,9 +1,11 @@
 package com.igalia.wolvic.browser;
 
 import android.app.Activity;
-import android.text.TextUtils;
-import android.util.ArrayMap;
 import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.igalia.wolvic.utils.SystemUtils;
 
@@ -12,24 +14,44 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
-
+import java.util.Locale;
+
+/**
+ * Maps hosts to the overrides listed in a JSON asset, keyed by the SHA-512 hash of a domain.
+ * <p>
+ * The keys are decoded into digests once when the file is loaded. A lookup hashes the suffixes
+ * of the host in place, from the full host down to its last label, and returns the override of
+ * the most specific one found. Results are kept in a bounded cache of recently seen hosts.
+ */
 public class UriOverride {
     private final static String LOGTAG = SystemUtils.createLogtag(UriOverride.class);
     private static final String NO_OVERRIDE_FOUND = "NO OVERRIDE FOUND";
-    private ArrayMap<String, String> mOverrideMap;
-    private ArrayMap<String, String> mOverrideCache;
-    private String mOverrideName;
+    private static final int MAX_CACHED_HOSTS = 128;
+    private static final int DIGEST_LENGTH = 64;
+
+    private final HashMap<ByteBuffer, String> mOverrideMap;
+    private final LruCache<String, String> mOverrideCache;
+    private final String mOverrideName;
+    private MessageDigest mDigest;
+    private final byte[] mDigestBuffer = new byte[DIGEST_LENGTH];
+    private final ByteBuffer mDigestKey = ByteBuffer.wrap(mDigestBuffer);
+
     public UriOverride(String name) {
-        mOverrideMap = new ArrayMap<>();
-        mOverrideCache = new ArrayMap<>();
+        mOverrideMap = new HashMap<>();
+        mOverrideCache = new LruCache<>(MAX_CACHED_HOSTS);
         mOverrideName = name;
+        try {
+            mDigest = MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(LOGTAG, "Error while trying to hash domains: " + e.getMessage());
+        }
     }
 
     public void loadOverridesFromAssets(Activity aActivity, String aFileName) {
@@ -46,91 +68,107 @@ public class UriOverride {
         }
     }
 
-    public String lookupOverride(final String aUri) {
-        if (aUri == null) {
+    public synchronized String lookupOverride(final String aUri) {
+        if (aUri == null || mDigest == null) {
             return null;
         }
-        Log.d(LOGTAG, "lookupOverride for: " + aUri);
-        URI uri;
-        try {
-            uri = new URI(aUri);
-        } catch (URISyntaxException e) {
-            Log.d(LOGTAG, "Error parsing URL: " + aUri + " " + e.getMessage());
+        String host = getHost(aUri);
+        if (host == null) {
             return null;
         }
-        String fullDomain = uri.getHost();
-        if (fullDomain == null) {
-            return null;
-        }
-
-        fullDomain = fullDomain.toLowerCase();
-
-        String override = mOverrideCache.get(fullDomain);
 
+        String override = mOverrideCache.get(host);
         if (override != null) {
-            Log.d(LOGTAG, "Found override: " + override);
             return override.equals(NO_OVERRIDE_FOUND) ? null : override;
         }
 
-        List<String> domains = Arrays.asList(fullDomain.split("\\."));
-        final int domainCount = domains.size();
-        String[] checkedDomains = new String[domainCount];
-
-        for (int ix = 0; ix < domainCount; ix++) {
-            String domain = TextUtils.join(".", domains.subList(ix, domainCount));
-            checkedDomains[ix] = domain;
-            override = mOverrideCache.get(domain);
-            if (override != null) {
-                Log.d(LOGTAG, "found cached override: " + override);
-                addToCache(checkedDomains, override);
-                return override.equals(NO_OVERRIDE_FOUND) ? null : override;
-            }
-            String domainHash = hashDomain(domain);
-            if (domainHash == null) {
-                Log.d(LOGTAG, "Failed to hash domain: " + domain);
+        byte[] domain = host.getBytes(StandardCharsets.UTF_8);
+        int start = 0;
+        while (override == null && start >= 0) {
+            try {
+                mDigest.update(domain, start, domain.length - start);
+                mDigest.digest(mDigestBuffer, 0, DIGEST_LENGTH);
+            } catch (DigestException e) {
+                mDigest.reset();
+                Log.e(LOGTAG, "Failed to hash domain: " + host + " " + e.getMessage());
                 return null;
             }
-            Log.d(LOGTAG, "hash: " + domainHash + " for domain: " + domain);
-            override = mOverrideMap.get(domainHash);
-            if (override != null) {
-                Log.d(LOGTAG, "found override from hash: " + override);
-                addToCache(checkedDomains, override);
-                return override;
-            }
+            override = mOverrideMap.get(mDigestKey);
+            start = nextLabel(domain, start);
         }
-        addToCache(checkedDomains, NO_OVERRIDE_FOUND);
-        return null;
+        mOverrideCache.put(host, override != null ? override : NO_OVERRIDE_FOUND);
+        return override;
     }
 
-    private void addToCache(String[] aDomains, String aOverride) {
-        for (String domain: aDomains) {
-            if (domain == null) {
-                Log.d(LOGTAG, "Found null domain in checked list");
-                continue;
-            } else {
-                Log.d(LOGTAG, domain + " override: " + aOverride);
+    private static int nextLabel(@NonNull byte[] aDomain, int aStart) {
+        for (int i = aStart; i < aDomain.length; i++) {
+            if (aDomain[i] == '.') {
+                return i + 1;
             }
-            mOverrideCache.put(domain, aOverride);
         }
+        return -1;
     }
 
-    private String hashDomain(String aDomain) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-512");
-            byte[] digest = md.digest(aDomain.getBytes());
-            StringBuilder sb = new StringBuilder();
-            for (int value: digest) {
-                sb.append(Integer.toString((value & 0xff) + 0x100, 16).substring(1));
+    /**
+     * @return The lowercase host of a hierarchical uri, or null if it has none.
+     */
+    @Nullable
+    static String getHost(@NonNull String aUri) {
+        int colon = aUri.indexOf(':');
+        if (colon <= 0 || !aUri.startsWith("//", colon + 1)) {
+            return null;
+        }
+        for (int i = 0; i < colon; i++) {
+            char c = aUri.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') {
+                return null;
             }
+        }
+        int start = colon + 3;
+        int end = aUri.length();
+        for (int i = start; i < end; i++) {
+            char c = aUri.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        int userInfo = aUri.lastIndexOf('@', end - 1);
+        if (userInfo >= start) {
+            start = userInfo + 1;
+        }
+        if (start < end && aUri.charAt(start) == '[') {
+            // IPv6 addresses have no domain to match.
+            return null;
+        }
+        int port = aUri.indexOf(':', start);
+        if (port >= 0 && port < end) {
+            end = port;
+        }
+        if (start >= end) {
+            return null;
+        }
+        return aUri.substring(start, end).toLowerCase(Locale.ROOT);
+    }
 
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(LOGTAG, "Error while trying to hash domain: " + e.getMessage());
+    @Nullable
+    private static ByteBuffer parseDigest(@NonNull String aHex) {
+        if (aHex.length() != DIGEST_LENGTH * 2) {
+            return null;
+        }
+        byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            int high = Character.digit(aHex.charAt(i * 2), 16);
+            int low = Character.digit(aHex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            digest[i] = (byte) ((high << 4) | low);
         }
-        return null;
+        return ByteBuffer.wrap(digest);
     }
 
-    private void importJSONData(final String aData) {
+    synchronized void importJSONData(final String aData) {
         try {
             JSONObject json = new JSONObject(aData);
             Iterator<String> iter = json.keys();
@@ -138,12 +176,18 @@ public class UriOverride {
                 String key = iter.next();
                 try {
                     String value = json.getString(key);
+                    ByteBuffer digest = parseDigest(key);
+                    if (digest == null) {
+                        Log.e(LOGTAG, "Invalid " + mOverrideName + " override hash: " + key);
+                        continue;
+                    }
                     Log.d(LOGTAG, mOverrideName + " override: " + key + " -> " + value);
-                    mOverrideMap.put(key, value);
+                    mOverrideMap.put(digest, value);
                 } catch (JSONException e) {
                     Log.e(LOGTAG, "Failed to find " + mOverrideName + " override while parsing file for key: " + key);
                 }
             }
+            mOverrideCache.evictAll();
 
         } catch (JSONException e) {
             Log.e(LOGTAG, "Failed to import " + mOverrideName + " override JSON data: " + e.getMessage());
@@ -1,6 +1,5 @@
 package com.igalia.wolvic.browser.content;
 
-import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
 import androidx.preference.PreferenceManager;
@@ -9,7 +8,6 @@ import androidx.annotation.NonNull;
 import androidx.lifecycle.DefaultLifecycleObserver;
 import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleOwner;
-import androidx.lifecycle.Observer;
 
 import com.igalia.wolvic.R;
 import com.igalia.wolvic.VRBrowserActivity;
@@ -18,7 +16,6 @@ import com.igalia.wolvic.browser.api.WContentBlocking;
 import com.igalia.wolvic.browser.api.WRuntime;
 import com.igalia.wolvic.browser.engine.Session;
 import com.igalia.wolvic.db.SitePermission;
-import com.igalia.wolvic.ui.viewmodel.SitePermissionViewModel;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -43,25 +40,18 @@ public class TrackingProtectionStore implements DefaultLifecycleObserver,
     private Context mContext;
     private WRuntime mRuntime;
     private Lifecycle mLifeCycle;
-    private SitePermissionViewModel mViewModel;
     private List<TrackingProtectionListener> mListeners;
     private SharedPreferences mPrefs;
-    private List<SitePermission> mSitePermissions;
-    private boolean mIsFirstUpdate;
 
     public TrackingProtectionStore(@NonNull Context context,
                                    @NonNull WRuntime runtime) {
         mContext = context;
         mRuntime = runtime;
         mListeners = new ArrayList<>();
-        mSitePermissions = new ArrayList<>();
-        mIsFirstUpdate = true;
 
         mLifeCycle = ((VRBrowserActivity) context).getLifecycle();
         mLifeCycle.addObserver(this);
 
-        mViewModel = new SitePermissionViewModel(((Application)context.getApplicationContext()));
-
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         mPrefs.registerOnSharedPreferenceChangeListener(this);
 
@@ -76,26 +66,6 @@ public class TrackingProtectionStore implements DefaultLifecycleObserver,
         mListeners.remove(listener);
     }
 
-    @Override
-    public void onStart(@NonNull LifecycleOwner owner) {
-        mViewModel.getAll(SitePermission.SITE_PERMISSION_TRACKING).observeForever(mSitePermissionObserver);
-    }
-
-    @Override
-    public void onStop(@NonNull LifecycleOwner owner) {
-        mViewModel.getAll(SitePermission.SITE_PERMISSION_TRACKING).removeObserver(mSitePermissionObserver);
-    }
-
-    private Observer<List<SitePermission>> mSitePermissionObserver = new Observer<List<SitePermission>>() {
-        @Override
-        public void onChanged(List<SitePermission> sitePermissions) {
-            if (sitePermissions != null) {
-                mSitePermissions = sitePermissions;
-                mIsFirstUpdate = false;
-            }
-        }
-    };
-
     @Override
     public void onDestroy(@NonNull LifecycleOwner owner) {
         mLifeCycle.removeObserver(this);
@@ -0,0 +1,198 @@
+package com.igalia.wolvic.browser.engine;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.igalia.wolvic.browser.Media;
+import com.igalia.wolvic.utils.SystemUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Default {@link SessionSuspensionPolicy}.
+ * <p>
+ * Live sessions are given a memory budget derived from the total memory of the device, which is
+ * reduced for a while after the system reports memory pressure. When the estimated footprint of
+ * the live sessions exceeds the budget, the least recently used inactive sessions are suspended
+ * first, and sessions playing media are only suspended under critical memory pressure.
+ */
+public class MemoryAwareSuspensionPolicy implements SessionSuspensionPolicy {
+
+    private static final String LOGTAG = SystemUtils.createLogtag(MemoryAwareSuspensionPolicy.class);
+
+    // Rough footprint of a live engine session, with and without media.
+    static final long SESSION_FOOTPRINT_MB = 150;
+    static final long MEDIA_SESSION_FOOTPRINT_MB = 300;
+    // Fraction of the device memory that live sessions are allowed to use.
+    private static final float MEMORY_BUDGET_RATIO = 0.2f;
+    // Number of sessions always allowed, and upper limit regardless of the device memory.
+    private static final int MIN_LIVE_SESSIONS = 3;
+    private static final int MAX_LIVE_SESSIONS = 12;
+    // How long a memory pressure signal keeps the budget reduced.
+    private static final long MEMORY_PRESSURE_DURATION_MS = 60 * 1000;
+
+    /**
+     * Counters to tune the policy, see {@link #getStats()}. They are only updated when the
+     * {@link SessionStore} suspends sessions, not when it checks whether it needs to.
+     */
+    public static class Stats {
+        public long evaluations;
+        public long budgetSuspensions;
+        public long pressureSuspensions;
+        public long mediaSuspensions;
+        public long trimMemoryEvents;
+        public long budgetMb;
+        public long lastFootprintMb;
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "evaluations=" + evaluations +
+                    " budgetSuspensions=" + budgetSuspensions +
+                    " pressureSuspensions=" + pressureSuspensions +
+                    " mediaSuspensions=" + mediaSuspensions +
+                    " trimMemoryEvents=" + trimMemoryEvents +
+                    " budgetMb=" + budgetMb +
+                    " lastFootprintMb=" + lastFootprintMb;
+        }
+    }
+
+    private final long mBaseBudgetMb;
+    private int mTrimLevel = 0;
+    private long mTrimLevelTime;
+    private final Stats mStats = new Stats();
+
+    public MemoryAwareSuspensionPolicy(@NonNull Context aContext) {
+        ActivityManager activityManager = (ActivityManager) aContext.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        long totalMb = 0;
+        if (activityManager != null) {
+            activityManager.getMemoryInfo(memoryInfo);
+            totalMb = memoryInfo.totalMem / (1024 * 1024);
+        }
+        long budget = (long) (totalMb * MEMORY_BUDGET_RATIO);
+        mBaseBudgetMb = Math.max(MIN_LIVE_SESSIONS * SESSION_FOOTPRINT_MB,
+                Math.min(MAX_LIVE_SESSIONS * SESSION_FOOTPRINT_MB, budget));
+        mStats.budgetMb = mBaseBudgetMb;
+        Log.d(LOGTAG, "Device memory: " + totalMb + "MB, sessions budget: " + mBaseBudgetMb + "MB");
+    }
+
+    @Override
+    public void onTrimMemory(int aLevel) {
+        mStats.trimMemoryEvents++;
+        switch (aLevel) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+                if (isUnderPressure() && aLevel < mTrimLevel) {
+                    // Keep the most severe level until it expires.
+                    return;
+                }
+                mTrimLevel = aLevel;
+                mTrimLevelTime = SystemClock.elapsedRealtime();
+                break;
+            default:
+                // Other levels are about the app being in the background, handled elsewhere.
+                break;
+        }
+    }
+
+    private boolean isUnderPressure() {
+        return mTrimLevel != 0 && SystemClock.elapsedRealtime() - mTrimLevelTime < MEMORY_PRESSURE_DURATION_MS;
+    }
+
+    private long currentBudgetMb() {
+        if (!isUnderPressure()) {
+            return mBaseBudgetMb;
+        }
+        switch (mTrimLevel) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+                return mBaseBudgetMb * 3 / 4;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+                return mBaseBudgetMb / 2;
+            default:
+                // Critical, only the active sessions are kept alive.
+                return 0;
+        }
+    }
+
+    private static boolean isPlayingMedia(@NonNull Session aSession) {
+        Media media = aSession.getActiveVideo();
+        return media != null && media.isPlaying();
+    }
+
+    static long estimateFootprintMb(@NonNull Session aSession) {
+        return aSession.getActiveVideo() != null ? MEDIA_SESSION_FOOTPRINT_MB : SESSION_FOOTPRINT_MB;
+    }
+
+    @NonNull
+    @Override
+    public List<Session> selectSessionsToSuspend(@NonNull List<Session> aLiveSessions) {
+        long budget = currentBudgetMb();
+        boolean critical = isUnderPressure() && budget == 0;
+
+        long footprint = 0;
+        List<Session> candidates = new ArrayList<>();
+        for (Session session : aLiveSessions) {
+            footprint += estimateFootprintMb(session);
+            if (!session.isActive() && (critical || !isPlayingMedia(session))) {
+                candidates.add(session);
+            }
+        }
+        if (footprint <= budget || candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Sessions not playing media go first, then the least recently used.
+        candidates.sort(Comparator.<Session>comparingInt(session -> isPlayingMedia(session) ? 1 : 0)
+                .thenComparingLong(Session::getLastUse));
+
+        List<Session> result = new ArrayList<>();
+        for (Session session : candidates) {
+            if (footprint <= budget) {
+                break;
+            }
+            result.add(session);
+            footprint -= estimateFootprintMb(session);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void onSessionsSuspended(@NonNull List<Session> aLiveSessions, @NonNull List<Session> aSuspended) {
+        mStats.evaluations++;
+        mStats.budgetMb = currentBudgetMb();
+        long footprint = 0;
+        for (Session session : aLiveSessions) {
+            footprint += estimateFootprintMb(session);
+        }
+        mStats.lastFootprintMb = footprint;
+
+        boolean underPressure = isUnderPressure();
+        for (Session session : aSuspended) {
+            // The media state is only updated by later engine callbacks, it is still the one before suspending.
+            if (isPlayingMedia(session)) {
+                mStats.mediaSuspensions++;
+            }
+            if (underPressure) {
+                mStats.pressureSuspensions++;
+            } else {
+                mStats.budgetSuspensions++;
+            }
+        }
+    }
+
+    @NonNull
+    public Stats getStats() {
+        return mStats;
+    }
+}
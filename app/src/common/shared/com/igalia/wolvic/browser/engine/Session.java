@@ -94,7 +94,6 @@ public class Session implements WContentBlocking.Delegate, WSession.NavigationDe
     private transient Context mContext;
     private transient SharedPreferences mPrefs;
     private transient WRuntime mRuntime;
-    private transient byte[] mPrivatePage;
     private transient boolean mFirstContentfulPaint;
     private transient long mKeepAlive;
     private transient Media mMedia;
@@ -192,9 +191,6 @@ public class Session implements WContentBlocking.Delegate, WSession.NavigationDe
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         mPrefs.registerOnSharedPreferenceChangeListener(this);
 
-        InternalPages.PageResources pageResources = InternalPages.PageResources.create(R.raw.private_mode, R.raw.private_style);
-        mPrivatePage = InternalPages.createAboutPage(mContext, pageResources);
-
         if (sUserAgentOverride == null) {
             sUserAgentOverride = new UriOverride("user agent");
             sUserAgentOverride.loadOverridesFromAssets((Activity)mContext, mContext.getString(R.string.user_agent_override_file));
@@ -529,6 +525,7 @@ public class Session implements WContentBlocking.Delegate, WSession.NavigationDe
 
         openSession();
 
+        mState.resolveSessionState();
         if (shouldLoadDefaultPage(mState)) {
             loadDefaultPage();
         } else if (mState.mSessionState != null) {
@@ -889,7 +886,7 @@ public class Session implements WContentBlocking.Delegate, WSession.NavigationDe
 
     public void loadPrivateBrowsingPage() {
         if (mState.mSession != null) {
-            mState.mSession.loadData(mPrivatePage, "text/html");
+            mState.mSession.loadData(InternalPages.getPrivatePageBytes(mContext), "text/html");
         }
     }
 
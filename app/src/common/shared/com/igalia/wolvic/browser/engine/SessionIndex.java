@@ -0,0 +1,174 @@
+package com.igalia.wolvic.browser.engine;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.igalia.wolvic.browser.api.WSession;
+import com.igalia.wolvic.utils.UrlUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Hash indexes over the sessions of the {@link SessionStore}, so lookups by id, by
+ * {@link WSession}, by URI and by host do not need to walk every tab.
+ * <p>
+ * The id index is exact because session ids never change. The other keys change while
+ * browsing, so they are refreshed from the navigation and session change callbacks and every
+ * hit is validated against the current value of the session before being returned.
+ */
+class SessionIndex {
+
+    private static class IndexedKeys {
+        WSession wSession;
+        String uri;
+        String hostKey;
+    }
+
+    private final HashMap<String, Session> mById = new HashMap<>();
+    private final HashMap<WSession, Session> mByWSession = new HashMap<>();
+    private final HashMap<String, Set<Session>> mByUri = new HashMap<>();
+    private final HashMap<String, Set<Session>> mByHost = new HashMap<>();
+    private final HashMap<Session, IndexedKeys> mKeys = new HashMap<>();
+
+    private static String hostKey(@NonNull String aHost, boolean aIsPrivate) {
+        return (aIsPrivate ? "p:" : "r:") + aHost;
+    }
+
+    void add(@NonNull Session aSession) {
+        mById.put(aSession.getId(), aSession);
+        mKeys.put(aSession, new IndexedKeys());
+        update(aSession);
+    }
+
+    void remove(@Nullable Session aSession) {
+        if (aSession == null) {
+            return;
+        }
+        mById.remove(aSession.getId());
+        IndexedKeys keys = mKeys.remove(aSession);
+        if (keys != null) {
+            if (keys.wSession != null && mByWSession.get(keys.wSession) == aSession) {
+                mByWSession.remove(keys.wSession);
+            }
+            removeFrom(mByUri, keys.uri, aSession);
+            removeFrom(mByHost, keys.hostKey, aSession);
+        }
+    }
+
+    /**
+     * Refreshes the keys of a session whose {@link WSession} or URI may have changed.
+     */
+    void update(@NonNull Session aSession) {
+        IndexedKeys keys = mKeys.get(aSession);
+        if (keys == null) {
+            return;
+        }
+
+        WSession wSession = aSession.getWSession();
+        if (keys.wSession != wSession) {
+            if (keys.wSession != null && mByWSession.get(keys.wSession) == aSession) {
+                mByWSession.remove(keys.wSession);
+            }
+            if (wSession != null) {
+                mByWSession.put(wSession, aSession);
+            }
+            keys.wSession = wSession;
+        }
+
+        String uri = aSession.getCurrentUri();
+        if (!Objects.equals(keys.uri, uri)) {
+            removeFrom(mByUri, keys.uri, aSession);
+            removeFrom(mByHost, keys.hostKey, aSession);
+            keys.uri = uri;
+            keys.hostKey = hostKey(UrlUtils.getHost(uri), aSession.isPrivateMode());
+            addTo(mByUri, keys.uri, aSession);
+            addTo(mByHost, keys.hostKey, aSession);
+        }
+    }
+
+    @Nullable Session getById(@Nullable String aId) {
+        return aId != null ? mById.get(aId) : null;
+    }
+
+    /**
+     * @return the indexed session, or null if the key is missing or stale. Callers may fall
+     * back to a full search in the latter case.
+     */
+    @Nullable Session getByWSession(@Nullable WSession aSession) {
+        if (aSession == null) {
+            return null;
+        }
+        Session session = mByWSession.get(aSession);
+        if (session != null && session.getWSession() != aSession) {
+            update(session);
+            return null;
+        }
+        return session;
+    }
+
+    @Nullable Session getByUri(@NonNull String aUri) {
+        for (Session session : snapshot(mByUri.get(aUri))) {
+            if (aUri.equals(session.getCurrentUri())) {
+                return session;
+            }
+            update(session);
+        }
+        return null;
+    }
+
+    @NonNull List<Session> getByHost(@NonNull String aHost, boolean aIsPrivate) {
+        List<Session> result = new ArrayList<>();
+        String hostKey = hostKey(aHost, aIsPrivate);
+        for (Session session : snapshot(mByHost.get(hostKey))) {
+            update(session);
+            IndexedKeys keys = mKeys.get(session);
+            if (keys != null && hostKey.equals(keys.hostKey)) {
+                result.add(session);
+            }
+        }
+        return result;
+    }
+
+    void clear() {
+        mById.clear();
+        mByWSession.clear();
+        mByUri.clear();
+        mByHost.clear();
+        mKeys.clear();
+    }
+
+    private static List<Session> snapshot(@Nullable Set<Session> aSessions) {
+        return aSessions != null ? new ArrayList<>(aSessions) : Collections.emptyList();
+    }
+
+    private static void addTo(@NonNull HashMap<String, Set<Session>> aMap, @Nullable String aKey, @NonNull Session aSession) {
+        if (aKey == null) {
+            return;
+        }
+        Set<Session> sessions = aMap.get(aKey);
+        if (sessions == null) {
+            sessions = new LinkedHashSet<>();
+            aMap.put(aKey, sessions);
+        }
+        sessions.add(aSession);
+    }
+
+    private static void removeFrom(@NonNull HashMap<String, Set<Session>> aMap, @Nullable String aKey, @NonNull Session aSession) {
+        if (aKey == null) {
+            return;
+        }
+        Set<Session> sessions = aMap.get(aKey);
+        if (sessions != null) {
+            sessions.remove(aSession);
+            if (sessions.isEmpty()) {
+                aMap.remove(aKey);
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.igalia.wolvic.browser.engine;
 
 import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonParser;
@@ -82,6 +84,20 @@ public class SessionState {
         return result;
     }
 
+    /**
+     * Copies the persisted fields so the copy can be serialized outside the UI thread while the
+     * session keeps changing.
+     */
+    public SessionState snapshot() {
+        SessionState result = recreate();
+        result.mCanGoBack = mCanGoBack;
+        result.mCanGoForward = mCanGoForward;
+        result.mIsLoading = mIsLoading;
+        result.mIsInputActive = mIsInputActive;
+
+        return result;
+    }
+
     public static class ISessionStateAdapter extends TypeAdapter<WSessionState> {
         @Override
         public void write(JsonWriter out, WSessionState state) throws IOException {
@@ -92,7 +108,8 @@ public class SessionState {
         public WSessionState read(JsonReader in) {
             try {
                 String session = JsonParser.parseReader(in).getAsString();
-                return WSessionState.fromJson(session);
+                // Parsing is deferred until the session is restored, see resolveSessionState().
+                return new DeferredSessionState(session);
 
             } catch (Exception e) {
                 return null;
@@ -100,6 +117,68 @@ public class SessionState {
         }
     }
 
+    /**
+     * Saved engine state which is only parsed when the session is actually restored, so reading
+     * the saved tabs at startup does not pay the cost for tabs that are never activated.
+     */
+    private static class DeferredSessionState implements WSessionState {
+        private final String mJson;
+        private WSessionState mState;
+        private boolean mResolved;
+
+        DeferredSessionState(@NonNull String aJson) {
+            mJson = aJson;
+        }
+
+        @Nullable WSessionState resolve() {
+            if (!mResolved) {
+                try {
+                    mState = WSessionState.fromJson(mJson);
+                } catch (Exception e) {
+                    mState = null;
+                }
+                mResolved = true;
+            }
+            return mState;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            WSessionState state = resolve();
+            return state == null || state.isEmpty();
+        }
+
+        boolean isJsonEmpty() {
+            return mJson.isEmpty() || mJson.equals("null");
+        }
+
+        @Override
+        public String toJson() {
+            return mJson;
+        }
+    }
+
+    /**
+     * Parses the saved engine state if it was deferred when reading it from disk. Must be called
+     * before handing {@link #mSessionState} to the engine.
+     */
+    public void resolveSessionState() {
+        if (mSessionState instanceof DeferredSessionState) {
+            mSessionState = ((DeferredSessionState) mSessionState).resolve();
+        }
+    }
+
+    /**
+     * Checks if the state is empty without parsing it when it was deferred, in which case only
+     * the saved json is checked. It can be used from any thread.
+     */
+    public static boolean isEmptyState(@NonNull WSessionState aState) {
+        if (aState instanceof DeferredSessionState) {
+            return ((DeferredSessionState) aState).isJsonEmpty();
+        }
+        return aState.isEmpty();
+    }
+
     boolean isActive() {
         return mIsActive;
     }
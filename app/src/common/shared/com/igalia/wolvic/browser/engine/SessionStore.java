@@ -27,6 +27,7 @@ import com.igalia.wolvic.browser.components.WolvicWebExtensionRuntime;
 import com.igalia.wolvic.browser.content.TrackingProtectionStore;
 import com.igalia.wolvic.browser.extensions.BuiltinExtension;
 import com.igalia.wolvic.db.SitePermission;
+import com.igalia.wolvic.search.suggestions.LocalSuggestionsIndex;
 import com.igalia.wolvic.utils.SystemUtils;
 import com.igalia.wolvic.utils.UrlUtils;
 
@@ -36,7 +37,6 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Executor;
-import java.util.stream.Collectors;
 
 import mozilla.components.browser.state.state.BrowserState;
 import mozilla.components.feature.accounts.FxaCapability;
@@ -51,7 +51,6 @@ public class SessionStore implements
         ComponentsAdapter.StoreUpdatesListener {
 
     private static final String LOGTAG = SystemUtils.createLogtag(SessionStore.class);
-    private static final int MAX_SESSIONS = 5;
 
     private static final List<Pair<String, String>> BUILTIN_WEB_EXTENSIONS = Arrays.asList(
             new Pair<>("fxr-webcompat_youtube@mozilla.org", "resource://android/assets/extensions/fxr_youtube/"),
@@ -72,13 +71,16 @@ public class SessionStore implements
     private Context mContext;
     private WRuntime mRuntime;
     private ArrayList<Session> mSessions;
+    private final SessionIndex mSessionIndex = new SessionIndex();
     private Session mActiveSession;
     private PermissionDelegate mPermissionDelegate;
     private BookmarksStore mBookmarksStore;
     private HistoryStore mHistoryStore;
     private WebAppsStore mWebAppStore;
+    private LocalSuggestionsIndex mLocalSuggestionsIndex;
     private Services mServices;
     private boolean mSuspendPending;
+    private SessionSuspensionPolicy mSuspensionPolicy;
     private TrackingProtectionStore mTrackingProtectionStore;
     private WolvicWebExtensionRuntime mWebExtensionRuntime;
     private FxaWebChannelFeature mWebChannelsFeature;
@@ -89,23 +91,30 @@ public class SessionStore implements
         mSessions = new ArrayList<>();
     }
 
+    // Keeps the URI and host indexes up to date while sessions navigate.
+    private final WSession.NavigationDelegate mSessionIndexUpdater = new WSession.NavigationDelegate() {
+        @Override
+        public void onLocationChange(@NonNull WSession aSession, @Nullable String aUrl) {
+            Session session = getSession(aSession);
+            if (session != null) {
+                mSessionIndex.update(session);
+            }
+        }
+    };
+
     public void initialize(Context context) {
         mContext = context;
         mMainExecutor = ((VRBrowserApplication)context.getApplicationContext()).getExecutors().mainThread();
 
         mRuntime = EngineProvider.INSTANCE.getOrCreateRuntime(context);
+        mSuspensionPolicy = new MemoryAwareSuspensionPolicy(context);
 
         mTrackingProtectionStore = new TrackingProtectionStore(context, mRuntime);
         mTrackingProtectionStore.addListener(new TrackingProtectionStore.TrackingProtectionListener() {
             @Override
             public void onExcludedTrackingProtectionChange(@NonNull String url, boolean excluded, boolean isPrivate) {
-                mSessions.forEach(existingSession -> {
-                    String currentSessionHost = UrlUtils.getHost(existingSession.getCurrentUri());
-                    String sessionHost = UrlUtils.getHost(url);
-                    if (currentSessionHost.equals(sessionHost) && existingSession.isPrivateMode() == isPrivate) {
-                        existingSession.reload(WSession.LOAD_FLAGS_BYPASS_CACHE);
-                    }
-                });
+                getSessionsByHost(UrlUtils.getHost(url), isPrivate).forEach(existingSession ->
+                        existingSession.reload(WSession.LOAD_FLAGS_BYPASS_CACHE));
             }
 
             @Override
@@ -128,6 +137,7 @@ public class SessionStore implements
         mBookmarksStore = new BookmarksStore(context);
         mHistoryStore = new HistoryStore(context);
         mWebAppStore = new WebAppsStore(context);
+        mLocalSuggestionsIndex = new LocalSuggestionsIndex(mHistoryStore, mBookmarksStore);
 
         // Web Extensions initialization
         BUILTIN_WEB_EXTENSIONS.forEach(extension -> BuiltinExtension.install(mWebExtensionRuntime, extension.first, extension.second));
@@ -183,6 +193,8 @@ public class SessionStore implements
         aSession.setPermissionDelegate(this);
         aSession.addNavigationListener(mServices);
         mSessions.add(aSession);
+        mSessionIndex.add(aSession);
+        aSession.addNavigationListener(mSessionIndexUpdater);
         sessionActiveStateChanged();
 
         if (BuildConfig.DEBUG) {
@@ -258,13 +270,18 @@ public class SessionStore implements
 
     public void destroySession(Session aSession) {
         mSessions.remove(aSession);
+        mSessionIndex.remove(aSession);
         if (aSession != null) {
+            aSession.removeNavigationListener(mSessionIndexUpdater);
             shutdownSession(aSession);
         }
     }
 
     public void destroySession(@NonNull String sessionId) {
-        mSessions.stream().filter(session -> session.getId().equals(sessionId)).findFirst().ifPresent(this::destroySession);
+        Session session = getSession(sessionId);
+        if (session != null) {
+            destroySession(session);
+        }
     }
 
     public void destroyPrivateSessions() {
@@ -272,6 +289,8 @@ public class SessionStore implements
             if (!session.isPrivateMode()) {
                 return false;
             }
+            mSessionIndex.remove(session);
+            session.removeNavigationListener(mSessionIndexUpdater);
             shutdownSession(session);
             return true;
         });
@@ -289,22 +308,33 @@ public class SessionStore implements
     }
 
     public @Nullable Session getSession(String aId) {
-        return mSessions.stream().filter(session -> session.getId().equals(aId)).findFirst().orElse(null);
+        return mSessionIndex.getById(aId);
     }
 
     public @Nullable Session getSessionByUri(String uri) {
-        return mSessions.stream().filter(session -> session.getCurrentUri().equals(uri)).findFirst().orElse(null);
+        if (uri == null) {
+            return null;
+        }
+        return mSessionIndex.getByUri(uri);
     }
 
     public @Nullable Session getSession(WSession aSession) {
-        return mSessions.stream().filter(session -> session.getWSession() == aSession).findFirst().orElse(null);
+        if (aSession == null) {
+            return null;
+        }
+        Session result = mSessionIndex.getByWSession(aSession);
+        if (result == null) {
+            // The WSession may have been replaced without notifying the store, do a full search.
+            result = mSessions.stream().filter(session -> session.getWSession() == aSession).findFirst().orElse(null);
+            if (result != null) {
+                mSessionIndex.update(result);
+            }
+        }
+        return result;
     }
 
     public @NonNull List<Session> getSessionsByHost(@NonNull String aHost, boolean aIsPrivate) {
-        return mSessions.stream()
-                .filter(session -> session.isPrivateMode() == aIsPrivate)
-                .filter(session -> UrlUtils.getHost(session.getCurrentUri()).equals(aHost))
-                .collect(Collectors.toList());
+        return mSessionIndex.getByHost(aHost, aIsPrivate);
     }
 
     public void setActiveSession(Session aSession) {
@@ -321,34 +351,65 @@ public class SessionStore implements
         }
     }
 
-    private void limitInactiveSessions() {
-        Log.d(LOGTAG, "Limiting Inactive Sessions");
-        suspendAllInactiveSessions();
-        mSuspendPending = false;
+    public void setSuspensionPolicy(@NonNull SessionSuspensionPolicy aPolicy) {
+        mSuspensionPolicy = aPolicy;
     }
 
-    void sessionActiveStateChanged() {
-        if (mSuspendPending) {
+    @NonNull
+    public SessionSuspensionPolicy getSuspensionPolicy() {
+        return mSuspensionPolicy;
+    }
+
+    public void onTrimMemory(int aLevel) {
+        if (mSuspensionPolicy == null) {
             return;
         }
-        int count = 0;
-        int activeCount = 0;
-        int inactiveCount = 0;
-        int suspendedCount = 0;
-        for(Session session: mSessions) {
+        mSuspensionPolicy.onTrimMemory(aLevel);
+        limitInactiveSessions();
+    }
+
+    @NonNull
+    private List<Session> getLiveSessions() {
+        List<Session> result = new ArrayList<>();
+        for (Session session: mSessions) {
             if (session.getWSession() != null) {
-                count++;
-                if (session.isActive()) {
-                    activeCount++;
-                } else {
-                    inactiveCount++;
-                }
-            } else {
-                suspendedCount++;
+                result.add(session);
+            }
+        }
+        return result;
+    }
+
+    private void limitInactiveSessions() {
+        mSuspendPending = false;
+        List<Session> liveSessions = getLiveSessions();
+        List<Session> sessions = mSuspensionPolicy.selectSessionsToSuspend(liveSessions);
+        if (sessions.isEmpty()) {
+            mSuspensionPolicy.onSessionsSuspended(liveSessions, sessions);
+            return;
+        }
+        Log.d(LOGTAG, "Limiting Inactive Sessions, suspending " + sessions.size());
+        List<Session> suspended = new ArrayList<>();
+        for (Session session: sessions) {
+            session.suspend();
+            // Sessions are not suspended if they became active or must be kept alive.
+            if (session.getWSession() == null) {
+                suspended.add(session);
             }
         }
-        if (count > MAX_SESSIONS) {
-            Log.d(LOGTAG, "Too many sessions. Active: " + activeCount + " Inactive: " + inactiveCount + " Suspended: " + suspendedCount);
+        mSuspensionPolicy.onSessionsSuspended(liveSessions, suspended);
+        if (mSuspensionPolicy instanceof MemoryAwareSuspensionPolicy) {
+            Log.d(LOGTAG, "Suspension stats: " + ((MemoryAwareSuspensionPolicy) mSuspensionPolicy).getStats());
+        }
+        if (BuildConfig.DEBUG) {
+            mStoreSubscription.resume();
+        }
+    }
+
+    void sessionActiveStateChanged() {
+        if (mSuspendPending || mSuspensionPolicy == null) {
+            return;
+        }
+        if (!mSuspensionPolicy.selectSessionsToSuspend(getLiveSessions()).isEmpty()) {
             mSuspendPending = true;
             mMainExecutor.execute(this::limitInactiveSessions);
         }
@@ -382,6 +443,10 @@ public class SessionStore implements
         return mHistoryStore;
     }
 
+    public LocalSuggestionsIndex getLocalSuggestionsIndex() {
+        return mLocalSuggestionsIndex;
+    }
+
     public WebAppsStore getWebAppsStore() {
         return mWebAppStore;
     }
@@ -513,11 +578,13 @@ public class SessionStore implements
 
     @Override
     public void onSessionAdded(Session aSession) {
+        mSessionIndex.update(aSession);
         ComponentsAdapter.get().addSession(aSession);
     }
 
     @Override
     public void onSessionOpened(Session aSession) {
+        mSessionIndex.update(aSession);
         ComponentsAdapter.get().link(aSession);
     }
 
@@ -528,6 +595,10 @@ public class SessionStore implements
 
     @Override
     public void onSessionRemoved(String aId) {
+        Session session = mSessionIndex.getById(aId);
+        if (session != null) {
+            mSessionIndex.update(session);
+        }
         ComponentsAdapter.get().removeSession(aId);
     }
 
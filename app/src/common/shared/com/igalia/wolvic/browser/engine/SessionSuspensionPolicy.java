@@ -0,0 +1,34 @@
+package com.igalia.wolvic.browser.engine;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Decides which inactive sessions the {@link SessionStore} suspends to keep the memory used by
+ * live engine sessions under control.
+ */
+public interface SessionSuspensionPolicy {
+    /**
+     * Called with the levels received by {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    void onTrimMemory(int aLevel);
+
+    /**
+     * Only decides, it may be called to check whether sessions need to be suspended without
+     * suspending them.
+     *
+     * @param aLiveSessions Sessions that currently have an engine session, active or not.
+     * @return The inactive sessions that should be suspended, in the order they should be suspended.
+     */
+    @NonNull List<Session> selectSessionsToSuspend(@NonNull List<Session> aLiveSessions);
+
+    /**
+     * Called when the {@link SessionStore} has suspended the sessions selected by
+     * {@link #selectSessionsToSuspend(List)}, right after suspending them.
+     *
+     * @param aLiveSessions Sessions passed to {@link #selectSessionsToSuspend(List)}.
+     * @param aSuspended Sessions that were actually suspended, possibly none.
+     */
+    default void onSessionsSuspended(@NonNull List<Session> aLiveSessions, @NonNull List<Session> aSuspended) {}
+}
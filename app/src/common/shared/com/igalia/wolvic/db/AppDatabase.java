@@ -1,6 +1,9 @@
 package com.igalia.wolvic.db;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.LiveData;
@@ -13,7 +16,10 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.igalia.wolvic.AppExecutors;
 
-@Database(entities = {SitePermission.class}, version = 4)
+import java.util.HashMap;
+import java.util.Map;
+
+@Database(entities = {SitePermission.class}, version = 5)
 public abstract class AppDatabase extends RoomDatabase {
 
     private static final String DATABASE_NAME = "app";
@@ -38,7 +44,7 @@ public abstract class AppDatabase extends RoomDatabase {
     @NonNull
     private static AppDatabase buildDatabase(final @NonNull Context appContext, final @NonNull AppExecutors executors) {
         return Room.databaseBuilder(appContext, AppDatabase.class, DATABASE_NAME)
-                .addMigrations(MIGRATION_1_2, MIGRATION_2_4)
+                .addMigrations(MIGRATION_1_2, MIGRATION_2_4, MIGRATION_4_5)
                 .addCallback(new Callback() {
                     @Override
                     public void onCreate(@NonNull SupportSQLiteDatabase db) {
@@ -95,4 +101,26 @@ public abstract class AppDatabase extends RoomDatabase {
         }
     };
 
+    // Package private so the migration can be tested.
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE SitePermission ADD COLUMN origin TEXT NOT NULL DEFAULT ''");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_SitePermission_origin_category` ON `SitePermission` (`origin`, `category`)");
+            // The origins are normalized in Java, so they match the ones of the new rows.
+            Map<Long, String> origins = new HashMap<>();
+            try (Cursor cursor = database.query("SELECT id, url, category FROM SitePermission")) {
+                while (cursor.moveToNext()) {
+                    origins.put(cursor.getLong(0), SitePermission.normalizeOrigin(cursor.getString(1), cursor.getInt(2)));
+                }
+            }
+            ContentValues values = new ContentValues();
+            for (Map.Entry<Long, String> entry : origins.entrySet()) {
+                values.put("origin", entry.getValue());
+                database.update("SitePermission", SQLiteDatabase.CONFLICT_NONE, values,
+                        "id = ?", new Object[] { entry.getKey() });
+            }
+        }
+    };
+
 }
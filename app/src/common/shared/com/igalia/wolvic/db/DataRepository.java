@@ -20,6 +20,7 @@ public class DataRepository implements LifecycleOwner {
     private final AppDatabase mDatabase;
     private final LifecycleRegistry mLifeCycle;
     private MediatorLiveData<List<SitePermission>> mObservablePopUps;
+    private final SitePermissionIndex mSitePermissionIndex;
 
     private DataRepository(final @NonNull AppDatabase database, final @NonNull AppExecutors executors) {
         mDatabase = database;
@@ -27,6 +28,7 @@ public class DataRepository implements LifecycleOwner {
         mLifeCycle = new LifecycleRegistry(this);
         mLifeCycle.setCurrentState(Lifecycle.State.STARTED);
         mObservablePopUps = new MediatorLiveData<>();
+        mSitePermissionIndex = new SitePermissionIndex();
 
         mObservablePopUps.addSource(mDatabase.sitePermissionDao().loadAll(),
                 sites -> {
@@ -34,6 +36,8 @@ public class DataRepository implements LifecycleOwner {
                         mObservablePopUps.postValue(sites);
                     }
                 });
+        // Keep the table observed so the index stays in sync even when nobody else observes it.
+        mObservablePopUps.observe(this, mSitePermissionIndex::reset);
     }
 
     public static DataRepository getInstance(final @NonNull AppDatabase database, final AppExecutors executors) {
@@ -58,26 +62,48 @@ public class DataRepository implements LifecycleOwner {
         return mObservablePopUps;
     }
 
+    /**
+     * @return The in memory index of the site permissions, for synchronous lookups.
+     */
+    public SitePermissionIndex getSitePermissionIndex() {
+        return mSitePermissionIndex;
+    }
+
     public CompletableFuture<SitePermission> getSitePermission(String aURL, @SitePermission.Category int category) {
-        CompletableFuture<SitePermission> future = new CompletableFuture<>();
-        mExecutors.diskIO().execute(() -> mDatabase.sitePermissionDao().findByUrl(aURL, category));
-        return future;
+        if (mSitePermissionIndex.isLoaded()) {
+            return CompletableFuture.completedFuture(mSitePermissionIndex.get(aURL, category));
+        }
+        return CompletableFuture.supplyAsync(() -> mDatabase.sitePermissionDao().getByOrigin(SitePermission.normalizeOrigin(aURL, category), category), mExecutors.diskIO());
     }
 
-    public void insertSitePermission(final @NonNull SitePermission site) {
-        mExecutors.diskIO().execute(() -> mDatabase.sitePermissionDao().insert(site));
+    public CompletableFuture<Void> insertSitePermission(final @NonNull SitePermission site) {
+        mSitePermissionIndex.put(site);
+        return CompletableFuture.runAsync(() -> site.id = (int) mDatabase.sitePermissionDao().insert(site), mExecutors.diskIO());
+    }
+
+    public CompletableFuture<Void> insertSitePermissions(final @NonNull List<SitePermission> sites) {
+        mSitePermissionIndex.putAll(sites);
+        return CompletableFuture.runAsync(() -> {
+            long[] ids = mDatabase.sitePermissionDao().insertAll(sites);
+            for (int i = 0; i < ids.length; i++) {
+                sites.get(i).id = (int) ids[i];
+            }
+        }, mExecutors.diskIO());
     }
 
-    public void deleteSitePermission(final @NonNull SitePermission site) {
-        mExecutors.diskIO().execute(() -> mDatabase.sitePermissionDao().delete(site));
+    public CompletableFuture<Void> deleteSitePermission(final @NonNull SitePermission site) {
+        mSitePermissionIndex.remove(site);
+        return CompletableFuture.runAsync(() -> mDatabase.sitePermissionDao().delete(site), mExecutors.diskIO());
     }
 
-    public void deleteSites(final @NonNull List<SitePermission> sites) {
-        mExecutors.diskIO().execute(() -> mDatabase.sitePermissionDao().delete(sites));
+    public CompletableFuture<Void> deleteSites(final @NonNull List<SitePermission> sites) {
+        mSitePermissionIndex.removeAll(sites);
+        return CompletableFuture.runAsync(() -> mDatabase.sitePermissionDao().delete(sites), mExecutors.diskIO());
     }
 
-    public void deleteAllSitePermission(@SitePermission.Category int category) {
-        mExecutors.diskIO().execute(() -> mDatabase.sitePermissionDao().deleteAll(category));
+    public CompletableFuture<Void> deleteAllSitePermission(@SitePermission.Category int category) {
+        mSitePermissionIndex.removeCategory(category);
+        return CompletableFuture.runAsync(() -> mDatabase.sitePermissionDao().deleteAll(category), mExecutors.diskIO());
     }
 
 }
@@ -4,9 +4,13 @@ import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity
+import java.net.URI;
+import java.util.Locale;
+
+@Entity(indices = {@Index(value = {"origin", "category"})})
 public class SitePermission {
     @IntDef(value = { SITE_PERMISSION_NONE, SITE_PERMISSION_POPUP, SITE_PERMISSION_WEBXR, SITE_PERMISSION_TRACKING, SITE_PERMISSION_DRM, SITE_PERMISSION_AUTOFILL, SITE_PERMISSION_LOCATION})
     public @interface Category {}
@@ -20,6 +24,7 @@ public class SitePermission {
 
     public SitePermission(@NonNull String url, @NonNull String principal, @Category int category) {
         this.url = url;
+        this.origin = normalizeOrigin(url, category);
         this.principal = principal;
         this.category = category;
         this.allowed = false;
@@ -31,6 +36,11 @@ public class SitePermission {
     @NonNull
     public String url;
 
+    // The url as returned by normalizeOrigin(url, category), used for the lookups.
+    @NonNull
+    @ColumnInfo(name = "origin", defaultValue = "")
+    public String origin;
+
     @NonNull
     @ColumnInfo(name = "principal", defaultValue = "")
     public String principal;
@@ -40,5 +50,47 @@ public class SitePermission {
 
     @ColumnInfo(name = "category")
     public @Category int category;
+
+    /**
+     * Returns the key used to match a url against the stored ones: the lower case scheme, host
+     * and port for urls, or the lower case value itself for bare hosts.
+     */
+    @NonNull
+    public static String normalizeOrigin(@NonNull String aUrl) {
+        String url = aUrl.trim();
+        try {
+            URI uri = new URI(url);
+            if (uri.getScheme() != null && uri.getHost() != null) {
+                String origin = uri.getScheme() + "://" + uri.getHost();
+                if (uri.getPort() != -1) {
+                    origin += ":" + uri.getPort();
+                }
+                return origin.toLowerCase(Locale.ROOT);
+            }
+        } catch (Exception ignored) {
+        }
+        return url.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the key used to match a url against the stored ones of a category. Pop-up
+     * exceptions have always been matched by host, and older rows store full urls, so only the
+     * lower case host is used for them. Other categories use {@link #normalizeOrigin(String)}.
+     */
+    @NonNull
+    public static String normalizeOrigin(@NonNull String aUrl, @Category int aCategory) {
+        if (aCategory != SITE_PERMISSION_POPUP) {
+            return normalizeOrigin(aUrl);
+        }
+        String url = aUrl.trim();
+        try {
+            URI uri = new URI(url);
+            if (uri.getScheme() != null && uri.getHost() != null) {
+                return uri.getHost().toLowerCase(Locale.ROOT);
+            }
+        } catch (Exception ignored) {
+        }
+        return url.toLowerCase(Locale.ROOT);
+    }
 }
 
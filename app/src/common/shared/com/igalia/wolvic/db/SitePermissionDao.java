@@ -14,11 +14,17 @@ public interface SitePermissionDao {
     @Query("SELECT * FROM SitePermission")
     LiveData<List<SitePermission>> loadAll();
 
-    @Query("SELECT * FROM SitePermission WHERE category = :category AND url LIKE :url LIMIT 1")
-    LiveData<SitePermission> findByUrl(String url, @SitePermission.Category int category);
+    /**
+     * @param origin The url as returned by {@link SitePermission#normalizeOrigin(String, int)}.
+     */
+    @Query("SELECT * FROM SitePermission WHERE origin = :origin AND category = :category LIMIT 1")
+    SitePermission getByOrigin(String origin, @SitePermission.Category int category);
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
-    void insert(SitePermission site);
+    long insert(SitePermission site);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    long[] insertAll(List<SitePermission> sites);
 
     @Delete
     void delete(SitePermission site);
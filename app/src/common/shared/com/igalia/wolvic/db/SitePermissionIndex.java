@@ -0,0 +1,134 @@
+package com.igalia.wolvic.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory index of the site permissions, keyed by normalized origin and category.
+ * <p>
+ * The index is rebuilt every time Room publishes the contents of the table, and updated right
+ * away when the repository writes to it, so new exceptions apply before the database catches up.
+ * The table allows several rows with the same origin and category, so each key keeps all of
+ * them and is only removed with the last one. Lookups are lock free and can be done from any thread.
+ */
+public class SitePermissionIndex {
+
+    // The lists are never modified once in the map, they are replaced.
+    private volatile ConcurrentHashMap<String, List<SitePermission>> mEntries = new ConcurrentHashMap<>();
+    private volatile boolean mLoaded = false;
+
+    SitePermissionIndex() {
+    }
+
+    private static String key(@NonNull String aUrl, @SitePermission.Category int aCategory) {
+        return aCategory + "|" + SitePermission.normalizeOrigin(aUrl, aCategory);
+    }
+
+    private static boolean isSameRow(@NonNull SitePermission aSite, @NonNull SitePermission aOther) {
+        if (aSite == aOther) {
+            return true;
+        }
+        if (aSite.id != 0 && aOther.id != 0) {
+            return aSite.id == aOther.id;
+        }
+        return aSite.url.equals(aOther.url);
+    }
+
+    private static int indexOf(@NonNull List<SitePermission> aSites, @NonNull SitePermission aSite) {
+        for (int i = 0; i < aSites.size(); i++) {
+            if (isSameRow(aSites.get(i), aSite)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the contents of the index with the rows loaded from the database.
+     */
+    void reset(@Nullable List<SitePermission> aSites) {
+        if (aSites == null) {
+            return;
+        }
+        ConcurrentHashMap<String, List<SitePermission>> entries = new ConcurrentHashMap<>(Math.max(16, aSites.size() * 2));
+        for (SitePermission site : aSites) {
+            entries.computeIfAbsent(key(site.url, site.category), key -> new ArrayList<>(1)).add(site);
+        }
+        mEntries = entries;
+        mLoaded = true;
+    }
+
+    void put(@NonNull SitePermission aSite) {
+        mEntries.compute(key(aSite.url, aSite.category), (key, sites) -> {
+            List<SitePermission> result = sites != null ? new ArrayList<>(sites) : new ArrayList<>(1);
+            int index = indexOf(result, aSite);
+            if (index >= 0) {
+                result.set(index, aSite);
+            } else {
+                result.add(aSite);
+            }
+            return result;
+        });
+    }
+
+    void putAll(@NonNull Collection<SitePermission> aSites) {
+        for (SitePermission site : aSites) {
+            put(site);
+        }
+    }
+
+    void remove(@NonNull SitePermission aSite) {
+        mEntries.computeIfPresent(key(aSite.url, aSite.category), (key, sites) -> {
+            int index = indexOf(sites, aSite);
+            if (index < 0) {
+                return sites;
+            }
+            List<SitePermission> result = new ArrayList<>(sites);
+            result.remove(index);
+            return result.isEmpty() ? null : result;
+        });
+    }
+
+    void removeAll(@NonNull Collection<SitePermission> aSites) {
+        for (SitePermission site : aSites) {
+            remove(site);
+        }
+    }
+
+    void removeCategory(@SitePermission.Category int aCategory) {
+        String prefix = aCategory + "|";
+        mEntries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * @return true once the index holds the contents of the database.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * @return The permission stored for the origin of the url in the category, or null if there is none.
+     */
+    @Nullable
+    public SitePermission get(@NonNull String aUrl, @SitePermission.Category int aCategory) {
+        List<SitePermission> sites = mEntries.get(key(aUrl, aCategory));
+        return sites != null ? sites.get(0) : null;
+    }
+
+    public boolean contains(@NonNull String aUrl, @SitePermission.Category int aCategory) {
+        return mEntries.containsKey(key(aUrl, aCategory));
+    }
+
+    /**
+     * @return The number of distinct origins and categories in the index.
+     */
+    public int size() {
+        return mEntries.size();
+    }
+}
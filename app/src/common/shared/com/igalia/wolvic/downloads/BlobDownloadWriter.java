@@ -0,0 +1,271 @@
+package com.igalia.wolvic.downloads;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import androidx.annotation.NonNull;
+
+import com.igalia.wolvic.utils.StringUtils;
+import com.igalia.wolvic.utils.SystemUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies the stream of a blob download, supplied by the engine, to a file in the background.
+ * <p>
+ * Data is written through a {@link FileChannel} in large chunks to a partial file next to the
+ * destination, which is renamed when the stream ends. The URI and size of the download are stored
+ * in a metadata file next to the partial file. If the download is cancelled the partial file is
+ * kept, so a later download of the same URI and size can resume it: the bytes already written are
+ * skipped from the new stream instead of being written again. Partial files that do not match the
+ * download are overwritten, and failed or discarded downloads delete theirs.
+ */
+class BlobDownloadWriter implements Runnable {
+
+    private static final String LOGTAG = SystemUtils.createLogtag(BlobDownloadWriter.class);
+
+    static final String PARTIAL_SUFFIX = ".part";
+    static final String METADATA_SUFFIX = ".meta";
+    // Partial files that were not resumed after this time are deleted, see deleteStalePartialFiles.
+    private static final long STALE_PARTIAL_AGE = TimeUnit.DAYS.toMillis(7);
+    private static final int MAX_METADATA_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long PROGRESS_INTERVAL = 500;
+
+    interface Callback {
+        void onProgress(@NonNull BlobDownloadWriter aWriter, long aWrittenBytes, long aTotalBytes);
+        void onCompleted(@NonNull BlobDownloadWriter aWriter, @NonNull File aFile, long aSize);
+        void onError(@NonNull BlobDownloadWriter aWriter, @NonNull String aError);
+    }
+
+    private final DownloadJob mJob;
+    private final File mFolder;
+    private final Callback mCallback;
+    private volatile boolean mCancelled = false;
+    private volatile boolean mDiscarded = false;
+
+    BlobDownloadWriter(@NonNull DownloadJob aJob, @NonNull File aFolder, @NonNull Callback aCallback) {
+        mJob = aJob;
+        mFolder = aFolder;
+        mCallback = aCallback;
+    }
+
+    @NonNull
+    DownloadJob getJob() {
+        return mJob;
+    }
+
+    /**
+     * Stops writing as soon as possible. The partial file is kept so the download can be resumed.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Stops writing as soon as possible and deletes the partial file.
+     */
+    void discard() {
+        mDiscarded = true;
+        mCancelled = true;
+    }
+
+    @Override
+    public void run() {
+        File file = getOutputFile(mFolder, mJob.getFilename());
+        File partial = new File(file.getPath() + PARTIAL_SUFFIX);
+        File metadata = new File(partial.getPath() + METADATA_SUFFIX);
+        long total = mJob.getContentLength();
+        String expectedMetadata = total + "\n" + mJob.getUri();
+        long written = partial.exists() ? partial.length() : 0;
+        if (total <= 0 || written >= total || !expectedMetadata.equals(readMetadata(metadata))) {
+            // The partial file belongs to another download or can not be checked against the stream.
+            written = 0;
+        }
+        Log.i(LOGTAG, "Will save " + mJob.getUri() + " to " + file.getName() + (written > 0 ? " from byte " + written : ""));
+
+        try (InputStream in = mJob.getInputStream();
+             RandomAccessFile output = new RandomAccessFile(partial, "rw");
+             FileChannel channel = output.getChannel()) {
+            if (in == null) {
+                throw new IOException("Missing input stream");
+            }
+            if (written == 0) {
+                writeMetadata(metadata, expectedMetadata);
+            }
+            if (written > 0 && skip(in, written) < written) {
+                throw new IOException("Stream shorter than the partial file");
+            }
+            channel.truncate(written);
+            channel.position(written);
+
+            byte[] chunk = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long lastProgress = SystemClock.uptimeMillis();
+            int filled = 0;
+            int read = 0;
+            while (!mCancelled && read >= 0) {
+                read = in.read(chunk, filled, chunk.length - filled);
+                if (read > 0) {
+                    filled += read;
+                }
+                // Only write full chunks, unless the stream ended.
+                if (filled == chunk.length || (read < 0 && filled > 0)) {
+                    buffer.limit(filled).position(0);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    written += filled;
+                    filled = 0;
+                }
+                long now = SystemClock.uptimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    mCallback.onProgress(this, written + filled, total);
+                }
+            }
+            if (!mCancelled) {
+                channel.force(false);
+            }
+
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Error when saving " + mJob.getUri() + " : " + e.getMessage());
+            partial.delete();
+            metadata.delete();
+            mCallback.onError(this, e.getMessage() != null ? e.getMessage() : e.toString());
+            return;
+        }
+
+        if (mCancelled) {
+            Log.i(LOGTAG, "Cancelled " + mJob.getUri() + " after " + written + " bytes");
+            if (mDiscarded) {
+                partial.delete();
+                metadata.delete();
+            }
+            return;
+        }
+        if (!partial.renameTo(file)) {
+            Log.e(LOGTAG, "Error when saving " + mJob.getUri() + " : can not rename " + partial.getName());
+            partial.delete();
+            metadata.delete();
+            mCallback.onError(this, "Can not rename " + partial.getName());
+            return;
+        }
+        metadata.delete();
+        Log.i(LOGTAG, "Saved " + mJob.getUri() + " to " + file.getName() + " (" + written + " bytes)");
+        mCallback.onCompleted(this, file, written);
+    }
+
+    /**
+     * Deletes the partial files of the downloads in the folder that were not resumed for a while,
+     * along with their metadata. Partial files without metadata were not written by this class.
+     */
+    static void deleteStalePartialFiles(@NonNull File aFolder) {
+        File[] files = aFolder.listFiles((dir, name) -> name.endsWith(PARTIAL_SUFFIX + METADATA_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File metadata : files) {
+            String path = metadata.getPath();
+            File partial = new File(path.substring(0, path.length() - METADATA_SUFFIX.length()));
+            long modified = Math.max(metadata.lastModified(), partial.lastModified());
+            if (now - modified >= STALE_PARTIAL_AGE) {
+                Log.i(LOGTAG, "Deleting stale partial download " + partial.getName());
+                partial.delete();
+                metadata.delete();
+            }
+        }
+    }
+
+    private static String readMetadata(@NonNull File aFile) {
+        if (!aFile.isFile() || aFile.length() > MAX_METADATA_SIZE) {
+            return null;
+        }
+        byte[] data = new byte[(int) aFile.length()];
+        try (InputStream in = new FileInputStream(aFile)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static void writeMetadata(@NonNull File aFile, @NonNull String aMetadata) throws IOException {
+        try (OutputStream out = new FileOutputStream(aFile)) {
+            out.write(aMetadata.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static long skip(@NonNull InputStream aStream, long aBytes) throws IOException {
+        long skipped = 0;
+        while (skipped < aBytes) {
+            long n = aStream.skip(aBytes - skipped);
+            if (n <= 0) {
+                // skip() may return 0 before the end of the stream, read to tell them apart.
+                if (aStream.read() < 0) {
+                    break;
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return A file in the folder with the given name that does not exist yet. Its partial file
+     * may exist, in which case the download is resumed.
+     */
+    @NonNull
+    private static File getOutputFile(@NonNull File aFolder, @NonNull String aFilename) {
+        File file = new File(aFolder, aFilename);
+        if (file.exists()) {
+            // If the file already exists, we try to generate a new one.
+            String extension = MimeTypeMap.getFileExtensionFromUrl(file.toString());
+            if (!StringUtils.isEmpty(extension)) {
+                extension = '.' + extension;
+            }
+            String name = file.getName();
+            int lastDotIndex = name.lastIndexOf('.');
+            if (lastDotIndex >= 0) {
+                name = name.substring(0, lastDotIndex);
+            }
+            int currentIndex = 0;
+            int lastDashIndex = name.lastIndexOf('-');
+            if (lastDashIndex >= 0) {
+                String nameBackup = name;
+                try {
+                    name = name.substring(0, lastDashIndex - 1);
+                    String index = name.substring(lastDashIndex + 1);
+                    currentIndex = Integer.parseInt(index);
+                } catch (Exception e) {
+                    name = nameBackup;
+                }
+            }
+            do {
+                currentIndex++;
+                file = new File(aFolder, name + '-' + currentIndex + extension);
+            } while (file.exists() || file.isDirectory());
+        }
+        return file;
+    }
+}
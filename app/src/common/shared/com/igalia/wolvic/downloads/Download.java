@@ -16,6 +16,7 @@ import com.igalia.wolvic.utils.StringUtils;
 
 import java.io.File;
 import java.net.URL;
+import java.util.Objects;
 
 public class Download {
 
@@ -83,6 +84,18 @@ public class Download {
         return download;
     }
 
+    /**
+     * @return true if the state shown for the download differs from the given one.
+     */
+    public boolean hasChangedFrom(@NonNull Download aOther) {
+        return mStatus != aOther.mStatus ||
+                mDownloadedBytes != aOther.mDownloadedBytes ||
+                mSizeBytes != aOther.mSizeBytes ||
+                !Objects.equals(mLocalUri, aOther.mLocalUri) ||
+                !Objects.equals(mTitle, aOther.mTitle) ||
+                !Objects.equals(mReason, aOther.mReason);
+    }
+
     public long getId() {
         return mId;
     }
@@ -2,47 +2,64 @@ package com.igalia.wolvic.downloads;
 
 import android.app.DownloadManager;
 import android.content.BroadcastReceiver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
-import android.webkit.MimeTypeMap;
 import android.webkit.URLUtil;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.igalia.wolvic.R;
-import com.igalia.wolvic.utils.StringUtils;
+import com.igalia.wolvic.VRBrowserApplication;
 import com.igalia.wolvic.utils.UrlUtils;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DownloadsManager {
 
     private static final String LOGTAG = DownloadsManager.class.getSimpleName();
 
-    private static final int REFRESH_INTERVAL = 100;
+    // Content URI notified by the DownloadManager provider when a download changes.
+    private static final Uri DOWNLOADS_CONTENT_URI = Uri.parse("content://downloads/my_downloads");
+    // Minimum time between refreshes, depending on whether the progress of the downloads is visible.
+    private static final long VISIBLE_REFRESH_INTERVAL = 250;
+    private static final long BACKGROUND_REFRESH_INTERVAL = 1000;
+    // Running downloads are refreshed at least this often, in case a change is not notified.
+    private static final long FALLBACK_REFRESH_INTERVAL = 5000;
 
     public interface DownloadsListener {
         default void onDownloadsUpdate(@NonNull List<Download> downloads) {}
         default void onDownloadCompleted(@NonNull Download download) {}
         default void onDownloadError(@NonNull String error, @NonNull String file) {}
+        // Progress of a blob download, the total is 0 if unknown.
+        default void onDownloadProgress(@NonNull DownloadJob job, long downloadedBytes, long totalBytes) {}
+        // A blob download completed, failed or was cancelled, no more progress will be reported for it.
+        default void onBlobDownloadEnded(@NonNull DownloadJob job) {}
+        // Listeners showing the progress of each download get more frequent updates.
+        default boolean showsDownloadsProgress() { return false; }
     }
 
     private Handler mMainHandler;
@@ -51,6 +68,16 @@ public class DownloadsManager {
     private DownloadManager mDownloadManager;
     private ScheduledThreadPoolExecutor mExecutor;
     private ScheduledFuture<?> mFuture;
+    private Executor mBlobExecutor;
+    // Blob downloads being written, by URI. Only accessed from the main thread.
+    private final HashMap<String, BlobDownloadWriter> mBlobWriters = new HashMap<>();
+    private boolean mObserverRegistered = false;
+    private final AtomicBoolean mRefreshScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean mFullRefreshPending = new AtomicBoolean(true);
+    private volatile long mLastRefreshTime = 0;
+    private volatile Set<Long> mActiveIds = Collections.emptySet();
+    // Last known state of the downloads, only accessed from the executor.
+    private LinkedHashMap<Long, Download> mSnapshot = new LinkedHashMap<>();
 
     public DownloadsManager(@NonNull Context context) {
         mMainHandler = new Handler(Looper.getMainLooper());
@@ -58,6 +85,7 @@ public class DownloadsManager {
         mListeners = new ArrayList<>();
         mDownloadManager = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
         mExecutor = new ScheduledThreadPoolExecutor(1);
+        mBlobExecutor = ((VRBrowserApplication) context.getApplicationContext()).getExecutors().networkIO();
     }
 
     public void init() {
@@ -74,10 +102,15 @@ public class DownloadsManager {
                 mDownloadManager.remove(download.getId());
             }
         });
+        // Blob downloads interrupted in previous sessions leave partial files that may never be resumed.
+        mBlobExecutor.execute(() -> BlobDownloadWriter.deleteStalePartialFiles(getBlobDownloadsFolder()));
     }
 
     public void end() {
         mContext.unregisterReceiver(mDownloadReceiver);
+        stopUpdates();
+        mBlobWriters.values().forEach(BlobDownloadWriter::cancel);
+        mBlobWriters.clear();
     }
 
     public void addListener(@NonNull DownloadsListener listener) {
@@ -95,20 +128,139 @@ public class DownloadsManager {
     }
 
     private void scheduleUpdates() {
-        if (mFuture != null) {
-            // Already scheduled
-            return;
+        if (!mObserverRegistered) {
+            try {
+                mContext.getContentResolver().registerContentObserver(DOWNLOADS_CONTENT_URI, true, mDownloadsObserver);
+                mObserverRegistered = true;
+            } catch (SecurityException e) {
+                Log.e(LOGTAG, "Error observing the downloads: " + e.getMessage());
+            }
         }
-        mFuture = mExecutor.scheduleAtFixedRate(mDownloadUpdateTask, 0, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+        requestRefresh(true);
     }
 
     private void stopUpdates() {
+        if (mObserverRegistered) {
+            mContext.getContentResolver().unregisterContentObserver(mDownloadsObserver);
+            mObserverRegistered = false;
+        }
+        mMainHandler.removeCallbacks(mFallbackRefresh);
         if (mFuture != null) {
-            mFuture.cancel(true);
+            mFuture.cancel(false);
             mFuture = null;
         }
+        mRefreshScheduled.set(false);
+        // Changes are not tracked anymore, so the next refresh needs to query all the downloads.
+        mFullRefreshPending.set(true);
     }
 
+    private long getRefreshInterval() {
+        for (DownloadsListener listener : mListeners) {
+            if (listener.showsDownloadsProgress()) {
+                return VISIBLE_REFRESH_INTERVAL;
+            }
+        }
+        return BACKGROUND_REFRESH_INTERVAL;
+    }
+
+    /**
+     * Schedules a refresh of the downloads in the executor. Requests are coalesced so there is
+     * at most one refresh per refresh interval.
+     *
+     * @param aFullRefresh Whether all the downloads need to be queried, or only the running ones.
+     */
+    private void requestRefresh(boolean aFullRefresh) {
+        if (aFullRefresh) {
+            mFullRefreshPending.set(true);
+        }
+        if (mListeners.isEmpty() || !mRefreshScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = Math.max(0, mLastRefreshTime + getRefreshInterval() - SystemClock.uptimeMillis());
+        mFuture = mExecutor.schedule(this::refreshDownloads, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshDownloads() {
+        // Changes notified from now on need another refresh.
+        mRefreshScheduled.set(false);
+        mLastRefreshTime = SystemClock.uptimeMillis();
+
+        boolean changed = false;
+        if (mFullRefreshPending.getAndSet(false)) {
+            LinkedHashMap<Long, Download> snapshot = new LinkedHashMap<>();
+            for (Download download : getDownloads()) {
+                Download previous = mSnapshot.get(download.getId());
+                changed |= previous == null || download.hasChangedFrom(previous);
+                snapshot.put(download.getId(), download);
+            }
+            changed |= snapshot.size() != mSnapshot.size();
+            mSnapshot = snapshot;
+
+        } else if (!mActiveIds.isEmpty() && mDownloadManager != null) {
+            Set<Long> missing = new HashSet<>(mActiveIds);
+            DownloadManager.Query query = new DownloadManager.Query();
+            query.setFilterById(missing.stream().mapToLong(Long::longValue).toArray());
+            Cursor c = mDownloadManager.query(query);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    Download download = Download.from(c);
+                    missing.remove(download.getId());
+                    Download previous = mSnapshot.get(download.getId());
+                    if (previous == null || download.hasChangedFrom(previous)) {
+                        mSnapshot.put(download.getId(), download);
+                        changed = true;
+                    }
+                }
+                c.close();
+            }
+            // Downloads removed from the DownloadManager.
+            for (long id : missing) {
+                mSnapshot.remove(id);
+                changed = true;
+            }
+        }
+
+        Set<Long> activeIds = new HashSet<>();
+        for (Download download : mSnapshot.values()) {
+            if (download.inProgress()) {
+                activeIds.add(download.getId());
+            }
+        }
+        mActiveIds = activeIds;
+
+        List<Download> downloads = changed ? new ArrayList<>(mSnapshot.values()) : null;
+        mMainHandler.post(() -> {
+            mMainHandler.removeCallbacks(mFallbackRefresh);
+            if (mListeners.isEmpty()) {
+                return;
+            }
+            if (downloads != null) {
+                mListeners.forEach(listener -> listener.onDownloadsUpdate(downloads));
+            }
+            if (!activeIds.isEmpty()) {
+                mMainHandler.postDelayed(mFallbackRefresh, FALLBACK_REFRESH_INTERVAL);
+            }
+        });
+    }
+
+    private final Runnable mFallbackRefresh = () -> requestRefresh(false);
+
+    private final ContentObserver mDownloadsObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange, @Nullable Uri uri) {
+            // Only the running downloads need to be queried, unless a download was added or removed.
+            long id = -1;
+            if (uri != null) {
+                try {
+                    id = ContentUris.parseId(uri);
+                } catch (NumberFormatException | UnsupportedOperationException e) {
+                    id = -1;
+                }
+            }
+            requestRefresh(id < 0 || !mActiveIds.contains(id));
+        }
+    };
+
     public void startDownload(@NonNull DownloadJob job) {
         if (UrlUtils.isBlobUri(job.getUri())) {
             downloadBlobUri(job);
@@ -150,7 +302,7 @@ public class DownloadsManager {
                 notifyDownloadError(mContext.getString(R.string.download_error_output), job.getFilename());
                 return;
             }
-            scheduleUpdates();
+            requestRefresh(true);
         }
     }
 
@@ -159,68 +311,69 @@ public class DownloadsManager {
             Log.w(LOGTAG, "Failed to download Blob URI, missing input stream: " + job.getUri());
             return;
         }
-
-        final File dir = new File(Environment.getExternalStorageDirectory() + "/" + Environment.DIRECTORY_DOWNLOADS);
-        if (dir == null) {
-            Log.e(LOGTAG, "Error when saving " + job.getUri() + " : failed to get the Downloads directory");
+        if (mBlobWriters.containsKey(job.getUri())) {
+            Log.w(LOGTAG, "Blob URI is already being downloaded: " + job.getUri());
             return;
         }
 
-        File file = new File(dir, job.getFilename());
-        if (file.exists()) {
-            // If the file already exists, we try to generate a new one.
-            String extension = MimeTypeMap.getFileExtensionFromUrl(file.toString());
-            if (!StringUtils.isEmpty(extension)) {
-                extension = '.' + extension;
-            }
-            String name = file.getName();
-            int lastDotIndex = name.lastIndexOf('.');
-            if (lastDotIndex >= 0) {
-                name = name.substring(0, lastDotIndex);
-            }
-            int currentIndex = 0;
-            int lastDashIndex = name.lastIndexOf('-');
-            if (lastDashIndex >= 0) {
-                String nameBackup = name;
-                try {
-                    name = name.substring(0, lastDashIndex - 1);
-                    String index = name.substring(lastDashIndex + 1);
-                    currentIndex = Integer.parseInt(index);
-                } catch (Exception e) {
-                    name = nameBackup;
+        final File dir = getBlobDownloadsFolder();
+        BlobDownloadWriter writer = new BlobDownloadWriter(job, dir, mBlobWriterCallback);
+        mBlobWriters.put(job.getUri(), writer);
+        mBlobExecutor.execute(writer);
+    }
+
+    /**
+     * Stops a blob download started with {@link #downloadBlobUri(DownloadJob)} and deletes its
+     * partial file. Blob downloads are not listed in the library until they complete, so this is
+     * the only way to cancel them.
+     */
+    public void cancelBlobDownload(@NonNull String uri) {
+        BlobDownloadWriter writer = mBlobWriters.remove(uri);
+        if (writer != null) {
+            writer.discard();
+            notifyBlobDownloadEnded(writer.getJob());
+        }
+    }
+
+    @NonNull
+    private static File getBlobDownloadsFolder() {
+        return new File(Environment.getExternalStorageDirectory() + "/" + Environment.DIRECTORY_DOWNLOADS);
+    }
+
+    private final BlobDownloadWriter.Callback mBlobWriterCallback = new BlobDownloadWriter.Callback() {
+        @Override
+        public void onProgress(@NonNull BlobDownloadWriter aWriter, long aWrittenBytes, long aTotalBytes) {
+            mMainHandler.post(() -> {
+                if (mBlobWriters.get(aWriter.getJob().getUri()) == aWriter) {
+                    mListeners.forEach(listener -> listener.onDownloadProgress(aWriter.getJob(), aWrittenBytes, aTotalBytes));
                 }
-            }
-            do {
-                currentIndex++;
-                file = new File(dir, name + '-' + currentIndex + extension);
-            } while (file.exists() || file.isDirectory());
-        }
-        Log.i(LOGTAG, "Will save " + job.getUri() + " to " + file.getName());
-
-        long readBytes = 0L;
-        byte[] buf = new byte[8192];
-        int n;
-        try {
-            InputStream in = job.getInputStream();
-            OutputStream out = new FileOutputStream(file, false);
-            while ((n = in.read(buf)) > 0) {
-                out.write(buf, 0, n);
-                readBytes += n;
-            }
-            out.close();
-        } catch (IOException e) {
-            Log.e(LOGTAG, "Error when saving " + job.getUri() + " : " + e.getMessage());
-            return;
+            });
         }
-        Log.i(LOGTAG, "Saved " + job.getUri() + " to " + file.getName() + " (" + readBytes + " bytes)");
 
-        // TODO: Deprecated addCompletedDownload(...), see https://github.com/Igalia/wolvic/issues/798
-        long downloadId = mDownloadManager.addCompletedDownload(file.getName(), file.getName(),
-                true, UrlUtils.getMimeTypeFromUrl(file.getPath()), file.getPath(), readBytes, true,
-                Uri.parse(job.getUri().replaceFirst("^blob:", "")), null);
+        @Override
+        public void onCompleted(@NonNull BlobDownloadWriter aWriter, @NonNull File aFile, long aSize) {
+            DownloadJob job = aWriter.getJob();
+            // TODO: Deprecated addCompletedDownload(...), see https://github.com/Igalia/wolvic/issues/798
+            long downloadId = mDownloadManager.addCompletedDownload(aFile.getName(), aFile.getName(),
+                    true, UrlUtils.getMimeTypeFromUrl(aFile.getPath()), aFile.getPath(), aSize, true,
+                    Uri.parse(job.getUri().replaceFirst("^blob:", "")), null);
+            mMainHandler.post(() -> {
+                mBlobWriters.remove(job.getUri(), aWriter);
+                notifyBlobDownloadEnded(job);
+                notifyDownloadCompleted(downloadId);
+            });
+        }
 
-        notifyDownloadCompleted(downloadId);
-    }
+        @Override
+        public void onError(@NonNull BlobDownloadWriter aWriter, @NonNull String aError) {
+            mMainHandler.post(() -> {
+                if (mBlobWriters.remove(aWriter.getJob().getUri(), aWriter)) {
+                    notifyBlobDownloadEnded(aWriter.getJob());
+                    notifyDownloadError(mContext.getString(R.string.download_error_output), aWriter.getJob().getFilename());
+                }
+            });
+        }
+    };
 
     public void removeDownload(long downloadId, boolean deleteFiles) {
         Download download = getDownload(downloadId);
@@ -247,7 +400,7 @@ public class DownloadsManager {
                 }
             }
         }
-        notifyDownloadsUpdate();
+        requestRefresh(true);
     }
 
     public void removeAllDownloads(boolean deleteFiles) {
@@ -291,10 +444,18 @@ public class DownloadsManager {
     }
 
     public boolean isDownloading() {
-        return getDownloads().stream()
-                .filter(item ->
-                        item.getStatus() == Download.RUNNING)
-                .findFirst().orElse(null) != null;
+        if (mDownloadManager == null) {
+            return false;
+        }
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterByStatus(DownloadManager.STATUS_RUNNING);
+        boolean downloading = false;
+        Cursor c = mDownloadManager.query(query);
+        if (c != null) {
+            downloading = c.getCount() > 0;
+            c.close();
+        }
+        return downloading;
     }
 
     private BroadcastReceiver mDownloadReceiver = new BroadcastReceiver() {
@@ -309,16 +470,6 @@ public class DownloadsManager {
         }
     };
 
-    private void notifyDownloadsUpdate() {
-        List<Download> downloads = getDownloads();
-        int filter = Download.RUNNING | Download.PAUSED | Download.PENDING;
-        boolean activeDownloads = downloads.stream().filter(d -> (d.getStatus() & filter) != 0).count()  > 0;
-        mListeners.forEach(listener -> listener.onDownloadsUpdate(downloads));
-        if (!activeDownloads) {
-            stopUpdates();
-        }
-    }
-
     private void notifyDownloadCompleted(@NonNull long downloadId) {
         if (mDownloadManager == null) {
             return;
@@ -330,7 +481,7 @@ public class DownloadsManager {
             return;
         }
         if (c.moveToFirst()) {
-            notifyDownloadsUpdate();
+            requestRefresh(true);
             Download download = Download.from(c);
             if (download.getStatus() == Download.SUCCESSFUL)
                 notifyDownloadCompleted(download);
@@ -348,8 +499,8 @@ public class DownloadsManager {
         mListeners.forEach(listener -> listener.onDownloadError(error, file));
     }
 
-    private Runnable mDownloadUpdateTask = () -> {
-        mMainHandler.post(this::notifyDownloadsUpdate);
-    };
+    private void notifyBlobDownloadEnded(@NonNull DownloadJob job) {
+        mListeners.forEach(listener -> listener.onBlobDownloadEnded(job));
+    }
 
 }
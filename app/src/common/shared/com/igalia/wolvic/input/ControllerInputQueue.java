@@ -0,0 +1,158 @@
+package com.igalia.wolvic.input;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Carries the controller input received from the native render loop to the UI thread.
+ * <p>
+ * Samples are written into preallocated buffers, one pair per device, and the UI thread drains
+ * all of them at once in a single message, so the render loop neither allocates nor posts a
+ * message for every event. Consecutive hover moves over the same widget are coalesced into the
+ * latest one, as are consecutive scrolls, whose deltas are added up. Presses, releases, drags
+ * and widget changes are always delivered in order.
+ * <p>
+ * Samples can be added from any thread. They are delivered on the UI thread.
+ */
+public class ControllerInputQueue {
+
+    public interface Consumer {
+        void onMotionEvent(int aHandle, int aDevice, boolean aFocused, boolean aPressed, float aX, float aY);
+        void onScrollEvent(int aHandle, int aDevice, float aX, float aY);
+        default void onSamplesDrained() {}
+    }
+
+    // Samples pending per device. It is only reached if the UI thread stalls for several frames,
+    // then the newest sample replaces the last pending one.
+    static final int CAPACITY = 64;
+    private static final int INITIAL_DEVICES = 8;
+
+    private static final int TYPE_MOTION = 0;
+    private static final int TYPE_SCROLL = 1;
+
+    private static class Samples {
+        final int[] type = new int[CAPACITY];
+        final int[] handle = new int[CAPACITY];
+        final boolean[] focused = new boolean[CAPACITY];
+        final boolean[] pressed = new boolean[CAPACITY];
+        final float[] x = new float[CAPACITY];
+        final float[] y = new float[CAPACITY];
+        int count;
+    }
+
+    private static class DeviceSamples {
+        Samples pending = new Samples();
+        Samples draining = new Samples();
+    }
+
+    private final Consumer mConsumer;
+    private final Handler mHandler;
+    private final Runnable mDrainRunnable = this::drain;
+    private DeviceSamples[] mDevices = new DeviceSamples[INITIAL_DEVICES];
+    private boolean mDrainPosted = false;
+    private int mCoalescedCount = 0;
+
+    public ControllerInputQueue(@NonNull Consumer aConsumer) {
+        mConsumer = aConsumer;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public void addMotionEvent(int aHandle, int aDevice, boolean aFocused, boolean aPressed, float aX, float aY) {
+        synchronized (this) {
+            Samples samples = getPending(aDevice);
+            int last = samples.count - 1;
+            boolean coalesce = last >= 0 && samples.type[last] == TYPE_MOTION && samples.handle[last] == aHandle &&
+                    samples.focused[last] == aFocused && !samples.pressed[last] && !aPressed;
+            add(samples, coalesce, TYPE_MOTION, aHandle, aFocused, aPressed, aX, aY);
+        }
+    }
+
+    public void addScrollEvent(int aHandle, int aDevice, float aX, float aY) {
+        synchronized (this) {
+            Samples samples = getPending(aDevice);
+            int last = samples.count - 1;
+            if (last >= 0 && samples.type[last] == TYPE_SCROLL && samples.handle[last] == aHandle) {
+                add(samples, true, TYPE_SCROLL, aHandle, false, false, samples.x[last] + aX, samples.y[last] + aY);
+            } else {
+                add(samples, false, TYPE_SCROLL, aHandle, false, false, aX, aY);
+            }
+        }
+    }
+
+    /**
+     * @return The number of samples that were merged into a later one, for debugging.
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    private Samples getPending(int aDevice) {
+        if (aDevice >= mDevices.length) {
+            DeviceSamples[] devices = new DeviceSamples[Math.max(aDevice + 1, mDevices.length * 2)];
+            System.arraycopy(mDevices, 0, devices, 0, mDevices.length);
+            mDevices = devices;
+        }
+        DeviceSamples device = mDevices[aDevice];
+        if (device == null) {
+            device = new DeviceSamples();
+            mDevices[aDevice] = device;
+        }
+        return device.pending;
+    }
+
+    private void add(Samples aSamples, boolean aCoalesce, int aType, int aHandle, boolean aFocused, boolean aPressed, float aX, float aY) {
+        int index;
+        if (aCoalesce || aSamples.count == CAPACITY) {
+            index = aSamples.count - 1;
+            mCoalescedCount++;
+        } else {
+            index = aSamples.count++;
+        }
+        aSamples.type[index] = aType;
+        aSamples.handle[index] = aHandle;
+        aSamples.focused[index] = aFocused;
+        aSamples.pressed[index] = aPressed;
+        aSamples.x[index] = aX;
+        aSamples.y[index] = aY;
+
+        if (!mDrainPosted) {
+            mDrainPosted = true;
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    private void drain() {
+        DeviceSamples[] devices;
+        synchronized (this) {
+            mDrainPosted = false;
+            devices = mDevices;
+            for (DeviceSamples device : devices) {
+                if (device != null) {
+                    Samples drained = device.pending;
+                    device.pending = device.draining;
+                    device.draining = drained;
+                }
+            }
+        }
+
+        // The drained buffers are not written until the next drain, which runs on this thread.
+        for (int deviceId = 0; deviceId < devices.length; deviceId++) {
+            DeviceSamples device = devices[deviceId];
+            if (device == null) {
+                continue;
+            }
+            Samples samples = device.draining;
+            for (int i = 0; i < samples.count; i++) {
+                if (samples.type[i] == TYPE_MOTION) {
+                    mConsumer.onMotionEvent(samples.handle[i], deviceId, samples.focused[i], samples.pressed[i], samples.x[i], samples.y[i]);
+                } else {
+                    mConsumer.onScrollEvent(samples.handle[i], deviceId, samples.x[i], samples.y[i]);
+                }
+            }
+            samples.count = 0;
+        }
+        mConsumer.onSamplesDrained();
+    }
+}
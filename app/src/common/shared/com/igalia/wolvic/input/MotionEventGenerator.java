@@ -15,15 +15,34 @@ import com.igalia.wolvic.ui.widgets.Widget;
 import com.igalia.wolvic.ui.widgets.WidgetManagerDelegate;
 import com.igalia.wolvic.utils.SystemUtils;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 
+/**
+ * Turns the controller and hand input into the MotionEvents received by the widgets.
+ * <p>
+ * Every widget being pressed gets a single touch stream, with a pointer for each device that
+ * presses on it, so several devices can touch the same widget at once without restarting the
+ * gesture. Moves of a stream are batched into one ACTION_MOVE event, with the earlier samples in
+ * its history, until {@link #flush()} is called at the end of each batch of input. Hover events
+ * are still sent for each device separately. Events are obtained from the MotionEvent pool and
+ * recycled right after being handled, and the streams are reused, so moving does not allocate
+ * once the pools are warm.
+ * <p>
+ * All the methods must be called from the UI thread.
+ */
 public class MotionEventGenerator {
     static final String LOGTAG = SystemUtils.createLogtag(MotionEventGenerator.class);
+
+    // Devices pressing on the same widget at once, more than the controllers and hands available.
+    static final int MAX_POINTERS = 8;
+
     static class Device {
         int mDevice;
         Widget mPreviousWidget = null;
-        Widget mTouchStartWidget = null;
         Widget mHoverStartWidget = null;
+        TouchStream mTouchStream = null;
         boolean mWasPressed;
         long mDownTime;
         MotionEvent.PointerProperties mProperties[];
@@ -51,14 +70,78 @@ public class MotionEventGenerator {
         }
     }
 
+    /**
+     * The touch gesture of a widget, with a pointer for each device pressing on it. Each pointer
+     * gets the lowest id not used by the other pointers of the stream, and keeps it until it is up.
+     */
+    static class TouchStream {
+        Widget mWidget;
+        long mDownTime;
+        int mPointerCount;
+        // Bit mask of the pointer ids in use.
+        int mUsedIds;
+        final Device[] mDevices = new Device[MAX_POINTERS];
+        final int[] mPointerIds = new int[MAX_POINTERS];
+        final MotionEvent.PointerProperties[] mProperties = new MotionEvent.PointerProperties[MAX_POINTERS];
+        final MotionEvent.PointerCoords[] mCoords = new MotionEvent.PointerCoords[MAX_POINTERS];
+        MotionEvent mPendingMove;
+
+        TouchStream() {
+            for (int i = 0; i < MAX_POINTERS; i++) {
+                mProperties[i] = new MotionEvent.PointerProperties();
+                mProperties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+                mCoords[i] = new MotionEvent.PointerCoords();
+            }
+        }
+
+        int indexOf(Device aDevice) {
+            for (int i = 0; i < mPointerCount; i++) {
+                if (mDevices[i] == aDevice) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int acquirePointerId() {
+            int id = Integer.numberOfTrailingZeros(~mUsedIds);
+            mUsedIds |= 1 << id;
+            return id;
+        }
+
+        void releasePointerId(int aId) {
+            mUsedIds &= ~(1 << aId);
+        }
+
+        void updatePointers() {
+            for (int i = 0; i < mPointerCount; i++) {
+                mProperties[i].id = mPointerIds[i];
+                mCoords[i].copyFrom(mDevices[i].mCoords[0]);
+            }
+        }
+    }
+
     private static SparseArray<Device> devices = new SparseArray<>();
+    private static ArrayList<TouchStream> streams = new ArrayList<>();
+    private static ArrayDeque<TouchStream> freeStreams = new ArrayDeque<>();
 
+    private static Device getDevice(int aDevice) {
+        Device device = devices.get(aDevice);
+        if (device == null) {
+            device = new Device(aDevice);
+            devices.put(aDevice, device);
+        }
+        return device;
+    }
 
-    private static void generateEvent(Widget aWidget, Device aDevice, boolean aFocused, int aAction, boolean aGeneric) {
-        generateEvent(aWidget, aDevice, aFocused, aAction, aGeneric, aDevice.mCoords);
+    private static void generateEvent(Widget aWidget, Device aDevice, boolean aFocused, int aAction) {
+        generateEvent(aWidget, aDevice, aFocused, aAction, aDevice.mCoords);
     }
 
-    private static void generateEvent(Widget aWidget, Device aDevice, boolean aFocused, int aAction, boolean aGeneric, MotionEvent.PointerCoords[] aCoords) {
+    private static void generateEvent(Widget aWidget, Device aDevice, boolean aFocused, int aAction, MotionEvent.PointerCoords[] aCoords) {
+        if (!aWidget.supportsMultipleInputDevices() && !aFocused) {
+            return;
+        }
         MotionEvent event = MotionEvent.obtain(
                 /*mDownTime*/ aDevice.mDownTime,
                 /*eventTime*/ SystemClock.uptimeMillis(),
@@ -74,25 +157,120 @@ public class MotionEventGenerator {
                 /*edgeFlags*/ 0,
                 /*source*/ InputDevice.SOURCE_TOUCHSCREEN,
                 /*flags*/ 0);
-        if (aGeneric) {
-            if (aWidget.supportsMultipleInputDevices()) {
-                aWidget.handleHoverEvent(event);
+        aWidget.handleHoverEvent(event);
+        event.recycle();
+    }
+
+    private static MotionEvent obtainTouchEvent(TouchStream aStream, int aAction, long aEventTime) {
+        aStream.updatePointers();
+        return MotionEvent.obtain(
+                /*mDownTime*/ aStream.mDownTime,
+                /*eventTime*/ aEventTime,
+                /*action*/ aAction,
+                /*pointerCount*/ aStream.mPointerCount,
+                /*pointerProperties*/ aStream.mProperties,
+                /*pointerCoords*/ aStream.mCoords,
+                /*metaState*/ 0,
+                /*buttonState*/ 0,
+                /*xPrecision*/ 0,
+                /*yPrecision*/ 0,
+                /*deviceId*/ aStream.mDevices[0].mDevice,
+                /*edgeFlags*/ 0,
+                /*source*/ InputDevice.SOURCE_TOUCHSCREEN,
+                /*flags*/ 0);
+    }
+
+    private static void generateTouchEvent(TouchStream aStream, int aAction) {
+        flushMove(aStream);
+        MotionEvent event = obtainTouchEvent(aStream, aAction, SystemClock.uptimeMillis());
+        aStream.mWidget.handleTouchEvent(event);
+        event.recycle();
+    }
 
-            } else if (aFocused) {
-                aWidget.handleHoverEvent(event);
+    private static int pointerAction(int aAction, int aIndex) {
+        return aAction | (aIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+    }
+
+    private static TouchStream getStream(Widget aWidget) {
+        for (int i = 0; i < streams.size(); i++) {
+            if (streams.get(i).mWidget == aWidget) {
+                return streams.get(i);
             }
+        }
+        TouchStream stream = freeStreams.poll();
+        if (stream == null) {
+            stream = new TouchStream();
+        }
+        stream.mWidget = aWidget;
+        stream.mDownTime = SystemClock.uptimeMillis();
+        streams.add(stream);
+        return stream;
+    }
+
+    private static void addPointer(Widget aWidget, Device aDevice) {
+        TouchStream stream = getStream(aWidget);
+        if (stream.mPointerCount == MAX_POINTERS) {
+            Log.e(LOGTAG, "Too many pointers on widget, ignoring device " + aDevice.mDevice);
+            return;
+        }
+        flushMove(stream);
+        int index = stream.mPointerCount++;
+        stream.mDevices[index] = aDevice;
+        stream.mPointerIds[index] = stream.acquirePointerId();
+        aDevice.mTouchStream = stream;
+        generateTouchEvent(stream, index == 0 ? MotionEvent.ACTION_DOWN : pointerAction(MotionEvent.ACTION_POINTER_DOWN, index));
+    }
+
+    private static void removePointer(Device aDevice, boolean aCancel) {
+        TouchStream stream = aDevice.mTouchStream;
+        if (stream == null) {
+            return;
+        }
+        int index = stream.indexOf(aDevice);
+        if (stream.mPointerCount == 1) {
+            generateTouchEvent(stream, aCancel ? MotionEvent.ACTION_CANCEL : MotionEvent.ACTION_UP);
         } else {
-            aWidget.handleTouchEvent(event);
+            generateTouchEvent(stream, pointerAction(MotionEvent.ACTION_POINTER_UP, index));
+        }
+        stream.releasePointerId(stream.mPointerIds[index]);
+        stream.mPointerCount--;
+        System.arraycopy(stream.mDevices, index + 1, stream.mDevices, index, stream.mPointerCount - index);
+        System.arraycopy(stream.mPointerIds, index + 1, stream.mPointerIds, index, stream.mPointerCount - index);
+        stream.mDevices[stream.mPointerCount] = null;
+        aDevice.mTouchStream = null;
+        if (stream.mPointerCount == 0) {
+            streams.remove(stream);
+            stream.mWidget = null;
+            freeStreams.push(stream);
+        }
+    }
+
+    private static void movePointer(Device aDevice) {
+        TouchStream stream = aDevice.mTouchStream;
+        if (stream == null) {
+            return;
         }
+        long eventTime = SystemClock.uptimeMillis();
+        if (stream.mPendingMove == null) {
+            stream.mPendingMove = obtainTouchEvent(stream, MotionEvent.ACTION_MOVE, eventTime);
+        } else {
+            stream.updatePointers();
+            stream.mPendingMove.addBatch(eventTime, stream.mCoords, 0);
+        }
+    }
+
+    private static void flushMove(TouchStream aStream) {
+        MotionEvent event = aStream.mPendingMove;
+        if (event == null) {
+            return;
+        }
+        aStream.mPendingMove = null;
+        aStream.mWidget.handleTouchEvent(event);
         event.recycle();
     }
 
     public static void dispatch(WidgetManagerDelegate widgetManager, Widget aWidget, int aDevice, boolean aFocused, boolean aPressed, float aX, float aY) {
-        Device device = devices.get(aDevice);
-        if (device == null) {
-            device = new Device(aDevice);
-            devices.put(aDevice, device);
-        }
+        Device device = getDevice(aDevice);
         boolean moving = (device.mCoords[0].x != aX) || (device.mCoords[0].y != aY);
         if (aWidget != null) {
             device.mCoords[0].x = aX;
@@ -105,11 +283,10 @@ public class MotionEventGenerator {
         }
         if (!aPressed && (device.mPreviousWidget != null) && (device.mPreviousWidget != aWidget)) {
             if (device.mWasPressed) {
-                generateEvent(device.mPreviousWidget, device, aFocused, MotionEvent.ACTION_CANCEL, false);
-                device.mTouchStartWidget = null;
+                removePointer(device, true);
                 device.mWasPressed = false;
             }
-            generateEvent(device.mPreviousWidget, device, aFocused, MotionEvent.ACTION_HOVER_EXIT, true, device.mMouseOutCoords);
+            generateEvent(device.mPreviousWidget, device, aFocused, MotionEvent.ACTION_HOVER_EXIT, device.mMouseOutCoords);
             device.mPreviousWidget = null;
             device.mHoverStartWidget = null;
         }
@@ -119,81 +296,73 @@ public class MotionEventGenerator {
             return;
         }
         if (aWidget != device.mPreviousWidget && !aPressed) {
-            generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_HOVER_ENTER, true);
+            generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_HOVER_ENTER);
             widgetManager.triggerHapticFeedback(aDevice);
             device.mHoverStartWidget = aWidget;
         }
         if (aPressed && !device.mWasPressed) {
             device.mDownTime = SystemClock.uptimeMillis();
             device.mWasPressed = true;
-            if (!isOtherDeviceDown(device.mDevice)) {
-                generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_HOVER_EXIT, true);
-                generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_DOWN, false);
-                device.mHoverStartWidget = null;
-            }
-            for (int i=0; i<devices.size(); i++) {
-                if (devices.get(i) != null && devices.get(i) != device && devices.get(i).mHoverStartWidget != null) {
-                    generateEvent(devices.get(i).mHoverStartWidget, devices.get(i), aFocused, MotionEvent.ACTION_HOVER_EXIT, true);
+            generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_HOVER_EXIT);
+            device.mHoverStartWidget = null;
+            for (int i = 0; i < devices.size(); i++) {
+                Device other = devices.valueAt(i);
+                if (other != device && other.mHoverStartWidget != null) {
+                    generateEvent(other.mHoverStartWidget, other, aFocused, MotionEvent.ACTION_HOVER_EXIT);
                 }
             }
-            device.mTouchStartWidget = aWidget;
+            addPointer(aWidget, device);
         } else if (!aPressed && device.mWasPressed) {
             device.mWasPressed = false;
-            if (!isOtherDeviceDown(device.mDevice)) {
-                generateEvent(device.mTouchStartWidget, device, aFocused, MotionEvent.ACTION_UP, false);
-                generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_HOVER_ENTER, true);
-                widgetManager.triggerHapticFeedback(aDevice);
-                device.mHoverStartWidget = aWidget;
-            }
-            device.mTouchStartWidget = null;
+            removePointer(device, false);
+            generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_HOVER_ENTER);
+            widgetManager.triggerHapticFeedback(aDevice);
+            device.mHoverStartWidget = aWidget;
         } else if (moving && aPressed) {
-            generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_MOVE, false);
+            movePointer(device);
         } else if (moving) {
-            generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_HOVER_MOVE, true);
+            generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_HOVER_MOVE);
         } else {
-            Log.e("VRB", "Unknown touch event action");
+            Log.e(LOGTAG, "Unknown touch event action");
             return;
         }
         device.mPreviousWidget = aWidget;
     }
 
     /**
-     * Checks if any other device has an ongoing touch down event.
-     * Android throw away all previous state when starting a new touch gesture
-     * and this seem to make the previous touch to be sent up the view hierarchy.
-     * To avoid this we check if any other device has a button down before sending
-     * touch down/up event.
-     * @param deviceId Device Id to filter
-     * @return true if any other device has a button down, false otherwise
+     * Sends the moves batched since the previous call. It must be called after dispatching
+     * each batch of input.
      */
-    private static boolean isOtherDeviceDown(int deviceId) {
-        boolean result = false;
-        for (int i=0; i<devices.size(); i++) {
-            if (i != deviceId) {
-                if (devices.get(i) != null) {
-                    result |= devices.get(i).mTouchStartWidget != null;
-                }
-            }
+    public static void flush() {
+        for (int i = 0; i < streams.size(); i++) {
+            flushMove(streams.get(i));
         }
-
-        return result;
     }
 
     public static void dispatchScroll(Widget aWidget, int aDevice, boolean aFocused, float aX, float aY) {
-        Device device = devices.get(aDevice);
-        if (device == null) {
-            device = new Device(aDevice);
-            devices.put(aDevice, device);
-        }
+        Device device = getDevice(aDevice);
         device.mPreviousWidget = aWidget;
         device.mCoords[0].setAxisValue(MotionEvent.AXIS_VSCROLL, aY);
         device.mCoords[0].setAxisValue(MotionEvent.AXIS_HSCROLL, aX);
-        generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_SCROLL, true);
+        generateEvent(aWidget, device, aFocused, MotionEvent.ACTION_SCROLL);
         device.mCoords[0].setAxisValue(MotionEvent.AXIS_VSCROLL, 0.0f);
         device.mCoords[0].setAxisValue(MotionEvent.AXIS_HSCROLL, 0.0f);
     }
 
     public static void clearDevices() {
+        for (int i = 0; i < streams.size(); i++) {
+            TouchStream stream = streams.get(i);
+            if (stream.mPendingMove != null) {
+                stream.mPendingMove.recycle();
+                stream.mPendingMove = null;
+            }
+            Arrays.fill(stream.mDevices, null);
+            stream.mPointerCount = 0;
+            stream.mUsedIds = 0;
+            stream.mWidget = null;
+            freeStreams.push(stream);
+        }
+        streams.clear();
         devices.clear();
     }
 }
@@ -0,0 +1,396 @@
+package com.igalia.wolvic.search.suggestions;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.igalia.wolvic.browser.BookmarksStore;
+import com.igalia.wolvic.browser.HistoryStore;
+import com.igalia.wolvic.ui.widgets.SuggestionsWidget.SuggestionItem;
+import com.igalia.wolvic.ui.widgets.SuggestionsWidget.SuggestionItem.Type;
+import com.igalia.wolvic.utils.SystemUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import mozilla.appservices.places.BookmarkRoot;
+import mozilla.components.concept.storage.BookmarkNode;
+import mozilla.components.concept.storage.BookmarkNodeType;
+import mozilla.components.concept.storage.SearchResult;
+import mozilla.components.concept.storage.VisitInfo;
+
+/**
+ * In-memory helpers to answer URL bar suggestions without hitting the Places storage on every
+ * keystroke:
+ * <ul>
+ *     <li>A trigram index over the recent history and the bookmarks, answered synchronously.</li>
+ *     <li>An LRU of the storage results for previous queries. While the user keeps typing, the
+ *     results for a longer query are filtered from the cached results of its prefix, as long as
+ *     those were not truncated by the query limit.</li>
+ * </ul>
+ * Both are invalidated through the {@link HistoryStore.HistoryListener} and
+ * {@link BookmarksStore.BookmarkListener} hooks.
+ */
+public class LocalSuggestionsIndex implements HistoryStore.HistoryListener, BookmarksStore.BookmarkListener {
+
+    private static final String LOGTAG = SystemUtils.createLogtag(LocalSuggestionsIndex.class);
+
+    // Limit used for the storage queries, the same the URL bar has always used.
+    public static final int QUERY_LIMIT = 100;
+    private static final int MAX_INDEXED_VISITS = 1000;
+    private static final int MAX_CACHED_QUERIES = 50;
+    private static final int GRAM_SIZE = 3;
+
+    private static class Entry {
+        final SuggestionItem item;
+        final String haystack;
+
+        Entry(@NonNull SuggestionItem aItem) {
+            item = aItem;
+            haystack = ((aItem.title != null ? aItem.title : "") + " " + aItem.url).toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Immutable snapshot of the trigram index, replaced as a whole when rebuilt.
+     */
+    private static class Index {
+        final List<Entry> entries;
+        final HashMap<String, List<Integer>> grams;
+
+        Index(@NonNull List<Entry> aEntries) {
+            entries = aEntries;
+            grams = new HashMap<>();
+            for (int i = 0; i < entries.size(); i++) {
+                String haystack = entries.get(i).haystack;
+                Set<String> seen = new HashSet<>();
+                for (int j = 0; j + GRAM_SIZE <= haystack.length(); j++) {
+                    String gram = haystack.substring(j, j + GRAM_SIZE);
+                    if (seen.add(gram)) {
+                        List<Integer> postings = grams.get(gram);
+                        if (postings == null) {
+                            postings = new ArrayList<>();
+                            grams.put(gram, postings);
+                        }
+                        postings.add(i);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class CachedResult {
+        final List<SuggestionItem> items;
+        final boolean complete;
+
+        CachedResult(@NonNull List<SuggestionItem> aItems, boolean aComplete) {
+            items = aItems;
+            complete = aComplete;
+        }
+    }
+
+    private volatile Index mIndex = new Index(Collections.emptyList());
+    private boolean mDirty = true;
+    private boolean mRebuilding = false;
+    private final LruCache<String, CachedResult> mHistoryCache = new LruCache<>(MAX_CACHED_QUERIES);
+    private final LruCache<String, CachedResult> mBookmarksCache = new LruCache<>(MAX_CACHED_QUERIES);
+    // Incremented when the caches are invalidated, so results of in-flight queries are not cached.
+    private volatile int mHistoryGeneration;
+    private volatile int mBookmarksGeneration;
+
+    private final HistoryStore mHistoryStore;
+    private final BookmarksStore mBookmarksStore;
+
+    public LocalSuggestionsIndex(@NonNull HistoryStore aHistoryStore, @NonNull BookmarksStore aBookmarksStore) {
+        mHistoryStore = aHistoryStore;
+        mBookmarksStore = aBookmarksStore;
+        mHistoryStore.addListener(this);
+        mBookmarksStore.addListener(this);
+    }
+
+    // HistoryListener
+
+    @Override
+    public void onHistoryUpdated() {
+        mHistoryGeneration++;
+        mHistoryCache.evictAll();
+        invalidateIndex();
+    }
+
+    // BookmarkListener
+
+    @Override
+    public void onBookmarksUpdated() {
+        mBookmarksGeneration++;
+        mBookmarksCache.evictAll();
+        invalidateIndex();
+    }
+
+    @Override
+    public void onBookmarkAdded() {
+        mBookmarksGeneration++;
+        mBookmarksCache.evictAll();
+        invalidateIndex();
+    }
+
+    private synchronized void invalidateIndex() {
+        mDirty = true;
+    }
+
+    /**
+     * Rebuilds the trigram index in the background if it is out of date. The current index keeps
+     * answering queries in the meantime.
+     */
+    private synchronized void ensureIndex() {
+        if (!mDirty || mRebuilding) {
+            return;
+        }
+        mDirty = false;
+        mRebuilding = true;
+
+        CompletableFuture<List<VisitInfo>> visits = mHistoryStore
+                .getVisitsPaginated(0, MAX_INDEXED_VISITS)
+                .exceptionally(throwable -> null);
+        CompletableFuture<List<BookmarkNode>> bookmarks = mBookmarksStore
+                .getTree(BookmarkRoot.Root.getId(), true)
+                .exceptionally(throwable -> null);
+
+        visits.thenCombineAsync(bookmarks, (visitList, bookmarkList) -> {
+            List<Entry> entries = new ArrayList<>();
+            Set<String> urls = new HashSet<>();
+            if (bookmarkList != null) {
+                addBookmarks(bookmarkList, entries, urls);
+            }
+            if (visitList != null) {
+                for (VisitInfo visit : visitList) {
+                    if (urls.add(visit.getUrl())) {
+                        entries.add(new Entry(SuggestionItem.create(
+                                visit.getTitle() != null ? visit.getTitle() : "",
+                                visit.getUrl(),
+                                null,
+                                Type.HISTORY,
+                                0)));
+                    }
+                }
+            }
+            return new Index(entries);
+
+        }).whenComplete((index, throwable) -> {
+            synchronized (LocalSuggestionsIndex.this) {
+                mRebuilding = false;
+                if (index != null) {
+                    mIndex = index;
+                } else {
+                    Log.d(LOGTAG, "Error building suggestions index: " + throwable.getLocalizedMessage());
+                    mDirty = true;
+                }
+            }
+        });
+    }
+
+    private static void addBookmarks(@NonNull List<BookmarkNode> aNodes, @NonNull List<Entry> aEntries, @NonNull Set<String> aUrls) {
+        for (BookmarkNode node : aNodes) {
+            if (node.getType() == BookmarkNodeType.ITEM) {
+                String url = node.getUrl();
+                if (isValidBookmarkUrl(url) && aUrls.add(url)) {
+                    aEntries.add(new Entry(SuggestionItem.create(
+                            node.getTitle() != null ? node.getTitle() : "",
+                            url,
+                            null,
+                            Type.BOOKMARK,
+                            0)));
+                }
+            } else if (node.getChildren() != null) {
+                addBookmarks(node.getChildren(), aEntries, aUrls);
+            }
+        }
+    }
+
+    private static boolean isValidBookmarkUrl(@Nullable String aUrl) {
+        return aUrl != null && !aUrl.startsWith("place:") && !aUrl.startsWith("about:reader");
+    }
+
+    /**
+     * Splits a query into its whitespace separated tokens, which are matched separately, as the
+     * storage does.
+     */
+    @NonNull
+    static String[] tokenize(@NonNull String aQuery) {
+        String trimmed = aQuery.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    /**
+     * @return true if the text contains every token, in any order.
+     */
+    static boolean matches(@NonNull String aHaystack, @NonNull String[] aTokens) {
+        for (String token : aTokens) {
+            if (!aHaystack.contains(token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Synchronously searches the recent history and the bookmarks.
+     *
+     * @param aQuery Lower case text typed by the user. Results contain all its tokens.
+     */
+    @NonNull
+    public List<SuggestionItem> query(@NonNull String aQuery, int aLimit) {
+        ensureIndex();
+
+        Index index = mIndex;
+        List<SuggestionItem> result = new ArrayList<>();
+        String[] tokens = tokenize(aQuery);
+        if (tokens.length == 0) {
+            return result;
+        }
+
+        // Walk the shortest posting list of the grams of all the tokens, and verify each
+        // candidate against every token. Tokens shorter than a gram are only verified.
+        List<Integer> candidates = null;
+        for (String token : tokens) {
+            for (int i = 0; i + GRAM_SIZE <= token.length(); i++) {
+                List<Integer> postings = index.grams.get(token.substring(i, i + GRAM_SIZE));
+                if (postings == null) {
+                    return result;
+                }
+                if (candidates == null || postings.size() < candidates.size()) {
+                    candidates = postings;
+                }
+            }
+        }
+
+        if (candidates == null) {
+            for (Entry entry : index.entries) {
+                if (matches(entry.haystack, tokens)) {
+                    result.add(entry.item);
+                    if (result.size() >= aLimit) {
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+        for (int id : candidates) {
+            Entry entry = index.entries.get(id);
+            if (matches(entry.haystack, tokens)) {
+                result.add(entry.item);
+                if (result.size() >= aLimit) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the cached results of the query, or narrows the cached results of the longest
+     * complete prefix of the query. Any item matching all the tokens of the query also matches
+     * the tokens of its prefixes. Returns null if the storage needs to be queried.
+     */
+    @Nullable
+    private static List<SuggestionItem> getCachedResults(@NonNull LruCache<String, CachedResult> aCache, @NonNull String aQuery) {
+        CachedResult cached = aCache.get(aQuery);
+        if (cached != null) {
+            return cached.items;
+        }
+        String[] tokens = null;
+        for (int length = aQuery.length() - 1; length > 0; length--) {
+            cached = aCache.get(aQuery.substring(0, length));
+            if (cached != null && cached.complete) {
+                if (tokens == null) {
+                    tokens = tokenize(aQuery);
+                }
+                List<SuggestionItem> narrowed = new ArrayList<>();
+                for (SuggestionItem item : cached.items) {
+                    String haystack = ((item.title != null ? item.title : "") + " " + item.url).toLowerCase(Locale.ROOT);
+                    if (matches(haystack, tokens)) {
+                        narrowed.add(item);
+                    }
+                }
+                aCache.put(aQuery, new CachedResult(narrowed, true));
+                return narrowed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link CompletableFuture#thenApply(Function)}, but cancelling the returned future also
+     * cancels the storage query, which would otherwise keep running.
+     */
+    @NonNull
+    private static <T, R> CompletableFuture<R> thenApplyCancellable(@NonNull CompletableFuture<T> aQuery, @NonNull Function<T, R> aMapper) {
+        CompletableFuture<R> result = aQuery.thenApply(aMapper);
+        result.whenComplete((items, throwable) -> {
+            if (result.isCancelled()) {
+                aQuery.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @NonNull
+    public CompletableFuture<List<SuggestionItem>> getHistorySuggestions(@NonNull String aQuery) {
+        List<SuggestionItem> cached = getCachedResults(mHistoryCache, aQuery);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        final int generation = mHistoryGeneration;
+        return thenApplyCancellable(mHistoryStore.getSuggestions(aQuery, QUERY_LIMIT), history -> {
+            List<SuggestionItem> items = new ArrayList<>();
+            for (SearchResult h : history) {
+                items.add(SuggestionItem.create(
+                        h.getTitle(),
+                        h.getUrl(),
+                        null,
+                        Type.HISTORY,
+                        h.getScore()
+                ));
+            }
+            if (generation == mHistoryGeneration) {
+                mHistoryCache.put(aQuery, new CachedResult(items, history.size() < QUERY_LIMIT));
+            }
+            return items;
+        });
+    }
+
+    @NonNull
+    public CompletableFuture<List<SuggestionItem>> getBookmarkSuggestions(@NonNull String aQuery) {
+        List<SuggestionItem> cached = getCachedResults(mBookmarksCache, aQuery);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        final int generation = mBookmarksGeneration;
+        return thenApplyCancellable(mBookmarksStore.searchBookmarks(aQuery, QUERY_LIMIT), bookmarks -> {
+            List<SuggestionItem> items = new ArrayList<>();
+            for (BookmarkNode b : bookmarks) {
+                if (isValidBookmarkUrl(b.getUrl())) {
+                    items.add(SuggestionItem.create(
+                            b.getTitle(),
+                            b.getUrl(),
+                            null,
+                            Type.BOOKMARK,
+                            0
+                    ));
+                }
+            }
+            if (generation == mBookmarksGeneration) {
+                mBookmarksCache.put(aQuery, new CachedResult(items, bookmarks.size() < QUERY_LIMIT));
+            }
+            return items;
+        });
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.igalia.wolvic.VRBrowserApplication;
 import com.igalia.wolvic.browser.engine.SessionStore;
@@ -16,11 +17,13 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
 
 public class SuggestionsProvider {
 
@@ -52,6 +55,9 @@ public class SuggestionsProvider {
     private String mFilterText;
     private Comparator<SuggestionItem> mComparator;
     private Executor mUIThreadExecutor;
+    // Incremented for every request, so results from stale requests are dropped.
+    private int mGeneration;
+    private final List<CompletableFuture<?>> mPendingQueries = new ArrayList<>();
 
     public SuggestionsProvider(Context context) {
         mSearchEngineWrapper = SearchEngineWrapper.get(context);
@@ -74,73 +80,55 @@ public class SuggestionsProvider {
         mFilterText = text.toLowerCase();
     }
 
-    public void setText(String text) { mText = text; }
+    public void setText(String text) {
+        if (!Objects.equals(mText, text)) {
+            // The user kept typing, results for the previous text are not useful anymore.
+            cancelPendingRequests();
+        }
+        mText = text;
+    }
 
     public void setComparator(Comparator<SuggestionItem> comparator) {
         mComparator = comparator;
     }
 
-    private CompletableFuture<List<SuggestionItem>> getBookmarkSuggestions(@NonNull List<SuggestionItem> items) {
-        CompletableFuture<List<SuggestionItem>> future = new CompletableFuture<>();
-        SessionStore.get().getBookmarkStore().searchBookmarks(mFilterText, 100).thenAcceptAsync((bookmarks) -> {
-            bookmarks.stream()
-                    .filter((b) -> b.getUrl() != null && !b.getUrl().startsWith("place:") &&
-                            !b.getUrl().startsWith("about:reader"))
-                    .forEach(b -> items.add(SuggestionItem.create(
-                            b.getTitle(),
-                            b.getUrl(),
-                            null,
-                            Type.BOOKMARK,
-                            0
-                    )));
-            if (mComparator != null) {
-                items.sort(mComparator);
-            }
-            future.complete(items);
-
-        }, mUIThreadExecutor).exceptionally(throwable -> {
-            Log.d(LOGTAG, "Error getting bookmarks suggestions: " + throwable.getLocalizedMessage());
-            throwable.printStackTrace();
-            future.complete(items);
-            return null;
-        });
-
-        return future;
+    /**
+     * Cancels the queries of the current request. Its future is cancelled too.
+     */
+    public void cancelPendingRequests() {
+        mGeneration++;
+        for (CompletableFuture<?> query : mPendingQueries) {
+            query.cancel(true);
+        }
+        mPendingQueries.clear();
     }
 
-    private CompletableFuture<List<SuggestionItem>> getHistorySuggestions(@NonNull final List<SuggestionItem> items) {
-        CompletableFuture<List<SuggestionItem>> future = new CompletableFuture<>();
-        SessionStore.get().getHistoryStore().getSuggestions(mFilterText, 100).thenAcceptAsync((history) -> {
-            history.forEach(h -> items.add(SuggestionItem.create(
-                            h.getTitle(),
-                            h.getUrl(),
-                            null,
-                            Type.HISTORY,
-                            h.getScore()
-                    )));
-            if (mComparator != null) {
-                items.sort(mComparator);
-            }
-            future.complete(items);
-
-        }, mUIThreadExecutor).exceptionally(throwable -> {
-            Log.d(LOGTAG, "Error getting history suggestions: " + throwable.getLocalizedMessage());
-            throwable.printStackTrace();
-            future.complete(items);
-            return null;
+    private List<SuggestionItem> getSearchEngineSuggestions(@Nullable List<String> suggestions) {
+        List<SuggestionItem> items = new ArrayList<>();
+        if (suggestions == null) {
+            return items;
+        }
+        suggestions.forEach(s -> {
+            String url = mSearchEngineWrapper.getSearchURL(s);
+            items.add(SuggestionItem.create(
+                    s,
+                    url,
+                    null,
+                    Type.SUGGESTION,
+                    0
+            ));
         });
-
-        return future;
+        return items;
     }
 
-    private CompletableFuture<List<SuggestionItem>> getSearchEngineSuggestions(@NonNull final List<SuggestionItem> items) {
-        CompletableFuture<List<SuggestionItem>> future = new CompletableFuture<>();
+    private List<SuggestionItem> getLocalSuggestions(@NonNull String text, @NonNull String filterText) {
+        List<SuggestionItem> items = new ArrayList<>();
 
         // Completion from browser-domains
-        if (!mText.equals(mFilterText) && UrlUtils.isDomain(mText)) {
+        if (!text.equals(filterText) && UrlUtils.isDomain(text)) {
             items.add(SuggestionItem.create(
-                    mText,
-                    getSearchURLOrDomain(mText),
+                    text,
+                    getSearchURLOrDomain(text),
                     null,
                     Type.COMPLETION,
                     0
@@ -149,45 +137,19 @@ public class SuggestionsProvider {
 
         // Original text
         items.add(SuggestionItem.create(
-                mFilterText,
-                getSearchURLOrDomain(mFilterText),
+                filterText,
+                getSearchURLOrDomain(filterText),
                 null,
                 Type.SUGGESTION,
                 0
         ));
 
-        // Suggestions
-        mSearchEngineWrapper.getSuggestions(mFilterText).thenAcceptAsync((suggestions) -> {
-            suggestions.forEach(s -> {
-                String url = mSearchEngineWrapper.getSearchURL(s);
-                items.add(SuggestionItem.create(
-                        s,
-                        url,
-                        null,
-                        Type.SUGGESTION,
-                        0
-                ));
-            });
-            if (mComparator != null) {
-                items.sort(mComparator);
-            }
-            future.complete(items);
-
-        }, mUIThreadExecutor).exceptionally(throwable -> {
-            Log.d(LOGTAG, "Error getting search engine suggestions: " + throwable.getLocalizedMessage());
-            throwable.printStackTrace();
-            future.complete(items);
-            return null;
-        });
-
-        return future;
+        return items;
     }
 
-    private CompletableFuture<List<SuggestionItem>> removeDuplicatedItems(@NonNull final List<SuggestionItem> items) {
-        CompletableFuture<List<SuggestionItem>> future = new CompletableFuture<>();
-
-        // Create a HashSet to store unique URLs
-        Set<String> urls = new HashSet<>();
+    private List<SuggestionItem> mergeSuggestions(@NonNull List<List<SuggestionItem>> results) {
+        List<SuggestionItem> items = new ArrayList<>();
+        results.forEach(items::addAll);
 
         // Sort before we remove duplication so that only those duplicated results
         // that appear at the bottom of the list will get removed
@@ -196,25 +158,96 @@ public class SuggestionsProvider {
         }
 
         // Filter out duplicate items based on the URL
-        List<SuggestionItem> uniqueItems = items.stream().filter(item -> {
-            if (urls.contains(item.url)) {
-                return false;
+        Set<String> urls = new HashSet<>();
+        List<SuggestionItem> uniqueItems = new ArrayList<>(items.size());
+        for (SuggestionItem item : items) {
+            if (urls.add(item.url)) {
+                uniqueItems.add(item);
             }
-            urls.add(item.url);
-            return true;
-        }).collect(Collectors.toList());
+        }
 
-        future.complete(uniqueItems);
+        return uniqueItems;
+    }
 
-        return future;
+    /**
+     * Starts a query in one of the suggestion sources. The query can be cancelled by
+     * {@link #cancelPendingRequests()}, and it never completes exceptionally.
+     */
+    private <T> CompletableFuture<List<SuggestionItem>> query(@NonNull String name,
+                                                             @NonNull CompletableFuture<T> query,
+                                                             @NonNull Function<T, List<SuggestionItem>> mapper) {
+        mPendingQueries.add(query);
+        return query.handleAsync((result, throwable) -> {
+            if (throwable != null) {
+                if (!query.isCancelled()) {
+                    Log.d(LOGTAG, "Error getting " + name + " suggestions: " + throwable.getLocalizedMessage());
+                }
+                return new ArrayList<>();
+            }
+            return mapper.apply(result);
+        }, mUIThreadExecutor);
     }
 
     public CompletableFuture<List<SuggestionItem>> getSuggestions() {
-        return CompletableFuture.supplyAsync((Supplier<ArrayList<SuggestionItem>>) ArrayList::new)
-                .thenComposeAsync(this::getSearchEngineSuggestions)
-                .thenComposeAsync(this::getBookmarkSuggestions)
-                .thenComposeAsync(this::getHistorySuggestions)
-                .thenComposeAsync(this::removeDuplicatedItems);
+        return getSuggestions(null);
+    }
+
+    /**
+     * Queries the search engine, bookmarks and history concurrently.
+     *
+     * @param partialResultsListener Called in the UI thread with the merged suggestions available
+     *                               so far, each time one of the sources completes.
+     * @return Future with the merged suggestions from all the sources. It is cancelled if the
+     * text changes or a new request starts before all the sources complete.
+     */
+    public CompletableFuture<List<SuggestionItem>> getSuggestions(@Nullable Consumer<List<SuggestionItem>> partialResultsListener) {
+        cancelPendingRequests();
+        final int generation = mGeneration;
+        final String text = mText != null ? mText : "";
+        final String filterText = mFilterText;
+
+        LocalSuggestionsIndex index = SessionStore.get().getLocalSuggestionsIndex();
+        List<List<SuggestionItem>> results = new ArrayList<>();
+        results.add(getLocalSuggestions(text, filterText));
+
+        // Matches from the in-memory index are shown right away and kept while the sources
+        // complete, the storage results are merged with them by URL after being sorted.
+        List<SuggestionItem> indexed = index.query(filterText, LocalSuggestionsIndex.QUERY_LIMIT);
+        if (!indexed.isEmpty()) {
+            results.add(indexed);
+            if (partialResultsListener != null) {
+                partialResultsListener.accept(mergeSuggestions(results));
+            }
+        }
+
+        List<CompletableFuture<List<SuggestionItem>>> sources = new ArrayList<>();
+        sources.add(query("search engine", mSearchEngineWrapper.getSuggestions(filterText), this::getSearchEngineSuggestions));
+        sources.add(query("bookmarks", index.getBookmarkSuggestions(filterText), Function.identity()));
+        sources.add(query("history", index.getHistorySuggestions(filterText), Function.identity()));
+
+        CompletableFuture<List<SuggestionItem>> result = new CompletableFuture<>();
+        final int[] pending = { sources.size() };
+        for (CompletableFuture<List<SuggestionItem>> source : sources) {
+            // Both the sources and these callbacks run in the UI thread, no need to synchronize.
+            source.thenAcceptAsync(items -> {
+                if (generation != mGeneration) {
+                    result.cancel(false);
+                    return;
+                }
+                results.add(items);
+                pending[0]--;
+                if (pending[0] > 0) {
+                    if (partialResultsListener != null) {
+                        partialResultsListener.accept(mergeSuggestions(results));
+                    }
+                } else {
+                    mPendingQueries.clear();
+                    result.complete(mergeSuggestions(results));
+                }
+            }, mUIThreadExecutor);
+        }
+
+        return result;
     }
 
 }
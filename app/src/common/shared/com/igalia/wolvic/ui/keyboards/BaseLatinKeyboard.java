@@ -15,14 +15,21 @@ import com.igalia.wolvic.utils.SystemUtils;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
 public abstract class BaseLatinKeyboard extends BaseKeyboard {
     private static final String LOGTAG = SystemUtils.createLogtag(EnglishKeyboard.class);
-    private final HashMap<String, ArrayList<Words>> mKeymaps = new HashMap<>();
+    private static final String AUTOCORRECT_TRIE_NAME = "autocorrect";
+    private static final String AUTOCORRECT_TRIE_QUERY = "SELECT word, originalFreq FROM autocorrect";
+    private static final int AUTOCORRECT_LIMIT = 20;
+    // The warm up takes the prefixes of the most frequent words, up to this length.
+    private static final int WARM_UP_WORDS = 200;
+    private static final int WARM_UP_PREFIX_LENGTH = 2;
+    private static final int WARM_UP_MAX_PREFIXES = 40;
+    private final KeymapCache<ArrayList<Words>> mKeymaps = new KeymapCache<>(KeymapCache.DEFAULT_MAX_WORDS, ArrayList::size);
     private File mDB;
 
     public BaseLatinKeyboard(Context aContext) {
@@ -117,51 +124,84 @@ public abstract class BaseLatinKeyboard extends BaseKeyboard {
             // Allow completion of numbers and symbols
             return Collections.singletonList(new Words(1, aKey, aKey));
         }
-        loadKeymapIfNotLoaded(aKey);
-        return mKeymaps.get(aKey);
+        ArrayList<Words> keymap = mKeymaps.get(aKey);
+        if (keymap == null) {
+            keymap = loadAutoCorrectTable(aKey);
+            if (keymap != null) {
+                mKeymaps.put(aKey, keymap);
+            }
+        }
+        return keymap;
     }
 
     protected void loadDatabase() {
         mDB = mContext.getDatabasePath(DictionaryUtils.getExternalDicFullName(getLocale().toString()));
     }
 
-    private void loadKeymapIfNotLoaded(String aKey) {
-        if (mKeymaps.containsKey(aKey)) {
+    @Override
+    public void warmUp() {
+        if (!usesComposingText()) {
+            return;
+        }
+        // Only warm up from the trie, querying the database for every prefix would delay the
+        // first candidates. It is compiled in the background and used the next time.
+        CompletionTrie trie = DictionaryEngine.get(mContext).getTrie(mDB, AUTOCORRECT_TRIE_NAME, AUTOCORRECT_TRIE_QUERY);
+        if (trie == null) {
             return;
         }
-        loadAutoCorrectTable(aKey);
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (String word : trie.complete("", WARM_UP_WORDS)) {
+            String key = word.toLowerCase();
+            for (int length = 1; length <= WARM_UP_PREFIX_LENGTH && length <= key.length(); length++) {
+                prefixes.add(key.substring(0, length));
+            }
+            if (prefixes.size() >= WARM_UP_MAX_PREFIXES) {
+                break;
+            }
+        }
+        for (String prefix : prefixes) {
+            if (!mKeymaps.contains(prefix)) {
+                mKeymaps.put(prefix, toKeymap(prefix, trie.complete(prefix, AUTOCORRECT_LIMIT)));
+            }
+        }
+        Log.d(LOGTAG, "Warmed up " + prefixes.size() + " prefixes: " + mKeymaps);
     }
 
-    private void loadAutoCorrectTable(String aKey) {
-        SQLiteDatabase reader = SQLiteDatabase.openDatabase(mDB.getPath(), null, SQLiteDatabase.OPEN_READONLY);;
+    @Nullable
+    private ArrayList<Words> loadAutoCorrectTable(String aKey) {
+        DictionaryEngine engine = DictionaryEngine.get(mContext);
+        CompletionTrie trie = engine.getTrie(mDB, AUTOCORRECT_TRIE_NAME, AUTOCORRECT_TRIE_QUERY);
+        if (trie != null) {
+            return toKeymap(aKey, trie.complete(aKey, AUTOCORRECT_LIMIT));
+        }
+
+        // The trie is still being compiled.
+        SQLiteDatabase reader = engine.getDatabase(mDB);
+        if (reader == null) {
+            return null;
+        }
         String[] sqliteArgs = new String[1];
         sqliteArgs[0] = aKey.toLowerCase() + "%";
-        try (Cursor cursor = reader.rawQuery("SELECT word FROM autocorrect where LOWER(word) LIKE ? ORDER BY originalFreq DESC LIMIT 20", sqliteArgs)) {
-            if (!cursor.moveToFirst()) {
-                addToKeyMap(aKey, null);
-                return;
-            }
-            do {
+        List<String> words = new ArrayList<>();
+        try (Cursor cursor = reader.rawQuery("SELECT word FROM autocorrect where LOWER(word) LIKE ? ORDER BY originalFreq DESC LIMIT " + AUTOCORRECT_LIMIT, sqliteArgs)) {
+            while (cursor.moveToNext()) {
                 String word = getString(cursor, 0);
                 if (word == null || word.isEmpty()) {
                     Log.e(LOGTAG, "code is null for " + aKey);
                     continue;
                 }
-                addToKeyMap(aKey, word);
-            } while (cursor.moveToNext());
+                words.add(word);
+            }
         }
+        return toKeymap(aKey, words);
     }
 
-    private void addToKeyMap(String aKey, String aCode) {
-        if (aKey == null || aKey.isEmpty()) {
-            Log.e(LOGTAG, "key is null");
-            return;
-        }
-        ArrayList<Words> keyMap = mKeymaps.computeIfAbsent(aKey, k -> new ArrayList<>());
-
-        if (aCode != null && !aCode.isEmpty()) {
-            keyMap.add(new Words(1, aKey, aCode + " "));
+    private ArrayList<Words> toKeymap(String aKey, List<String> aWords) {
+        ArrayList<Words> keymap = new ArrayList<>(aWords.size());
+        for (String word : aWords) {
+            keymap.add(new Words(1, aKey, word + " "));
         }
+        return keymap;
     }
 
     private String getString(Cursor aCursor, int aIndex) {
@@ -30,9 +30,10 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
     private CustomKeyboard mKeyboard;
     private CustomKeyboard mSymbolsKeyboard;
     private SymbolList mSymbolsConverter;  // For Emoji characters.
-    private List<Words> mEmojiList = null;
+    // Written by the candidates thread and read by getComposingText() on the UI thread.
+    private volatile List<Words> mEmojiList = null;
     private File mDB;
-    private HashMap<String, KeyMap> mKeymaps = new HashMap<>();
+    private final KeymapCache<KeyMap> mKeymaps = new KeymapCache<>(KeymapCache.DEFAULT_MAX_WORDS, KeyMap::size);
     private HashMap<String, KeyMap> mExtraKeymaps = new HashMap<>();
 
     public ChinesePinyinKeyboard(Context aContext) {
@@ -185,8 +186,9 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
 
     @Override
     public String getComposingText(String aComposing, String aCode) {
-        if (mEmojiList != null) {
-            for (Words word : mEmojiList) {
+        List<Words> emojiList = mEmojiList;
+        if (emojiList != null) {
+            for (Words word : emojiList) {
                 if (word.code.equals(aCode)) {
                     return "";
                 }
@@ -299,9 +301,11 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
             // Allow completion of uppercase letters, numbers and symbols
             return Collections.singletonList(new Words(1, aKey, aKey));
         }
-        loadKeymapIfNotLoaded(aKey);
         KeyMap map = mKeymaps.get(aKey);
-        return map != null ? map.displays : null;
+        if (map == null) {
+            map = loadKeymap(aKey);
+        }
+        return map.displays;
     }
 
 
@@ -344,26 +348,44 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
         addExtraKeyMap("z", "z", "z|Z");
     }
 
-    private void loadKeymapIfNotLoaded(String aKey) {
-        if (mKeymaps.containsKey(aKey)) {
+    @Override
+    public void warmUp() {
+        if (!usesComposingText()) {
             return;
         }
-        loadKeymapTable(aKey);
-        loadAutoCorrectTable(aKey);
-        KeyMap extra = mExtraKeymaps.get(aKey);
-        if (extra != null) {
-            KeyMap map = mKeymaps.get(aKey);
-            if (map != null) {
-                map.displays.addAll(extra.displays);
-                map.candidates.addAll(extra.candidates);
+        // Every syllable starts with one of the letters of the extra keymaps.
+        int loaded = 0;
+        for (String key : mExtraKeymaps.keySet()) {
+            if (!mKeymaps.contains(key)) {
+                loadKeymap(key);
+                loaded++;
             }
         }
+        Log.d(LOGTAG, "Warmed up " + loaded + " prefixes: " + mKeymaps);
+    }
+
+    @NonNull
+    private KeyMap loadKeymap(String aKey) {
+        KeyMap map = new KeyMap();
+        loadKeymapTable(aKey, map);
+        loadAutoCorrectTable(aKey, map);
+        KeyMap extra = mExtraKeymaps.get(aKey);
+        if (map.size() > 0 && extra != null) {
+            map.displays.addAll(extra.displays);
+            map.candidates.addAll(extra.candidates);
+        }
+        // Empty results are cached too, so keys without words are not queried again.
+        mKeymaps.put(aKey, map);
+        return map;
     }
 
     private final String[] sqliteArgs = new String[1];
 
-    private void loadKeymapTable(String aKey) {
-        SQLiteDatabase reader = SQLiteDatabase.openDatabase(mDB.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    private void loadKeymapTable(String aKey, KeyMap aKeyMap) {
+        SQLiteDatabase reader = DictionaryEngine.get(mContext).getDatabase(mDB);
+        if (reader == null) {
+            return;
+        }
         sqliteArgs[0] = aKey;
         try (Cursor cursor = reader.rawQuery("SELECT keymap, display, candidates FROM keymaps where keymap = ? ORDER BY _id ASC", sqliteArgs)) {
             if (!cursor.moveToFirst()) {
@@ -373,13 +395,16 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
                 String key = getString(cursor, 0);
                 String displays = getString(cursor, 1);
                 String candidates = getString(cursor, 2);
-                addToKeyMap(key, key, displays, candidates);
+                addToKeyMap(aKeyMap, key, key, displays, candidates);
             } while (cursor.moveToNext());
         }
     }
 
-    private void loadAutoCorrectTable(String aKey) {
-        SQLiteDatabase reader = SQLiteDatabase.openDatabase(mDB.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    private void loadAutoCorrectTable(String aKey, KeyMap aKeyMap) {
+        SQLiteDatabase reader = DictionaryEngine.get(mContext).getDatabase(mDB);
+        if (reader == null) {
+            return;
+        }
         sqliteArgs[0] = aKey;
         try  (Cursor cursor = reader.rawQuery("SELECT inputcode, displaycode, display FROM autocorrect where inputcode = ? ORDER BY _id ASC", sqliteArgs)) {
             if (!cursor.moveToFirst()) {
@@ -389,17 +414,12 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
                 String key = getString(cursor, 0);
                 String code = getString(cursor, 1);
                 String displays = getString(cursor, 2);
-                addToKeyMap(key, code, displays);
+                addToKeyMap(aKeyMap, key, code, displays, null);
             } while (cursor.moveToNext());
         }
     }
 
-
-    private void addToKeyMap(String aKey, String aCode, String aDisplays) {
-        addToKeyMap(aKey, aCode, aDisplays, null);
-    }
-
-    private void addToKeyMap(String aKey, String aCode, String aDisplays, String aCandidates) {
+    private void addToKeyMap(KeyMap aKeyMap, String aKey, String aCode, String aDisplays, String aCandidates) {
         if (aKey == null || aKey.isEmpty()) {
             Log.e(LOGTAG, "Pinyin key is null");
             return;
@@ -408,16 +428,11 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
             Log.e(LOGTAG, "Pinyin code is null");
             return;
         }
-        KeyMap keyMap = mKeymaps.get(aKey);
-        if (keyMap == null) {
-            keyMap = new KeyMap();
-            mKeymaps.put(aKey, keyMap);
-        }
 
         if (aDisplays != null && !aDisplays.isEmpty()) {
             String[] displayList = aDisplays.split("\\|");
             for (String display: displayList) {
-                keyMap.displays.add(new Words(syllableCount(aCode), aCode, display));
+                aKeyMap.displays.add(new Words(syllableCount(aCode), aCode, display));
             }
         }
 
@@ -425,7 +440,7 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
         if (aCandidates != null && !aCandidates.isEmpty()) {
             String[] candidateList = aCandidates.split("\\|");
             for (String candidate: candidateList) {
-                keyMap.candidates.add(new Words(syllableCount(aCode), aCode, candidate));
+                aKeyMap.candidates.add(new Words(syllableCount(aCode), aCode, candidate));
             }
         }
 
@@ -477,6 +492,9 @@ public class ChinesePinyinKeyboard extends BaseKeyboard {
     class KeyMap {
         ArrayList<Words> displays = new ArrayList<>();
         ArrayList<Words> candidates = new ArrayList<>();
+        int size() {
+            return displays.size() + candidates.size();
+        }
     }
 
     @Override
@@ -33,11 +33,14 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
     private CustomKeyboard mKeyboard;
     private CustomKeyboard mSymbolsKeyboard;
     private SymbolList mSymbolsConverter;  // For Emoji characters.
-    private List<Words> mEmojiList = null;
+    // Written by the candidates thread and read by getComposingText() on the UI thread.
+    private volatile List<Words> mEmojiList = null;
     private File mWordDB;
     private File mPhraseDB;
-    private HashMap<String, KeyMap> mKeymaps = new HashMap<>();
+    private final KeymapCache<KeyMap> mKeymaps = new KeymapCache<>(KeymapCache.DEFAULT_MAX_WORDS, map -> map.displays.size());
     private HashMap<String, Words> mKeyCodes = new HashMap<>();
+    // Set by warmUp() when the keyboard is activated, cleared by the first request of candidates.
+    private boolean mJustActivated = false;
     private final String[] sqliteArgs = new String[2];
     private final String[] roughSqliteArgs = new String[3];
 
@@ -86,6 +89,7 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
         if (lastChar.matches(nonZhuyinReg)) {
             CandidatesResult result = new CandidatesResult();
             result.words = getDisplays(aComposingText);
+            mJustActivated = false;
             result.action = CandidatesResult.Action.AUTO_COMPOSE;
             result.composing = aComposingText;
             return result;
@@ -94,6 +98,7 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
         ArrayList<Words> words = new ArrayList<>();
         if (aComposingText.length() > 0) {
             List<Words> displays = getDisplays(aComposingText);
+            mJustActivated = false;
             if (displays != null && displays.size() > 0) {
                 words.addAll(displays);
             }
@@ -157,8 +162,9 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
             return aComposing.replaceFirst(Pattern.quote(aCode), "");
         }
 
-        if (mEmojiList != null) {
-            for (Words word : mEmojiList) {
+        List<Words> emojiList = mEmojiList;
+        if (emojiList != null) {
+            for (Words word : emojiList) {
                 if (word.code.equals(aCode)) {
                     return "";
                 }
@@ -231,18 +237,23 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
 
     private List<Words> getDisplays(String aKey) {
         // Allow completion of uppercase/lowercase letters numbers, and symbols
-        // aKey.length() > 1 only happens when switching from other keyboard.
+        // aKey.length() > 1 right after activation happens when switching from other keyboard.
         if (aKey.matches(nonZhuyinReg) ||
-                (aKey.length() > 1 && mKeymaps.size() == 0)) {
+                (aKey.length() > 1 && mJustActivated)) {
             return Collections.singletonList(new Words(1, aKey, aKey));
         }
 
         String code = aKey.replaceAll(nonZhuyinReg, "");
+        if (code.isEmpty()) {
+            return Collections.singletonList(new Words(1, aKey, aKey));
+        }
         code = GetTransCode(code);
-        loadKeymapIfNotLoaded(code);
         KeyMap map = mKeymaps.get(code);
-
         if (map == null) {
+            map = loadKeymapTable(code);
+        }
+
+        if (map == null || map.displays.isEmpty()) {
             return Collections.singletonList(new Words(1, aKey, aKey));
         }
         // When detecting special symbols at the last character, and
@@ -332,15 +343,38 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
         addKeyCode("ˉ", "44", "ˉ");
     }
 
-    private void loadKeymapIfNotLoaded(String aKey) {
-        if (mKeymaps.containsKey(aKey)) {
+    @Override
+    public void warmUp() {
+        if (!usesComposingText()) {
             return;
         }
-        loadKeymapTable(aKey);
+        mJustActivated = true;
+        // Preload the words starting with each symbol, the tones can not start a syllable.
+        final char firstKeyCodeInTones = '4';
+        int loaded = 0;
+        for (Words keyCode : mKeyCodes.values()) {
+            if (keyCode.code.charAt(0) != firstKeyCodeInTones && !mKeymaps.contains(keyCode.code)) {
+                loadKeymapTable(keyCode.code);
+                loaded++;
+            }
+        }
+        Log.d(LOGTAG, "Warmed up " + loaded + " prefixes: " + mKeymaps);
     }
 
-    private void loadKeymapTable(String aKey) {
-        SQLiteDatabase reader = SQLiteDatabase.openDatabase(mWordDB.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    @NonNull
+    private KeyMap loadKeymapTable(String aKey) {
+        KeyMap map = new KeyMap();
+        queryKeymapTable(aKey, map);
+        // Empty results are cached too, so codes without words are not queried again.
+        mKeymaps.put(aKey, map);
+        return map;
+    }
+
+    private void queryKeymapTable(String aKey, KeyMap aKeyMap) {
+        SQLiteDatabase reader = DictionaryEngine.get(mContext).getDatabase(mWordDB);
+        if (reader == null) {
+            return;
+        }
         String transCode = aKey;
         int limit = 50;
         boolean exactQuery = false;
@@ -363,7 +397,7 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
                 do {
                     String key = getString(cursor, 0);
                     String displays = getString(cursor, 1);
-                    addToKeyMap(aKey, key, displays);
+                    addToKeyMap(aKeyMap, aKey, key, displays);
                     --limit;
                 } while (limit >= 0 && cursor.moveToNext());
             }
@@ -382,7 +416,7 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
                     do {
                         String key = getString(cursor, 0);
                         String word = getString(cursor, 1);
-                        addToKeyMap(aKey, key, word);
+                        addToKeyMap(aKeyMap, aKey, key, word);
                         --limit;
                     } while (limit >= 0 && cursor.moveToNext());
                 }
@@ -396,7 +430,10 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
         }
 
         // Query phrase
-        reader = SQLiteDatabase.openDatabase(mPhraseDB.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        reader = DictionaryEngine.get(mContext).getDatabase(mPhraseDB);
+        if (reader == null) {
+            return;
+        }
         sqliteArgs[0] = transCode + '%';
         sqliteArgs[1] = "" + limit;
         try (Cursor cursor = reader.rawQuery("SELECT code, word FROM phrases_" + transCode.substring(0, 2)
@@ -405,7 +442,7 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
                 do {
                     String key = getString(cursor, 0);
                     String word = getString(cursor, 1);
-                    addToKeyMap(aKey, key, word);
+                    addToKeyMap(aKeyMap, aKey, key, word);
                     --limit;
                 } while (limit >= 0 && cursor.moveToNext());
             }
@@ -414,7 +451,7 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
         }
     }
 
-    private void addToKeyMap(String aKey, String aCode, String aDisplays) {
+    private void addToKeyMap(KeyMap aKeyMap, String aKey, String aCode, String aDisplays) {
         if (aKey == null || aKey.isEmpty()) {
             Log.e(LOGTAG, "Zhuyin key is null");
             return;
@@ -423,17 +460,12 @@ public class ChineseZhuyinKeyboard extends BaseKeyboard {
             Log.e(LOGTAG, "Zhuyin code is null");
             return;
         }
-        KeyMap keyMap = mKeymaps.get(aKey);
-        if (keyMap == null) {
-            keyMap = new KeyMap();
-            mKeymaps.put(aKey, keyMap);
-        }
 
         if (aDisplays != null && !aDisplays.isEmpty()) {
             String[] displayList = aDisplays.split("\\|");
             if (displayList != null) {
                 for (String display: displayList) {
-                    keyMap.displays.add(new Words(syllableCount(aCode), aCode, display));
+                    aKeyMap.displays.add(new Words(syllableCount(aCode), aCode, display));
                 }
             }
         }
@@ -0,0 +1,235 @@
+package com.igalia.wolvic.ui.keyboards;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Prefix trie of dictionary words, compiled once into a file and memory-mapped, that returns
+ * the most frequent completions of a prefix.
+ * <p>
+ * Every node stores the highest frequency found in its subtree, so the completions are found
+ * with a best-first walk that only visits the branches that can still contribute to the result.
+ * <p>
+ * File layout, big endian:
+ * <pre>
+ * header: int magic, int format version, int root node offset
+ * node:   int max frequency, short word count, short child count,
+ *         word count * int word offset, child count * (char, int node offset) sorted by char
+ * word:   int frequency, short length, length * char
+ * </pre>
+ */
+class CompletionTrie {
+
+    private static final int MAGIC = 0x57545249;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final ByteBuffer mBuffer;
+    private final int mRoot;
+
+    private CompletionTrie(@NonNull ByteBuffer aBuffer) throws IOException {
+        mBuffer = aBuffer;
+        if (aBuffer.capacity() < HEADER_SIZE || aBuffer.getInt(0) != MAGIC || aBuffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Invalid trie file");
+        }
+        mRoot = aBuffer.getInt(8);
+    }
+
+    /**
+     * Maps a compiled trie file into memory.
+     */
+    @NonNull
+    static CompletionTrie load(@NonNull File aFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(aFile, "r");
+             FileChannel channel = file.getChannel()) {
+            return new CompletionTrie(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return Up to aLimit words starting with aPrefix, ignoring case, from the most to the
+     * least frequent.
+     */
+    @NonNull
+    List<String> complete(@NonNull String aPrefix, int aLimit) {
+        String prefix = aPrefix.toLowerCase(Locale.ROOT);
+        int node = mRoot;
+        for (int i = 0; i < prefix.length() && node >= 0; i++) {
+            node = findChild(node, prefix.charAt(i));
+        }
+        if (node < 0) {
+            return Collections.emptyList();
+        }
+
+        // Entries are {frequency, offset, isWord}, the most frequent first.
+        PriorityQueue<int[]> queue = new PriorityQueue<>((a, b) -> Integer.compare(b[0], a[0]));
+        queue.add(new int[] { mBuffer.getInt(node), node, 0 });
+        List<String> result = new ArrayList<>(aLimit);
+        while (!queue.isEmpty() && result.size() < aLimit) {
+            int[] entry = queue.poll();
+            if (entry[2] == 1) {
+                result.add(readWord(entry[1]));
+                continue;
+            }
+            int offset = entry[1];
+            int wordCount = mBuffer.getShort(offset + 4) & 0xFFFF;
+            int childCount = mBuffer.getShort(offset + 6) & 0xFFFF;
+            int position = offset + 8;
+            for (int i = 0; i < wordCount; i++, position += 4) {
+                int word = mBuffer.getInt(position);
+                queue.add(new int[] { mBuffer.getInt(word), word, 1 });
+            }
+            for (int i = 0; i < childCount; i++, position += 6) {
+                int child = mBuffer.getInt(position + 2);
+                queue.add(new int[] { mBuffer.getInt(child), child, 0 });
+            }
+        }
+        return result;
+    }
+
+    private int findChild(int aNode, char aChar) {
+        int wordCount = mBuffer.getShort(aNode + 4) & 0xFFFF;
+        int childCount = mBuffer.getShort(aNode + 6) & 0xFFFF;
+        int children = aNode + 8 + wordCount * 4;
+        int low = 0;
+        int high = childCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char c = mBuffer.getChar(children + middle * 6);
+            if (c < aChar) {
+                low = middle + 1;
+            } else if (c > aChar) {
+                high = middle - 1;
+            } else {
+                return mBuffer.getInt(children + middle * 6 + 2);
+            }
+        }
+        return -1;
+    }
+
+    private String readWord(int aOffset) {
+        int length = mBuffer.getShort(aOffset + 4) & 0xFFFF;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(aOffset + 6 + i * 2);
+        }
+        return new String(chars);
+    }
+
+    private static class BuilderWord {
+        final String word;
+        final int frequency;
+        int offset;
+
+        BuilderWord(String aWord, int aFrequency) {
+            word = aWord;
+            frequency = aFrequency;
+        }
+    }
+
+    private static class BuilderNode {
+        final TreeMap<Character, BuilderNode> children = new TreeMap<>();
+        final List<BuilderWord> words = new ArrayList<>(1);
+        int maxFrequency = Integer.MIN_VALUE;
+        int offset;
+
+        int size() {
+            return 8 + words.size() * 4 + children.size() * 6;
+        }
+    }
+
+    /**
+     * Compiles the words returned by a query into a trie file.
+     *
+     * @param aQuery Query returning the word in the first column and its frequency in the second one.
+     */
+    static void compile(@NonNull SQLiteDatabase aDatabase, @NonNull String aQuery, @NonNull File aOutput) throws IOException {
+        BuilderNode root = new BuilderNode();
+        try (Cursor cursor = aDatabase.rawQuery(aQuery, null)) {
+            while (cursor.moveToNext()) {
+                if (cursor.isNull(0)) {
+                    continue;
+                }
+                String word = cursor.getString(0);
+                if (word.isEmpty() || word.length() > Short.MAX_VALUE) {
+                    continue;
+                }
+                BuilderWord entry = new BuilderWord(word, cursor.isNull(1) ? 0 : cursor.getInt(1));
+                String key = word.toLowerCase(Locale.ROOT);
+                BuilderNode node = root;
+                node.maxFrequency = Math.max(node.maxFrequency, entry.frequency);
+                for (int i = 0; i < key.length(); i++) {
+                    node = node.children.computeIfAbsent(key.charAt(i), c -> new BuilderNode());
+                    node.maxFrequency = Math.max(node.maxFrequency, entry.frequency);
+                }
+                if (node.words.size() < 0xFFFF) {
+                    node.words.add(entry);
+                }
+            }
+        }
+
+        // Assign the offsets in breadth-first order, then the words after all the nodes.
+        List<BuilderNode> nodes = new ArrayList<>();
+        ArrayDeque<BuilderNode> pending = new ArrayDeque<>();
+        pending.add(root);
+        int offset = HEADER_SIZE;
+        while (!pending.isEmpty()) {
+            BuilderNode node = pending.poll();
+            node.offset = offset;
+            offset += node.size();
+            nodes.add(node);
+            pending.addAll(node.children.values());
+        }
+        for (BuilderNode node : nodes) {
+            node.words.sort((a, b) -> Integer.compare(b.frequency, a.frequency));
+            for (BuilderWord word : node.words) {
+                word.offset = offset;
+                offset += 6 + word.word.length() * 2;
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(aOutput)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(root.offset);
+            for (BuilderNode node : nodes) {
+                out.writeInt(node.maxFrequency);
+                out.writeShort(node.words.size());
+                out.writeShort(node.children.size());
+                for (BuilderWord word : node.words) {
+                    out.writeInt(word.offset);
+                }
+                for (Map.Entry<Character, BuilderNode> child : node.children.entrySet()) {
+                    out.writeChar(child.getKey());
+                    out.writeInt(child.getValue().offset);
+                }
+            }
+            for (BuilderNode node : nodes) {
+                for (BuilderWord word : node.words) {
+                    out.writeInt(word.frequency);
+                    out.writeShort(word.word.length());
+                    out.writeChars(word.word);
+                }
+            }
+        }
+    }
+}
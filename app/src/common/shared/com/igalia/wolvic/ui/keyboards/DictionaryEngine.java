@@ -0,0 +1,196 @@
+package com.igalia.wolvic.ui.keyboards;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.igalia.wolvic.VRBrowserApplication;
+import com.igalia.wolvic.utils.SystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Shared access to the keyboard dictionaries.
+ * <p>
+ * Each dictionary database is opened once and kept open, instead of once per lookup. Tables
+ * that are searched by prefix can also be compiled into a {@link CompletionTrie}, which is
+ * built in the background the first time it is requested for a given version of the
+ * dictionary file and then reused from the cache directory.
+ */
+public class DictionaryEngine {
+
+    private static final String LOGTAG = SystemUtils.createLogtag(DictionaryEngine.class);
+
+    private static final String TRIES_FOLDER = "dictionaries";
+
+    private static DictionaryEngine mInstance;
+
+    public static synchronized DictionaryEngine get(@NonNull Context aContext) {
+        if (mInstance == null) {
+            mInstance = new DictionaryEngine(aContext.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    private static class Connection {
+        final SQLiteDatabase database;
+        final String version;
+
+        Connection(@NonNull SQLiteDatabase aDatabase, @NonNull String aVersion) {
+            database = aDatabase;
+            version = aVersion;
+        }
+    }
+
+    private static class TrieEntry {
+        final String version;
+        volatile CompletionTrie trie;
+
+        TrieEntry(@NonNull String aVersion) {
+            version = aVersion;
+        }
+    }
+
+    private final Context mContext;
+    private final Executor mExecutor;
+    private final HashMap<String, Connection> mConnections = new HashMap<>();
+    private final HashMap<String, TrieEntry> mTries = new HashMap<>();
+
+    private DictionaryEngine(@NonNull Context aContext) {
+        mContext = aContext;
+        mExecutor = ((VRBrowserApplication) aContext).getExecutors().diskIO();
+    }
+
+    // Dictionaries can be downloaded again, so the size and modification time identify their version.
+    private static String getVersion(@NonNull File aFile) {
+        return aFile.length() + "-" + aFile.lastModified();
+    }
+
+    /**
+     * @return A read only connection to the dictionary, or null if it does not exist or can not be opened.
+     */
+    @Nullable
+    public synchronized SQLiteDatabase getDatabase(@NonNull File aFile) {
+        String path = aFile.getPath();
+        Connection connection = mConnections.get(path);
+        if (!aFile.exists()) {
+            if (connection != null) {
+                mConnections.remove(path);
+                connection.database.close();
+            }
+            return null;
+        }
+
+        String version = getVersion(aFile);
+        if (connection != null) {
+            if (connection.version.equals(version) && connection.database.isOpen()) {
+                return connection.database;
+            }
+            mConnections.remove(path);
+            connection.database.close();
+        }
+
+        try {
+            SQLiteDatabase database = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+            mConnections.put(path, new Connection(database, version));
+            return database;
+
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error opening dictionary " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the compiled trie for a table of the dictionary. If it is not available yet it
+     * is loaded or compiled in the background and null is returned, so callers should fall
+     * back to query the database meanwhile.
+     *
+     * @param aName Name of the trie, unique for each dictionary.
+     * @param aQuery Query returning the words in the first column and their frequency in the second.
+     */
+    @Nullable
+    synchronized CompletionTrie getTrie(@NonNull File aFile, @NonNull String aName, @NonNull String aQuery) {
+        if (!aFile.exists()) {
+            return null;
+        }
+        String key = aFile.getPath() + "#" + aName;
+        String version = getVersion(aFile);
+        TrieEntry entry = mTries.get(key);
+        if (entry != null && entry.version.equals(version)) {
+            return entry.trie;
+        }
+
+        TrieEntry newEntry = new TrieEntry(version);
+        mTries.put(key, newEntry);
+        mExecutor.execute(() -> newEntry.trie = loadOrCompileTrie(aFile, aName, aQuery, version));
+        return null;
+    }
+
+    @Nullable
+    private CompletionTrie loadOrCompileTrie(@NonNull File aFile, @NonNull String aName, @NonNull String aQuery, @NonNull String aVersion) {
+        File folder = new File(mContext.getCacheDir(), TRIES_FOLDER);
+        if (!folder.exists() && !folder.mkdirs()) {
+            Log.e(LOGTAG, "Error creating the dictionaries cache folder");
+            return null;
+        }
+        String prefix = aFile.getName() + "." + aName + ".";
+        File trieFile = new File(folder, prefix + Integer.toHexString(aVersion.hashCode()) + ".trie");
+
+        // Remove the tries compiled for previous versions of the dictionary.
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(prefix) && !file.equals(trieFile)) {
+                    file.delete();
+                }
+            }
+        }
+
+        if (trieFile.exists()) {
+            try {
+                return CompletionTrie.load(trieFile);
+            } catch (Exception e) {
+                Log.e(LOGTAG, "Error loading dictionary trie, compiling it again: " + e.getMessage());
+                trieFile.delete();
+            }
+        }
+
+        SQLiteDatabase database = getDatabase(aFile);
+        if (database == null) {
+            return null;
+        }
+        File tempFile = new File(folder, trieFile.getName() + ".tmp");
+        try {
+            long start = System.currentTimeMillis();
+            CompletionTrie.compile(database, aQuery, tempFile);
+            if (!tempFile.renameTo(trieFile)) {
+                throw new IOException("Can not rename " + tempFile.getName());
+            }
+            Log.d(LOGTAG, "Compiled " + trieFile.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+            return CompletionTrie.load(trieFile);
+
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Error compiling dictionary trie: " + e.getMessage());
+            tempFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Closes all the dictionary connections. They are opened again when needed.
+     */
+    public synchronized void closeAll() {
+        for (Connection connection : mConnections.values()) {
+            connection.database.close();
+        }
+        mConnections.clear();
+    }
+}
@@ -53,4 +53,6 @@ public interface KeyboardInterface {
     String getEnterKeyText(int aIMEOptions, String aComposingText);
     String getModeChangeKeyText();
     default @Nullable void clear() {}
+    // Preloads the candidates of the most common prefixes. Called from the candidates thread when the keyboard is activated.
+    default void warmUp() {}
 }
\ No newline at end of file
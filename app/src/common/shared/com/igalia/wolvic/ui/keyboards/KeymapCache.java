@@ -0,0 +1,120 @@
+package com.igalia.wolvic.ui.keyboards;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Size bounded cache of the keymaps loaded from a keyboard dictionary, keyed by the typed prefix.
+ * <p>
+ * The size of the cache is the number of words held by its entries, so the bound does not
+ * depend on how many candidates each prefix has. The least recently used prefixes are evicted
+ * first. Lookups are counted so the hit rate can be checked in the logs.
+ * <p>
+ * It is not thread safe, keyboards only use it from the candidates thread: in getCandidates(),
+ * getEmojiCandidates() and warmUp(). Other keyboard methods, like getComposingText() and the key
+ * text getters, are still called from the UI thread and must not touch the cache.
+ */
+class KeymapCache<V> {
+
+    // Around a few hundred prefixes with the usual number of candidates.
+    static final int DEFAULT_MAX_WORDS = 4096;
+
+    private final LinkedHashMap<String, V> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ToIntFunction<V> mWordCount;
+    private final int mMaxWords;
+    private int mWords;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param aMaxWords Maximum number of words held by all the entries.
+     * @param aWordCount Returns the number of words of an entry.
+     */
+    KeymapCache(int aMaxWords, @NonNull ToIntFunction<V> aWordCount) {
+        mMaxWords = aMaxWords;
+        mWordCount = aWordCount;
+    }
+
+    // Empty entries still count, so prefixes without results are bounded too.
+    private int sizeOf(@NonNull V aValue) {
+        return Math.max(1, mWordCount.applyAsInt(aValue));
+    }
+
+    /**
+     * @return The cached entry for the prefix, marking it as the most recently used one.
+     */
+    @Nullable
+    V get(@NonNull String aKey) {
+        V value = mEntries.get(aKey);
+        if (value != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the prefix is cached. It does not count as a lookup nor updates the
+     * eviction order.
+     */
+    boolean contains(@NonNull String aKey) {
+        return mEntries.containsKey(aKey);
+    }
+
+    void put(@NonNull String aKey, @NonNull V aValue) {
+        V previous = mEntries.put(aKey, aValue);
+        if (previous != null) {
+            mWords -= sizeOf(previous);
+        }
+        mWords += sizeOf(aValue);
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, V>> iterator = mEntries.entrySet().iterator();
+        // Always keep the newest entry, even if it is bigger than the whole cache.
+        while (mWords > mMaxWords && mEntries.size() > 1 && iterator.hasNext()) {
+            Map.Entry<String, V> eldest = iterator.next();
+            mWords -= sizeOf(eldest.getValue());
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    void clear() {
+        mEntries.clear();
+        mWords = 0;
+    }
+
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    int getMissCount() {
+        return mMissCount;
+    }
+
+    int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        int lookups = mHitCount + mMissCount;
+        return "KeymapCache[entries=" + mEntries.size() + ",words=" + mWords + "/" + mMaxWords +
+                ",hits=" + mHitCount + ",misses=" + mMissCount + ",evictions=" + mEvictionCount +
+                ",hitRate=" + (lookups > 0 ? 100 * mHitCount / lookups : 0) + "%]";
+    }
+}
@@ -11,6 +11,7 @@ import androidx.lifecycle.MediatorLiveData;
 import com.igalia.wolvic.VRBrowserApplication;
 import com.igalia.wolvic.db.DataRepository;
 import com.igalia.wolvic.db.SitePermission;
+import com.igalia.wolvic.db.SitePermissionIndex;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -49,10 +50,18 @@ public class SitePermissionViewModel extends AndroidViewModel {
         return result;
     }
 
+    public SitePermissionIndex getIndex() {
+        return mRepository.getSitePermissionIndex();
+    }
+
     public void insertSite(@NonNull SitePermission site) {
         mRepository.insertSitePermission(site);
     }
 
+    public void insertSites(@NonNull List<SitePermission> sites) {
+        mRepository.insertSitePermissions(sites);
+    }
+
     public void deleteSite(@NonNull SitePermission site) {
         mRepository.deleteSitePermission(site);
     }
@@ -439,6 +439,11 @@ public class DownloadsView extends LibraryView implements DownloadsManager.Downl
         mBinding.executePendingBindings();
     }
 
+    @Override
+    public boolean showsDownloadsProgress() {
+        return true;
+    }
+
     @Override
     public void onDownloadError(@NonNull String error, @NonNull String filename) {
         Log.e(LOGTAG, error);
@@ -0,0 +1,245 @@
+package com.igalia.wolvic.ui.views.library;
+
+import androidx.annotation.NonNull;
+
+import com.igalia.wolvic.utils.SystemUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import mozilla.components.concept.storage.VisitInfo;
+import mozilla.components.concept.storage.VisitType;
+
+/**
+ * Sectioned list of the history visits shown by {@link HistoryView}.
+ * <p>
+ * Visits are loaded in pages from the newest to the oldest and only the most recent visit of
+ * each URL is kept. Section headers are inserted as visits are added, so the list is never
+ * sorted or rebuilt as a whole: older pages are appended at the bottom and new visits are
+ * inserted at the top.
+ */
+class HistorySectionsModel {
+
+    private static final int SECTION_TODAY = 0;
+    private static final int SECTION_YESTERDAY = 1;
+    private static final int SECTION_LAST_WEEK = 2;
+    private static final int SECTION_OLDER = 3;
+
+    private final String[] mSectionTitles;
+    private final long mTodayLimit;
+    private final long mYesterdayLimit;
+    private final long mOneWeekLimit;
+    private final long[] mHeaderIds;
+
+    private final List<VisitInfo> mItems = new ArrayList<>();
+    private final HashMap<String, VisitInfo> mVisitsByUrl = new HashMap<>();
+    // Number of visits read from the storage, including duplicates. Used as the page offset.
+    private long mOffset = 0;
+    private boolean mHasMore = true;
+    private long mNewestVisitTime = Long.MIN_VALUE;
+    private int mLastSection = -1;
+    // Set when visits are removed locally, the offset does not match the storage anymore.
+    private boolean mOutOfDate = false;
+
+    /**
+     * @param aSectionTitles Titles of the today, yesterday, last week and older sections.
+     * @param aTodayLimit Start of the current day, in milliseconds.
+     */
+    HistorySectionsModel(@NonNull String[] aSectionTitles, long aTodayLimit) {
+        mSectionTitles = aSectionTitles;
+        mTodayLimit = aTodayLimit;
+        mYesterdayLimit = aTodayLimit - SystemUtils.ONE_DAY_MILLIS;
+        mOneWeekLimit = aTodayLimit - SystemUtils.ONE_WEEK_MILLIS;
+        // The start of each section is used as the header id, as it was before.
+        mHeaderIds = new long[] { Long.MAX_VALUE, mTodayLimit, mYesterdayLimit, mOneWeekLimit };
+    }
+
+    /**
+     * @return true if the sections were computed for a different day.
+     */
+    boolean isStale(long aTodayLimit) {
+        return mTodayLimit != aTodayLimit;
+    }
+
+    long getOffset() {
+        return mOffset;
+    }
+
+    boolean hasMore() {
+        return mHasMore && !mOutOfDate;
+    }
+
+    boolean isEmpty() {
+        return mVisitsByUrl.isEmpty();
+    }
+
+    /**
+     * @return a copy of the visits and section headers, in display order.
+     */
+    @NonNull
+    List<VisitInfo> getItems() {
+        return new ArrayList<>(mItems);
+    }
+
+    static boolean isHeader(@NonNull VisitInfo aItem) {
+        return aItem.getVisitType() == VisitType.TYPED;
+    }
+
+    private int sectionOf(long aVisitTime) {
+        if (aVisitTime >= mTodayLimit) {
+            return SECTION_TODAY;
+        } else if (aVisitTime >= mYesterdayLimit) {
+            return SECTION_YESTERDAY;
+        } else if (aVisitTime >= mOneWeekLimit) {
+            return SECTION_LAST_WEEK;
+        }
+        return SECTION_OLDER;
+    }
+
+    private VisitInfo createHeader(int aSection) {
+        return new VisitInfo(
+                mSectionTitles[aSection],
+                mSectionTitles[aSection],
+                mHeaderIds[aSection],
+                VisitType.TYPED,
+                null,
+                false
+        );
+    }
+
+    /**
+     * Appends a page of visits older than the ones already loaded.
+     *
+     * @param aPage Visits returned by the storage, sorted from the newest to the oldest.
+     * @param aRequested Size of the requested page, if fewer visits are returned there are no more.
+     */
+    void appendPage(@NonNull List<VisitInfo> aPage, long aRequested) {
+        mOffset += aPage.size();
+        mHasMore = aPage.size() >= aRequested;
+        for (VisitInfo visit : aPage) {
+            if (mVisitsByUrl.containsKey(visit.getUrl())) {
+                continue;
+            }
+            int section = sectionOf(visit.getVisitTime());
+            if (section != mLastSection) {
+                mItems.add(createHeader(section));
+                mLastSection = section;
+            }
+            mItems.add(visit);
+            mVisitsByUrl.put(visit.getUrl(), visit);
+            mNewestVisitTime = Math.max(mNewestVisitTime, visit.getVisitTime());
+        }
+    }
+
+    /**
+     * Merges the first page of visits after the history changed. Visits newer than the ones
+     * already loaded are inserted at the top and updated titles are replaced in place.
+     *
+     * @param aPage First page of visits, sorted from the newest to the oldest.
+     * @param aRequested Size of the requested page.
+     * @return false if the loaded visits do not match the storage anymore, e.g. because some
+     * visits were deleted, and the model needs to be reloaded.
+     */
+    boolean mergeFirstPage(@NonNull List<VisitInfo> aPage, long aRequested) {
+        if (mOutOfDate) {
+            return false;
+        }
+        List<VisitInfo> newer = new ArrayList<>();
+        List<VisitInfo> older = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (VisitInfo visit : aPage) {
+            if (visit.getVisitTime() > mNewestVisitTime) {
+                newer.add(visit);
+            } else if (seen.add(visit.getUrl())) {
+                older.add(visit);
+            }
+        }
+
+        // The already known visits at the start of the page must be the ones at the top of the list.
+        int index = 0;
+        for (int i = 0; i < mItems.size() && index < older.size(); i++) {
+            VisitInfo item = mItems.get(i);
+            if (isHeader(item)) {
+                continue;
+            }
+            VisitInfo visit = older.get(index++);
+            if (item.getVisitTime() != visit.getVisitTime() || !Objects.equals(item.getUrl(), visit.getUrl())) {
+                return false;
+            }
+            if (!Objects.equals(item.getTitle(), visit.getTitle())) {
+                mItems.set(i, visit);
+                mVisitsByUrl.put(visit.getUrl(), visit);
+            }
+        }
+        if (index < older.size() && !mHasMore) {
+            return false;
+        }
+        if (aPage.size() < aRequested && older.size() != mVisitsByUrl.size()) {
+            return false;
+        }
+
+        // Insert from the oldest to the newest so the newest visit ends up at the top.
+        for (int i = newer.size() - 1; i >= 0; i--) {
+            prepend(newer.get(i));
+        }
+        mOffset += newer.size();
+        return true;
+    }
+
+    /**
+     * Removes the visit of a URL which is being deleted from the storage, wherever it is in the
+     * list. The number of visits deleted from the pages already read is unknown, so no more pages
+     * are loaded and the next merge fails, so the model is reloaded.
+     */
+    void removeVisitsFor(@NonNull String aUrl) {
+        VisitInfo visit = mVisitsByUrl.get(aUrl);
+        if (visit != null) {
+            remove(visit);
+            mOutOfDate = true;
+        }
+    }
+
+    private void prepend(@NonNull VisitInfo aVisit) {
+        VisitInfo existing = mVisitsByUrl.get(aVisit.getUrl());
+        if (existing != null) {
+            remove(existing);
+        }
+
+        int section = sectionOf(aVisit.getVisitTime());
+        if (!mItems.isEmpty() && mItems.get(0).getVisitTime() == mHeaderIds[section] && isHeader(mItems.get(0))) {
+            mItems.add(1, aVisit);
+        } else {
+            mItems.add(0, createHeader(section));
+            mItems.add(1, aVisit);
+            if (mLastSection < 0) {
+                mLastSection = section;
+            }
+        }
+        mVisitsByUrl.put(aVisit.getUrl(), aVisit);
+        mNewestVisitTime = Math.max(mNewestVisitTime, aVisit.getVisitTime());
+    }
+
+    private void remove(@NonNull VisitInfo aVisit) {
+        int index = mItems.indexOf(aVisit);
+        if (index < 0) {
+            return;
+        }
+        mItems.remove(index);
+        mVisitsByUrl.remove(aVisit.getUrl());
+
+        // Drop the section header if it has no visits left.
+        boolean sectionEnded = index == mItems.size() || isHeader(mItems.get(index));
+        if (index > 0 && isHeader(mItems.get(index - 1)) && sectionEnded) {
+            mItems.remove(index - 1);
+        }
+        if (mItems.isEmpty()) {
+            mLastSection = -1;
+        } else if (sectionEnded && index >= mItems.size()) {
+            mLastSection = sectionOf(mItems.get(mItems.size() - 1).getVisitTime());
+        }
+    }
+}
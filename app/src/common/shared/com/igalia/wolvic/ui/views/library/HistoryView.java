@@ -46,18 +46,12 @@ import com.igalia.wolvic.utils.SystemUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Calendar;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 import mozilla.components.concept.storage.VisitInfo;
-import mozilla.components.concept.storage.VisitType;
 import mozilla.components.concept.sync.AccountObserver;
 import mozilla.components.concept.sync.AuthFlowError;
 import mozilla.components.concept.sync.AuthType;
@@ -73,11 +67,20 @@ public class HistoryView extends LibraryView implements HistoryStore.HistoryList
 
     private static final boolean ACCOUNTS_UI_ENABLED = false;
 
+    private static final long HISTORY_PAGE_SIZE = 100;
+    // Number of rows left below the visible ones when the next page is requested.
+    private static final int HISTORY_PREFETCH_DISTANCE = 20;
+
     private HistoryBinding mBinding;
     private Accounts mAccounts;
     private HistoryAdapter mHistoryAdapter;
     private ClearHistoryDialogWidget mClearHistoryDialog;
     private HistoryViewModel mViewModel;
+    private HistorySectionsModel mHistoryModel;
+    private boolean mIsLoadingHistory;
+    private boolean mNeedsRefresh;
+    private boolean mNeedsReload;
+    private long mReloadCount;
 
     public HistoryView(Context aContext, @NonNull LibraryPanel delegate) {
         super(aContext, delegate);
@@ -121,6 +124,7 @@ public class HistoryView extends LibraryView implements HistoryStore.HistoryList
             return false;
         });
         mBinding.historyList.addOnScrollListener(mScrollListener);
+        mBinding.historyList.addOnScrollListener(mPagingScrollListener);
         mBinding.historyList.setHasFixedSize(true);
         mBinding.historyList.setItemViewCacheSize(20);
         // Drawing Cache is deprecated in API level 28: https://developer.android.com/reference/android/view/View#getDrawingCache().
@@ -142,6 +146,9 @@ public class HistoryView extends LibraryView implements HistoryStore.HistoryList
         mBinding.setIsAccountsUIEnabled(ACCOUNTS_UI_ENABLED);
         mBinding.executePendingBindings();
 
+        if (mHistoryModel != null) {
+            showHistory(mHistoryModel.getItems());
+        }
         updateHistory();
 
         setOnTouchListener((v, event) -> {
@@ -155,6 +162,7 @@ public class HistoryView extends LibraryView implements HistoryStore.HistoryList
         SessionStore.get().getHistoryStore().removeListener(this);
 
         mBinding.historyList.removeOnScrollListener(mScrollListener);
+        mBinding.historyList.removeOnScrollListener(mPagingScrollListener);
 
         if (ACCOUNTS_UI_ENABLED) {
             mAccounts.removeAccountListener(mAccountListener);
@@ -187,6 +195,11 @@ public class HistoryView extends LibraryView implements HistoryStore.HistoryList
         public void onDelete(View view, VisitInfo item) {
             mBinding.historyList.requestFocusFromTouch();
 
+            // The visit may be beyond the first page, which is the only one checked by refreshes.
+            if (mHistoryModel != null) {
+                mHistoryModel.removeVisitsFor(item.getUrl());
+                showHistory(mHistoryModel.getItems());
+            }
             SessionStore.get().getHistoryStore().deleteVisitsFor(item.getUrl());
         }
 
@@ -363,65 +376,135 @@ public class HistoryView extends LibraryView implements HistoryStore.HistoryList
         }
     };
 
-    @NonNull
-    public static <T> Predicate<T> distinctByUrl(Function<? super T, ?> keyExtractor) {
-        Set<Object> seen = ConcurrentHashMap.newKeySet();
-        return t -> seen.add(keyExtractor.apply(t));
-    }
-
-    private void updateHistory() {
+    private long getTodayLimit() {
         Calendar date = new GregorianCalendar();
         date.set(Calendar.HOUR_OF_DAY, 0);
         date.set(Calendar.MINUTE, 0);
         date.set(Calendar.SECOND, 0);
         date.set(Calendar.MILLISECOND, 0);
+        return date.getTimeInMillis();
+    }
 
-        long todayLimit = date.getTimeInMillis();
-        long yesterdayLimit = todayLimit - SystemUtils.ONE_DAY_MILLIS;
-        long oneWeekLimit = todayLimit - SystemUtils.ONE_WEEK_MILLIS;
+    private void updateHistory() {
+        long todayLimit = getTodayLimit();
+        if (mHistoryModel == null || mHistoryModel.isStale(todayLimit)) {
+            reloadHistory(todayLimit, HISTORY_PAGE_SIZE);
+        } else {
+            refreshHistory();
+        }
+    }
 
-        SessionStore.get().getHistoryStore().getDetailedHistory().thenAcceptAsync((items) -> {
-            List<VisitInfo> orderedItems = items.stream()
-                    .sorted(Comparator.comparing(VisitInfo::getVisitTime)
-                            .reversed())
-                    .filter(distinctByUrl(VisitInfo::getUrl))
-                    .collect(Collectors.toList());
+    /**
+     * Replaces the model with the given number of the most recent visits.
+     */
+    private void reloadHistory(long todayLimit, long count) {
+        if (mIsLoadingHistory) {
+            mNeedsRefresh = true;
+            return;
+        }
+        mIsLoadingHistory = true;
 
-            addSection(orderedItems, getResources().getString(R.string.history_section_today), Long.MAX_VALUE, todayLimit);
-            addSection(orderedItems, getResources().getString(R.string.history_section_yesterday), todayLimit, yesterdayLimit);
-            addSection(orderedItems, getResources().getString(R.string.history_section_last_week), yesterdayLimit, oneWeekLimit);
-            addSection(orderedItems, getResources().getString(R.string.history_section_older), oneWeekLimit, 0);
+        String[] sectionTitles = new String[] {
+                getResources().getString(R.string.history_section_today),
+                getResources().getString(R.string.history_section_yesterday),
+                getResources().getString(R.string.history_section_last_week),
+                getResources().getString(R.string.history_section_older)
+        };
 
-            showHistory(orderedItems);
+        SessionStore.get().getHistoryStore().getVisitsPaginated(0, count).thenAcceptAsync((items) -> {
+            mHistoryModel = new HistorySectionsModel(sectionTitles, todayLimit);
+            mHistoryModel.appendPage(items != null ? items : Collections.emptyList(), count);
+            showHistory(mHistoryModel.getItems());
 
         }, mUIThreadExecutor).exceptionally(throwable -> {
             Log.d(LOGTAG, "Error getting history: " + throwable.getLocalizedMessage());
             throwable.printStackTrace();
             return null;
-        });
+        }).thenRunAsync(this::onHistoryRequestFinished, mUIThreadExecutor);
+    }
+
+    /**
+     * Adds the new visits at the top of the list, or reloads the visits loaded so far if the
+     * history changed in some other way.
+     */
+    private void refreshHistory() {
+        if (mIsLoadingHistory) {
+            mNeedsRefresh = true;
+            return;
+        }
+        mIsLoadingHistory = true;
+
+        final HistorySectionsModel model = mHistoryModel;
+        SessionStore.get().getHistoryStore().getVisitsPaginated(0, HISTORY_PAGE_SIZE).thenAcceptAsync((items) -> {
+            if (model.mergeFirstPage(items != null ? items : Collections.emptyList(), HISTORY_PAGE_SIZE)) {
+                showHistory(model.getItems());
+            } else {
+                mNeedsReload = true;
+                mReloadCount = Math.max(HISTORY_PAGE_SIZE, model.getOffset());
+            }
+
+        }, mUIThreadExecutor).exceptionally(throwable -> {
+            Log.d(LOGTAG, "Error refreshing history: " + throwable.getLocalizedMessage());
+            throwable.printStackTrace();
+            return null;
+        }).thenRunAsync(this::onHistoryRequestFinished, mUIThreadExecutor);
     }
 
-    private void addSection(final @NonNull List<VisitInfo> items, @NonNull String section, long rangeStart, long rangeEnd) {
-        for (int i = 0; i < items.size(); i++) {
-            if (items.get(i).getVisitTime() == rangeStart && items.get(i).getVisitType() == VisitType.TYPED)
-                break;
-
-            if (items.get(i).getVisitTime() < rangeStart && items.get(i).getVisitTime() > rangeEnd) {
-                items.add(i, new VisitInfo(
-                        section,
-                        section,
-                        rangeStart,
-                        VisitType.TYPED,
-                        null,
-                        false
-                ));
-                break;
+    private void loadNextHistoryPage() {
+        if (mIsLoadingHistory || mHistoryModel == null || !mHistoryModel.hasMore()) {
+            return;
+        }
+        mIsLoadingHistory = true;
+
+        final HistorySectionsModel model = mHistoryModel;
+        SessionStore.get().getHistoryStore().getVisitsPaginated(model.getOffset(), HISTORY_PAGE_SIZE).thenAcceptAsync((items) -> {
+            model.appendPage(items != null ? items : Collections.emptyList(), HISTORY_PAGE_SIZE);
+            showHistory(model.getItems());
+
+        }, mUIThreadExecutor).exceptionally(throwable -> {
+            Log.d(LOGTAG, "Error getting history page: " + throwable.getLocalizedMessage());
+            throwable.printStackTrace();
+            return null;
+        }).thenRunAsync(this::onHistoryRequestFinished, mUIThreadExecutor);
+    }
+
+    private void onHistoryRequestFinished() {
+        mIsLoadingHistory = false;
+        if (mNeedsReload) {
+            // The refresh found that the loaded visits are out of date, reload as many as before.
+            mNeedsReload = false;
+            mNeedsRefresh = false;
+            reloadHistory(getTodayLimit(), mReloadCount);
+
+        } else if (mNeedsRefresh) {
+            mNeedsRefresh = false;
+            updateHistory();
+
+        } else {
+            maybeLoadNextHistoryPage();
+        }
+    }
+
+    private void maybeLoadNextHistoryPage() {
+        if (mBinding.historyList.getLayoutManager() instanceof LinearLayoutManager) {
+            LinearLayoutManager layoutManager = (LinearLayoutManager) mBinding.historyList.getLayoutManager();
+            if (layoutManager.findLastVisibleItemPosition() >= mHistoryAdapter.getItemCount() - HISTORY_PREFETCH_DISTANCE) {
+                loadNextHistoryPage();
             }
         }
     }
 
+    private final RecyclerView.OnScrollListener mPagingScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            if (dy > 0) {
+                maybeLoadNextHistoryPage();
+            }
+        }
+    };
+
     private void showHistory(List<VisitInfo> historyItems) {
-        if (historyItems == null || historyItems.size() == 0) {
+        if (historyItems == null || historyItems.stream().allMatch(HistorySectionsModel::isHeader)) {
             mViewModel.setIsEmpty(true);
             mViewModel.setIsLoading(false);
 
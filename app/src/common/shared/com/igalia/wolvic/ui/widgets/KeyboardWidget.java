@@ -45,6 +45,7 @@ import com.igalia.wolvic.speech.SpeechRecognizer;
 import com.igalia.wolvic.telemetry.TelemetryService;
 import com.igalia.wolvic.ui.keyboards.ChinesePinyinKeyboard;
 import com.igalia.wolvic.ui.keyboards.ChineseZhuyinKeyboard;
+import com.igalia.wolvic.ui.keyboards.DictionaryEngine;
 import com.igalia.wolvic.ui.keyboards.DanishKeyboard;
 import com.igalia.wolvic.ui.keyboards.DutchKeyboard;
 import com.igalia.wolvic.ui.keyboards.EnglishKeyboard;
@@ -71,6 +72,11 @@ import com.igalia.wolvic.utils.ViewUtils;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 
 public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKeyboardActionListener, AutoCompletionView.Delegate,
@@ -95,6 +101,12 @@ public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKey
     private WindowWidget mAttachedWindow;
     private InputConnection mInputConnection;
     private CompletableFuture<Void> mPostInputCmd;
+    private ExecutorService mCandidatesExecutor;
+    // Set when the widget is released, the candidates executor is not created again afterwards.
+    private boolean mCandidatesReleased = false;
+    private Future<?> mCandidatesTask;
+    // Incremented for every candidates request, results of older requests are dropped.
+    private final AtomicInteger mCandidatesGeneration = new AtomicInteger();
     private EditorInfo mEditorInfo = new EditorInfo();
     private VoiceSearchWidget mVoiceSearchWidget;
     private AutoCompletionView mAutoCompletionView;
@@ -380,6 +392,19 @@ public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKey
         mWidgetManager.removeFocusChangeListener(this);
         mAutoCompletionView.setDelegate(null);
         mAttachedWindow = null;
+        cancelCandidatesRequests();
+        final DictionaryEngine dictionaries = DictionaryEngine.get(getContext());
+        synchronized (this) {
+            mCandidatesReleased = true;
+            if (mCandidatesExecutor != null) {
+                // Close the dictionaries after the tasks already queued, they may still be using them.
+                mCandidatesExecutor.execute(dictionaries::closeAll);
+                mCandidatesExecutor.shutdown();
+                mCandidatesExecutor = null;
+            } else {
+                dictionaries.closeAll();
+            }
+        }
         super.releaseWidget();
     }
 
@@ -496,7 +521,7 @@ public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKey
             mWidgetManager.updateWidget(this);
         }
 
-        mCurrentKeyboard.clear();
+        postCandidatesCommand(mCurrentKeyboard::clear);
         updateCandidates(ResetComposingText.No);
         updateSpecialKeyLabels();
     }
@@ -864,9 +889,13 @@ public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKey
     }
 
     private void handleEmojiInput() {
-        final KeyboardInterface.CandidatesResult candidates = mCurrentKeyboard.getEmojiCandidates(mComposingText);
-        setAutoCompletionVisible(candidates != null && candidates.words.size() > 0);
-        mAutoCompletionView.setItems(candidates != null ? candidates.words : null);
+        final KeyboardInterface keyboard = mCurrentKeyboard;
+        final String composingText = mComposingText;
+        requestCandidates(() -> keyboard.getEmojiCandidates(composingText), (generation, candidates) -> postUICommand(() -> {
+            if (isCurrentCandidatesRequest(generation)) {
+                showCandidates(candidates);
+            }
+        }));
     }
 
     private void handleDomain() {
@@ -964,6 +993,7 @@ public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKey
         handleShift(false);
         hideOverlays();
         updateCandidates(ResetComposingText.No);
+        postCandidatesCommand(mCurrentKeyboard::warmUp);
 
         String spaceText = mCurrentKeyboard.getSpaceKeyText(mComposingText).toUpperCase();
         mCurrentKeyboard.getAlphabeticKeyboard().setSpaceKeyLabel(spaceText);
@@ -1201,38 +1231,48 @@ public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKey
 
     private void updateCandidates(ResetComposingText resetComposingText) {
         if (mInputConnection == null || !mCurrentKeyboard.supportsAutoCompletion()) {
+            cancelCandidatesRequests();
             setAutoCompletionVisible(false);
             updateSpecialKeyLabels();
             return;
         }
 
-        if (mCurrentKeyboard.usesComposingText()) {
+        final KeyboardInterface keyboard = mCurrentKeyboard;
+        if (keyboard.usesComposingText()) {
+            // The composing text is updated in the input thread, so read it from there.
             postInputCommand(() -> {
-                final KeyboardInterface.CandidatesResult candidates = mCurrentKeyboard.getCandidates(mComposingText);
-                postUICommand(() -> {
-                    setAutoCompletionVisible(candidates != null && candidates.words.size() > 0);
-                    mAutoCompletionView.setItems(candidates != null ? candidates.words : null);
-                });
-                if (candidates != null && candidates.action == KeyboardInterface.CandidatesResult.Action.AUTO_COMPOSE) {
-                    postUICommand(() -> setAutoCompletionVisible(false));
-                    onAutoCompletionItemClick(candidates.words.get(0));
-                } else if (candidates != null) {
-                     displayComposingText(candidates.composing, ComposingAction.DO_NOT_FINISH);
-                } else if (resetComposingText == ResetComposingText.Yes) {
-                    mComposingText = "";
-                    displayComposingText("", ComposingAction.FINISH);
-                }
+                final String composingText = mComposingText;
+                requestCandidates(() -> keyboard.getCandidates(composingText), (generation, candidates) -> postUICommand(() -> {
+                    if (!isCurrentCandidatesRequest(generation)) {
+                        return;
+                    }
+                    showCandidates(candidates);
+                    postInputCommand(() -> {
+                        if (!isCurrentCandidatesRequest(generation)) {
+                            return;
+                        }
+                        if (candidates != null && candidates.action == KeyboardInterface.CandidatesResult.Action.AUTO_COMPOSE) {
+                            postUICommand(() -> setAutoCompletionVisible(false));
+                            onAutoCompletionItemClick(candidates.words.get(0));
+                        } else if (candidates != null) {
+                            displayComposingText(candidates.composing, ComposingAction.DO_NOT_FINISH);
+                        } else if (resetComposingText == ResetComposingText.Yes) {
+                            mComposingText = "";
+                            displayComposingText("", ComposingAction.FINISH);
+                        }
+                    });
+                }));
             });
         } else {
             final InputConnection connection = mInputConnection;
             postInputCommand(() -> {
                 final String fullText = connection.getExtractedText(new ExtractedTextRequest(),0).text.toString();
                 final String beforeText = connection.getTextBeforeCursor(fullText.length(),0).toString();
-                postUICommand(() -> {
-                    final KeyboardInterface.CandidatesResult candidates = mCurrentKeyboard.getCandidates(beforeText);
-                    setAutoCompletionVisible(candidates != null && candidates.words.size() > 0);
-                    mAutoCompletionView.setItems(candidates != null ? candidates.words : null);
-                });
+                requestCandidates(() -> keyboard.getCandidates(beforeText), (generation, candidates) -> postUICommand(() -> {
+                    if (isCurrentCandidatesRequest(generation)) {
+                        showCandidates(candidates);
+                    }
+                }));
             });
         }
 
@@ -1271,6 +1311,79 @@ public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKey
         }
     }
 
+    private interface CandidatesCallback {
+        // Called in the candidates thread.
+        void onCandidates(int aGeneration, @Nullable KeyboardInterface.CandidatesResult aCandidates);
+    }
+
+    /**
+     * @return The executor of the candidates thread, or null if the widget was released.
+     */
+    @Nullable
+    private synchronized ExecutorService getCandidatesExecutor() {
+        if (mCandidatesExecutor == null && !mCandidatesReleased) {
+            mCandidatesExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "KeyboardCandidates"));
+        }
+        return mCandidatesExecutor;
+    }
+
+    /**
+     * Generates candidates in the candidates thread, so dictionary lookups never block key
+     * presses or rendering. Starting a request cancels the previous one if it did not start yet,
+     * and the generation passed to the callback allows dropping the results of stale requests.
+     */
+    private synchronized void requestCandidates(@NonNull Supplier<KeyboardInterface.CandidatesResult> aSupplier,
+                                                @NonNull CandidatesCallback aCallback) {
+        final int generation = mCandidatesGeneration.incrementAndGet();
+        if (mCandidatesTask != null) {
+            mCandidatesTask.cancel(false);
+        }
+        ExecutorService executor = getCandidatesExecutor();
+        if (executor == null) {
+            return;
+        }
+        mCandidatesTask = executor.submit(() -> {
+            if (!isCurrentCandidatesRequest(generation)) {
+                return;
+            }
+            KeyboardInterface.CandidatesResult candidates;
+            try {
+                candidates = aSupplier.get();
+            } catch (Exception e) {
+                Log.e(LOGTAG, "Error getting candidates: " + e.getMessage());
+                return;
+            }
+            if (isCurrentCandidatesRequest(generation)) {
+                aCallback.onCandidates(generation, candidates);
+            }
+        });
+    }
+
+    // Runs a keyboard command in the candidates thread, so it is ordered with the candidates requests.
+    private void postCandidatesCommand(@NonNull Runnable aRunnable) {
+        ExecutorService executor = getCandidatesExecutor();
+        if (executor != null) {
+            executor.execute(aRunnable);
+        }
+    }
+
+    private synchronized void cancelCandidatesRequests() {
+        mCandidatesGeneration.incrementAndGet();
+        if (mCandidatesTask != null) {
+            mCandidatesTask.cancel(false);
+            mCandidatesTask = null;
+        }
+    }
+
+    private boolean isCurrentCandidatesRequest(int aGeneration) {
+        return aGeneration == mCandidatesGeneration.get();
+    }
+
+    private void showCandidates(@Nullable KeyboardInterface.CandidatesResult aCandidates) {
+        setAutoCompletionVisible(aCandidates != null && aCandidates.words.size() > 0);
+        mAutoCompletionView.setItems(aCandidates != null ? aCandidates.words : null);
+    }
+
     private void setAutoCompletionVisible(boolean aVisible) {
         mAutoCompletionView.setVisibility(aVisible ? View.VISIBLE : View.GONE);
         mAutoCompleteHoverDeviceId = -1;
@@ -1485,7 +1598,7 @@ public class KeyboardWidget extends UIWidget implements CustomKeyboardView.OnKey
         if (!mInternalDeleteHint && mCurrentKeyboard.usesComposingText() && mComposingText.length() > 0 && mTextBefore.length() > 0 && aEditable.toString().length() == 0) {
             // Text has been cleared externally (e.g. URLBar text clear button)
             mComposingText = "";
-            mCurrentKeyboard.clear();
+            postCandidatesCommand(mCurrentKeyboard::clear);
             updateCandidates(ResetComposingText.Yes);
         }
         mInternalDeleteHint = false;
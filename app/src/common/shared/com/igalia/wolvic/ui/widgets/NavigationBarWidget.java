@@ -79,7 +79,9 @@ import com.igalia.wolvic.utils.SystemUtils;
 import com.igalia.wolvic.utils.UrlUtils;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -1140,27 +1142,37 @@ public class NavigationBarWidget extends UIWidget implements WSession.Navigation
 
         mSuggestionsProvider.setText(text);
         mSuggestionsProvider.setFilterText(originalText);
-        mSuggestionsProvider.getSuggestions()
+        mSuggestionsProvider.getSuggestions(this::showSuggestions)
                 .whenCompleteAsync((items, ex) -> {
-                    if (mBinding.navigationBarNavigation.urlBar.hasFocus()) {
-                        mAwesomeBar.updateItems(items);
-                        mAwesomeBar.setHighlightedText(mBinding.navigationBarNavigation.urlBar.getNonAutocompleteText().trim());
-
-                        if (!mAwesomeBar.isVisible()) {
-                            mAwesomeBar.updatePlacement((int) WidgetPlacement.convertPixelsToDp(getContext(), mBinding.navigationBarNavigation.urlBar.getWidth()));
-                            mAwesomeBar.show(CLEAR_FOCUS);
-                        }
+                    if (ex == null) {
+                        showSuggestions(items);
                     }
 
                 }, mUIThreadExecutor).exceptionally(throwable -> {
-                    Log.d(LOGTAG, "Error getting suggestions: " + throwable.getLocalizedMessage());
-                    throwable.printStackTrace();
+                    if (!(throwable instanceof CancellationException) && !(throwable.getCause() instanceof CancellationException)) {
+                        Log.d(LOGTAG, "Error getting suggestions: " + throwable.getLocalizedMessage());
+                        throwable.printStackTrace();
+                    }
                     return null;
         });
     }
 
+    private void showSuggestions(@NonNull List<SuggestionsWidget.SuggestionItem> items) {
+        if (mAwesomeBar == null || !mBinding.navigationBarNavigation.urlBar.hasFocus()) {
+            return;
+        }
+        mAwesomeBar.updateItems(items);
+        mAwesomeBar.setHighlightedText(mBinding.navigationBarNavigation.urlBar.getNonAutocompleteText().trim());
+
+        if (!mAwesomeBar.isVisible()) {
+            mAwesomeBar.updatePlacement((int) WidgetPlacement.convertPixelsToDp(getContext(), mBinding.navigationBarNavigation.urlBar.getWidth()));
+            mAwesomeBar.show(CLEAR_FOCUS);
+        }
+    }
+
     @Override
     public void onHideAwesomeBar() {
+        mSuggestionsProvider.cancelPendingRequests();
         if (mAwesomeBar != null) {
             mAwesomeBar.hide(UIWidget.KEEP_WIDGET);
         }
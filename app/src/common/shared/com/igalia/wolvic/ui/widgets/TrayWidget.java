@@ -46,6 +46,7 @@ import com.igalia.wolvic.browser.engine.Session;
 import com.igalia.wolvic.browser.engine.SessionStore;
 import com.igalia.wolvic.databinding.TrayBinding;
 import com.igalia.wolvic.downloads.Download;
+import com.igalia.wolvic.downloads.DownloadJob;
 import com.igalia.wolvic.downloads.DownloadsManager;
 import com.igalia.wolvic.ui.viewmodel.TrayViewModel;
 import com.igalia.wolvic.ui.viewmodel.WindowViewModel;
@@ -62,6 +63,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 
 public class TrayWidget extends UIWidget implements WidgetManagerDelegate.UpdateListener, DownloadsManager.DownloadsListener, ConnectivityReceiver.Delegate {
@@ -97,6 +99,12 @@ public class TrayWidget extends UIWidget implements WidgetManagerDelegate.Update
     private int mLeftControllerBatteryLevel;
     private int mRightControllerBatteryLevel;
     private ConnectivityReceiver mConnectivityReceived;
+    // The library button shows the progress of both the system and the blob downloads.
+    private int mDownloadsInProgress;
+    private long mDownloadsSize;
+    private long mDownloadsDownloaded;
+    // Downloaded and total bytes of the blob downloads in progress, by URI.
+    private final HashMap<String, long[]> mBlobDownloads = new HashMap<>();
 
     public TrayWidget(Context aContext) {
         super(aContext);
@@ -745,24 +753,50 @@ public class TrayWidget extends UIWidget implements WidgetManagerDelegate.Update
 
     @Override
     public void onDownloadsUpdate(@NonNull List<Download> downloads) {
-        long inProgressNum = downloads.stream().filter(item -> item.inProgress()).count();
-        mTrayViewModel.setDownloadsNumber((int)inProgressNum);
+        mDownloadsInProgress = (int) downloads.stream().filter(item -> item.inProgress()).count();
+        mDownloadsSize = downloads.stream()
+                .filter(item -> item.getStatus() == Download.RUNNING)
+                .mapToLong(Download::getSizeBytes)
+                .sum();
+        mDownloadsDownloaded = downloads.stream().filter(item -> item.getStatus() == Download.RUNNING)
+                .mapToLong(Download::getDownloadedBytes)
+                .sum();
+        updateDownloadsProgress();
+    }
+
+    @Override
+    public void onDownloadProgress(@NonNull DownloadJob job, long downloadedBytes, long totalBytes) {
+        mBlobDownloads.put(job.getUri(), new long[] { downloadedBytes, totalBytes });
+        updateDownloadsProgress();
+    }
+
+    @Override
+    public void onBlobDownloadEnded(@NonNull DownloadJob job) {
+        if (mBlobDownloads.remove(job.getUri()) != null) {
+            updateDownloadsProgress();
+        }
+    }
+
+    private void updateDownloadsProgress() {
+        int inProgressNum = mDownloadsInProgress + mBlobDownloads.size();
+        mTrayViewModel.setDownloadsNumber(inProgressNum);
         if (inProgressNum == 0) {
             mBinding.libraryButton.setLevel(0);
-
-        } else {
-            long size = downloads.stream()
-                    .filter(item -> item.getStatus() == Download.RUNNING)
-                    .mapToLong(Download::getSizeBytes)
-                    .sum();
-            long downloaded = downloads.stream().filter(item -> item.getStatus() == Download.RUNNING)
-                    .mapToLong(Download::getDownloadedBytes)
-                    .sum();
-            if (size > 0) {
-                long percent = downloaded*100/size;
-                mBinding.libraryButton.setLevel((int)percent*100);
+            return;
+        }
+        long size = mDownloadsSize;
+        long downloaded = mDownloadsDownloaded;
+        for (long[] progress : mBlobDownloads.values()) {
+            // Blob downloads of unknown size can not be part of the total.
+            if (progress[1] > 0) {
+                downloaded += progress[0];
+                size += progress[1];
             }
         }
+        if (size > 0) {
+            long percent = downloaded*100/size;
+            mBinding.libraryButton.setLevel((int)percent*100);
+        }
     }
 
     @Override
@@ -0,0 +1,126 @@
+package com.igalia.wolvic.ui.widgets;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Collects the redraws requested by the widgets and flushes them once per compositor frame.
+ * <p>
+ * The first redraw requested after a flush asks the native side for a frame callback, which is
+ * delivered at the end of the next frame, so widgets invalidated several times during a frame
+ * draw their textures only once. A delayed flush covers the cases where no frame is rendered.
+ * <p>
+ * Every method but {@link #onCompositorFrame()} must be called from the UI thread.
+ */
+public class UIRedrawScheduler {
+
+    // Longest time a redraw waits for a frame, e.g. while the rendering is paused.
+    private static final long FALLBACK_FLUSH_DELAY = 100;
+
+    private static final UIRedrawScheduler sInstance = new UIRedrawScheduler();
+
+    public static UIRedrawScheduler get() {
+        return sInstance;
+    }
+
+    public static class Stats {
+        public final String name;
+        public int invalidations;
+        public int redraws;
+
+        Stats(@NonNull String aName) {
+            name = aName;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashSet<UIWidget> mPending = new LinkedHashSet<>();
+    private final HashMap<String, Stats> mStats = new HashMap<>();
+    private final Runnable mFlushRunnable = this::flush;
+    private Runnable mFrameRequester;
+    private boolean mFlushScheduled = false;
+
+    private UIRedrawScheduler() {
+    }
+
+    /**
+     * @param aRequester Asks the compositor to call {@link #onCompositorFrame()} after its next frame.
+     */
+    public void setFrameRequester(@Nullable Runnable aRequester) {
+        mFrameRequester = aRequester;
+    }
+
+    void schedule(@NonNull UIWidget aWidget) {
+        getStats(aWidget).invalidations++;
+        mPending.add(aWidget);
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        if (mFrameRequester != null) {
+            mFrameRequester.run();
+        }
+        mHandler.postDelayed(mFlushRunnable, FALLBACK_FLUSH_DELAY);
+    }
+
+    void cancel(@NonNull UIWidget aWidget) {
+        mPending.remove(aWidget);
+    }
+
+    /**
+     * Called from the render thread at the end of a frame.
+     */
+    public void onCompositorFrame() {
+        mHandler.post(mFlushRunnable);
+    }
+
+    private void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        if (mPending.isEmpty()) {
+            return;
+        }
+        List<UIWidget> widgets = new ArrayList<>(mPending);
+        mPending.clear();
+        for (UIWidget widget : widgets) {
+            widget.performScheduledRedraw();
+        }
+    }
+
+    void onRedraw(@NonNull UIWidget aWidget) {
+        getStats(aWidget).redraws++;
+    }
+
+    @NonNull
+    private Stats getStats(@NonNull UIWidget aWidget) {
+        String name = aWidget.getPlacement().name;
+        Stats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new Stats(name);
+            mStats.put(name, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return The redraw counters of each kind of widget, the most redrawn first.
+     */
+    @NonNull
+    public List<Stats> getStats() {
+        List<Stats> result = new ArrayList<>(mStats.values());
+        result.sort((a, b) -> Integer.compare(b.redraws, a.redraws));
+        return result;
+    }
+
+    public void resetStats() {
+        mStats.clear();
+    }
+}
@@ -9,6 +9,7 @@ package com.igalia.wolvic.ui.widgets;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.view.Surface;
 
@@ -75,6 +76,19 @@ public class UISurfaceTextureRenderer {
 
     @Nullable
     Canvas drawBegin() {
+        return drawBegin(null);
+    }
+
+    /**
+     * Locks the surface to draw only the given region of it, in texture pixels. The rest of the
+     * surface keeps its previous contents. The region may be grown by the surface, for instance
+     * when the previous buffer can not be copied back, and is updated to the one that must be drawn.
+     * Hardware canvases do not support partial updates, so the whole surface is drawn with them.
+     *
+     * @param aDirty Region to draw, or null to draw the whole surface.
+     */
+    @Nullable
+    Canvas drawBegin(@Nullable Rect aDirty) {
         mSurfaceCanvas = null;
         if (!sRenderActive) {
             return null;
@@ -83,8 +97,12 @@ public class UISurfaceTextureRenderer {
             try {
                 if (sUseHardwareAcceleration && mIsHardwareAccelerationEnabled) {
                     mSurfaceCanvas = mSurface.lockHardwareCanvas();
+                    if (aDirty != null) {
+                        aDirty.set(0, 0, mTextureWidth, mTextureHeight);
+                    }
                 } else {
-                    mSurfaceCanvas = mSurface.lockCanvas(null);
+                    // The canvas is clipped to the dirty region, so only that region is cleared.
+                    mSurfaceCanvas = mSurface.lockCanvas(aDirty);
                 }
                 mSurfaceCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
             }
@@ -10,6 +10,7 @@ import android.content.res.Configuration;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
+import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -53,6 +54,13 @@ public abstract class UIWidget extends FrameLayout implements Widget {
     protected boolean mResizing = false;
     protected boolean mReleased = false;
     private Boolean mIsHardwareAccelerationEnabled;
+    // Region of the widget, in view coordinates, invalidated since the last draw.
+    private final Rect mDirtyRect = new Rect();
+    private final Rect mTextureDirtyRect = new Rect();
+    private final Rect mDescendantRect = new Rect();
+    private boolean mFullRedraw = true;
+    // Set when UIRedrawScheduler lets the widget draw its texture.
+    private boolean mScheduledRedraw = false;
 
     public UIWidget(Context aContext) {
         super(aContext);
@@ -121,6 +129,7 @@ public abstract class UIWidget extends FrameLayout implements Widget {
                 mProxyRenderer.release();
             }
             mProxyRenderer = new UISurfaceTextureRenderer(aTexture, aWidth, aHeight);
+            mFullRedraw = true;
             postInvalidate();
             return;
         } else {
@@ -137,6 +146,7 @@ public abstract class UIWidget extends FrameLayout implements Widget {
                 mRenderer.setIsHardwareAccelerationEnabled(mIsHardwareAccelerationEnabled);
             }
         }
+        mFullRedraw = true;
         setWillNotDraw(mRenderer == null);
     }
 
@@ -153,6 +163,7 @@ public abstract class UIWidget extends FrameLayout implements Widget {
                 mRenderer.setIsHardwareAccelerationEnabled(mIsHardwareAccelerationEnabled);
             }
         }
+        mFullRedraw = true;
         setWillNotDraw(mRenderer == null);
     }
 
@@ -161,6 +172,7 @@ public abstract class UIWidget extends FrameLayout implements Widget {
         if (mRenderer != null){
             mRenderer.resize(aSurfaceWidth, aSurfaceHeight);
         }
+        mFullRedraw = true;
     }
 
     @Override
@@ -220,6 +232,7 @@ public abstract class UIWidget extends FrameLayout implements Widget {
 
     @Override
     public void releaseWidget() {
+        UIRedrawScheduler.get().cancel(this);
         releaseRenderer();
         mWidgetManager = null;
         mReleased = true;
@@ -250,9 +263,24 @@ public abstract class UIWidget extends FrameLayout implements Widget {
             super.draw(aCanvas);
             return;
         }
-        draw(aCanvas, mRenderer);
+        // Textures are only drawn when the scheduler flushes the redraws, once per compositor frame.
+        // The first draw is not delayed so the widget is shown as soon as possible.
+        if (!mScheduledRedraw && mFirstDrawCallback == null) {
+            UIRedrawScheduler.get().schedule(this);
+            return;
+        }
+        mScheduledRedraw = false;
+        UIRedrawScheduler.get().onRedraw(this);
+
+        // Only the invalidated region is drawn again when the widget was not invalidated as a whole.
+        boolean partial = !mFullRedraw && !mDirtyRect.isEmpty();
+        draw(aCanvas, mRenderer, partial);
         if (mProxyRenderer != null && mWidgetPlacement.proxifyLayer) {
-            draw(aCanvas, mProxyRenderer);
+            draw(aCanvas, mProxyRenderer, partial);
+        }
+        if (!mResizing) {
+            mFullRedraw = false;
+            mDirtyRect.setEmpty();
         }
 
         if (mFirstDrawCallback != null) {
@@ -261,11 +289,23 @@ public abstract class UIWidget extends FrameLayout implements Widget {
         }
     }
 
-    private void draw(Canvas aCanvas, UISurfaceTextureRenderer aRenderer) {
+    private void draw(Canvas aCanvas, UISurfaceTextureRenderer aRenderer, boolean aPartial) {
         if (mResizing) {
             return;
         }
-        Canvas textureCanvas = aRenderer.drawBegin();
+        Rect dirty = null;
+        if (aPartial && aCanvas.getWidth() > 0) {
+            float scale = aRenderer.width() / (float)aCanvas.getWidth();
+            dirty = mTextureDirtyRect;
+            dirty.set((int) Math.floor(mDirtyRect.left * scale), (int) Math.floor(mDirtyRect.top * scale),
+                    (int) Math.ceil(mDirtyRect.right * scale), (int) Math.ceil(mDirtyRect.bottom * scale));
+            // Grow it a pixel to cover the filtering of the scaled edges.
+            dirty.inset(-1, -1);
+            if (!dirty.intersect(0, 0, aRenderer.width(), aRenderer.height())) {
+                return;
+            }
+        }
+        Canvas textureCanvas = aRenderer.drawBegin(dirty);
         if(textureCanvas != null) {
             // set the proper scale
             float xScale = textureCanvas.getWidth() / (float)aCanvas.getWidth();
@@ -276,12 +316,112 @@ public abstract class UIWidget extends FrameLayout implements Widget {
         aRenderer.drawEnd();
     }
 
+    @Override
+    public void invalidate() {
+        mFullRedraw = true;
+        scheduleRedraw();
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void invalidate(Rect aDirty) {
+        invalidateRegion(aDirty.left, aDirty.top, aDirty.right, aDirty.bottom);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void invalidate(int aLeft, int aTop, int aRight, int aBottom) {
+        invalidateRegion(aLeft, aTop, aRight, aBottom);
+    }
+
+    /**
+     * Draws the whole widget again. Used for the changes of the widget itself, which the
+     * framework invalidates without going through {@link #invalidate()}.
+     */
+    private void invalidateFully() {
+        mFullRedraw = true;
+        scheduleRedraw();
+    }
+
+    @Override
+    public void invalidateDrawable(@NonNull Drawable aDrawable) {
+        super.invalidateDrawable(aDrawable);
+        if (mRenderer != null && verifyDrawable(aDrawable)) {
+            invalidateFully();
+        }
+    }
+
+    @Override
+    protected void drawableStateChanged() {
+        super.drawableStateChanged();
+        if (mRenderer != null) {
+            invalidateFully();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void setBackgroundDrawable(Drawable aBackground) {
+        super.setBackgroundDrawable(aBackground);
+        if (mRenderer != null) {
+            invalidateFully();
+        }
+    }
+
+    @Override
+    public void setForeground(Drawable aForeground) {
+        super.setForeground(aForeground);
+        if (mRenderer != null) {
+            invalidateFully();
+        }
+    }
+
+    @Override
+    public void setAlpha(float aAlpha) {
+        super.setAlpha(aAlpha);
+        if (mRenderer != null) {
+            invalidateFully();
+        }
+    }
+
+    /**
+     * Adds a region, in view coordinates, to the one drawn again on the next draw and schedules it.
+     */
+    private void invalidateRegion(int aLeft, int aTop, int aRight, int aBottom) {
+        mDirtyRect.union(aLeft, aTop, aRight, aBottom);
+        scheduleRedraw();
+    }
+
+    private void scheduleRedraw() {
+        if (mRenderer == null) {
+            super.invalidate();
+            return;
+        }
+        UIRedrawScheduler.get().schedule(this);
+    }
+
+    /**
+     * Called by {@link UIRedrawScheduler} to draw the pending changes of the widget.
+     */
+    void performScheduledRedraw() {
+        mScheduledRedraw = true;
+        super.invalidate();
+    }
+
     @Override
     public void onDescendantInvalidated (View child, View target) {
         super.onDescendantInvalidated(child, target);
         if (mRenderer != null) {
-            // TODO: transform rect and use invalidate(dirty)
-            postInvalidate();
+            // Hardware accelerated invalidations carry no region, so use the bounds of the target.
+            Rect bounds = mDescendantRect;
+            bounds.set(0, 0, target.getWidth(), target.getHeight());
+            if (target != this && target.isAttachedToWindow()) {
+                offsetDescendantRectToMyCoords(target, bounds);
+                invalidateRegion(bounds.left, bounds.top, bounds.right, bounds.bottom);
+            } else {
+                // Only the regions of the descendants are tracked, any other change is drawn fully.
+                invalidateFully();
+            }
         }
     }
 
@@ -291,8 +431,8 @@ public abstract class UIWidget extends FrameLayout implements Widget {
     public ViewParent invalidateChildInParent(int[] aLocation, Rect aDirty) {
         ViewParent parent =  super.invalidateChildInParent(aLocation, aDirty);
         if (parent != null && mRenderer != null) {
-            // TODO: transform rect and use invalidate(dirty)
-            postInvalidate();
+            // The dirty region has been transformed to the coordinates of this widget.
+            invalidateRegion(aDirty.left, aDirty.top, aDirty.right, aDirty.bottom);
         }
         return parent;
     }
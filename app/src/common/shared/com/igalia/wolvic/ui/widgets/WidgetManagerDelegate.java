@@ -132,6 +132,7 @@ public interface WidgetManagerDelegate {
     NavigationBarWidget getNavigationBar();
     Windows getWindows();
     void saveState();
+    void saveStateNow();
     void updateLocale(@NonNull Context context);
     @NonNull
     AppServicesProvider getServicesProvider();
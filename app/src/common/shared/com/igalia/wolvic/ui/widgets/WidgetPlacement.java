@@ -18,6 +18,8 @@ import com.igalia.wolvic.R;
 import com.igalia.wolvic.browser.SettingsStore;
 import com.igalia.wolvic.utils.DeviceType;
 
+import java.util.Objects;
+
 public class WidgetPlacement {
     static final float WORLD_DPI_RATIO = 2.0f/720.0f;
 
@@ -123,6 +125,43 @@ public class WidgetPlacement {
         this.cylinderMapRadius = w.cylinderMapRadius;
     }
 
+    /**
+     * @return true if every field copied by {@link #copyFrom(WidgetPlacement)} has the same value.
+     */
+    public boolean contentEquals(WidgetPlacement w) {
+        return this.density == w.density &&
+                this.width == w.width &&
+                this.height == w.height &&
+                this.worldWidth == w.worldWidth &&
+                this.anchorX == w.anchorX &&
+                this.anchorY == w.anchorY &&
+                this.translationX == w.translationX &&
+                this.translationY == w.translationY &&
+                this.translationZ == w.translationZ &&
+                this.rotationAxisX == w.rotationAxisX &&
+                this.rotationAxisY == w.rotationAxisY &&
+                this.rotationAxisZ == w.rotationAxisZ &&
+                this.rotation == w.rotation &&
+                this.parentHandle == w.parentHandle &&
+                this.parentAnchorX == w.parentAnchorX &&
+                this.parentAnchorY == w.parentAnchorY &&
+                this.parentAnchorGravity == w.parentAnchorGravity &&
+                this.visible == w.visible &&
+                this.scene == w.scene &&
+                this.showPointer == w.showPointer &&
+                this.composited == w.composited &&
+                this.layer == w.layer &&
+                this.layerPriority == w.layerPriority &&
+                this.proxifyLayer == w.proxifyLayer &&
+                this.textureScale == w.textureScale &&
+                this.cylinder == w.cylinder &&
+                this.tintColor == w.tintColor &&
+                this.borderColor == w.borderColor &&
+                Objects.equals(this.name, w.name) &&
+                this.clearColor == w.clearColor &&
+                this.cylinderMapRadius == w.cylinderMapRadius;
+    }
+
     public void updateCylinderMapRadius() {
         // We should check the context to make sure it's not null here to avoid crash
         // when we adjust windows distance after we exit from fullscreen mode.
@@ -0,0 +1,157 @@
+package com.igalia.wolvic.ui.widgets;
+
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Batches the placement updates sent to the native widgets.
+ * <p>
+ * The UI thread copies the placements into the open batch, which keeps only the latest placement
+ * of each widget, and the render thread applies it before its next frame. Placements equal to
+ * the last one applied to a widget are not sent again. Batches are closed when another native
+ * call about the widgets is queued, see {@link #close()}, so updates are never applied before
+ * the calls that preceded them. Batches and their placements are reused, so updates do not
+ * allocate once every widget has been updated.
+ */
+public class WidgetPlacementBatch {
+
+    public interface Applier {
+        /**
+         * Sends the placement to the native widget. The placement must not be kept, it is reused.
+         */
+        void apply(int aHandle, @NonNull WidgetPlacement aPlacement);
+    }
+
+    public interface Scheduler {
+        /**
+         * Runs the runnable on the render thread before its next frame.
+         */
+        void schedule(@NonNull Runnable aRunnable);
+    }
+
+    private class Batch implements Runnable {
+        final SparseArray<WidgetPlacement> placements = new SparseArray<>();
+        int[] handles = new int[16];
+        int count;
+
+        void put(int aHandle, @NonNull WidgetPlacement aPlacement) {
+            WidgetPlacement placement = placements.get(aHandle);
+            if (placement == null) {
+                placements.put(aHandle, aPlacement.clone());
+            } else {
+                placement.copyFrom(aPlacement);
+            }
+            for (int i = 0; i < count; i++) {
+                if (handles[i] == aHandle) {
+                    return;
+                }
+            }
+            if (count == handles.length) {
+                handles = Arrays.copyOf(handles, count * 2);
+            }
+            handles[count++] = aHandle;
+        }
+
+        void remove(int aHandle) {
+            for (int i = 0; i < count; i++) {
+                if (handles[i] == aHandle) {
+                    System.arraycopy(handles, i + 1, handles, i, count - i - 1);
+                    count--;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            flush(this);
+        }
+    }
+
+    private final Applier mApplier;
+    private final Scheduler mScheduler;
+    private final ArrayDeque<Batch> mFreeBatches = new ArrayDeque<>();
+    private Batch mOpenBatch;
+    // Only used from the render thread.
+    private final SparseArray<WidgetPlacement> mApplied = new SparseArray<>();
+
+    public WidgetPlacementBatch(@NonNull Applier aApplier, @NonNull Scheduler aScheduler) {
+        mApplier = aApplier;
+        mScheduler = aScheduler;
+    }
+
+    /**
+     * Queues the current placement of a widget. It is copied, so it can be modified afterwards.
+     */
+    public void update(int aHandle, @NonNull WidgetPlacement aPlacement) {
+        Batch scheduled = null;
+        synchronized (this) {
+            if (mOpenBatch == null) {
+                mOpenBatch = mFreeBatches.isEmpty() ? new Batch() : mFreeBatches.pop();
+                scheduled = mOpenBatch;
+            }
+            mOpenBatch.put(aHandle, aPlacement);
+        }
+        if (scheduled != null) {
+            mScheduler.schedule(scheduled);
+        }
+    }
+
+    /**
+     * Ends the open batch, so the updates made afterwards are applied after the runnables
+     * scheduled from now on. It must be called before scheduling other native calls about the
+     * widgets, e.g. adding or removing them.
+     */
+    public synchronized void close() {
+        mOpenBatch = null;
+    }
+
+    /**
+     * Drops the queued placement of a widget, e.g. when it is removed.
+     */
+    public synchronized void discard(int aHandle) {
+        if (mOpenBatch != null) {
+            mOpenBatch.remove(aHandle);
+        }
+    }
+
+    /**
+     * Forgets the placement applied to a widget, so its next update is always sent. It must be
+     * called from the render thread when the native widget is created or its state is reset.
+     */
+    public void reset(int aHandle) {
+        mApplied.remove(aHandle);
+    }
+
+    private void flush(@NonNull Batch aBatch) {
+        synchronized (this) {
+            if (mOpenBatch == aBatch) {
+                mOpenBatch = null;
+            }
+        }
+
+        // The UI thread does not write to the batch anymore, it is only reused after this loop.
+        for (int i = 0; i < aBatch.count; i++) {
+            int handle = aBatch.handles[i];
+            WidgetPlacement placement = aBatch.placements.get(handle);
+            WidgetPlacement applied = mApplied.get(handle);
+            if (applied == null) {
+                mApplied.put(handle, placement.clone());
+            } else if (applied.contentEquals(placement)) {
+                continue;
+            } else {
+                applied.copyFrom(placement);
+            }
+            mApplier.apply(handle, placement);
+        }
+        aBatch.count = 0;
+
+        synchronized (this) {
+            mFreeBatches.push(aBatch);
+        }
+    }
+}
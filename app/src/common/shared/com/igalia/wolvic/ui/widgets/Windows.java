@@ -4,6 +4,7 @@ import static com.igalia.wolvic.ui.widgets.settings.SettingsView.SettingViewType
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import androidx.annotation.IntDef;
@@ -14,6 +15,7 @@ import androidx.preference.PreferenceManager;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 import com.igalia.wolvic.R;
 import com.igalia.wolvic.VRBrowserApplication;
 import com.igalia.wolvic.browser.Accounts;
@@ -42,12 +44,9 @@ import com.igalia.wolvic.utils.UrlUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.InputStreamReader;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -77,6 +76,9 @@ public class Windows implements TrayListener, TopBarWidget.Delegate, TitleBarWid
 
 
     private static final String WINDOWS_SAVE_FILENAME = "windows_state.json";
+    private static final long SAVE_STATE_DEBOUNCE_MS = 2000;
+    // Number of background tabs restored per main thread message after the windows are shown.
+    private static final int RESTORE_TABS_BATCH_SIZE = 10;
 
     private static final int TAB_ADDED_NOTIFICATION_ID = 0;
     private static final int TAB_SENT_NOTIFICATION_ID = 1;
@@ -153,6 +155,9 @@ public class Windows implements TrayListener, TopBarWidget.Delegate, TitleBarWid
     private @NewTabLocation int mAddedTabLocation = OPEN_IN_FOREGROUND;
     private DownloadsManager mDownloadsManager;
     private ConnectivityReceiver mConnectivityReceived;
+    private WindowsStateWriter mStateWriter;
+    // Saved tabs not restored yet as suspended sessions, see restoreSessions().
+    private ArrayList<SessionState> mPendingRestoredTabs = new ArrayList<>();
 
     @IntDef(value = {NONE, BOOKMARKS, WEB_APPS, HISTORY, DOWNLOADS, ADDONS, NOTIFICATIONS})
     public @interface PanelType {}
@@ -211,51 +216,110 @@ public class Windows implements TrayListener, TopBarWidget.Delegate, TitleBarWid
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         mPrefs.registerOnSharedPreferenceChangeListener(mPreferencesListener);
 
+        mStateWriter = new WindowsStateWriter(new File(mContext.getFilesDir(), WINDOWS_SAVE_FILENAME),
+                mWidgetManager.getServicesProvider().getExecutors().scheduled());
+
         mIsRestoreEnabled = SettingsStore.getInstance(mContext).isRestoreTabsEnabled();
         mWindowsState = restoreState();
         restoreWindows();
     }
 
+    /**
+     * Saves the windows state as soon as possible. The state is captured synchronously but it is
+     * serialized and written to disk in the background.
+     */
     public void saveState() {
-        File file = new File(mContext.getFilesDir(), WINDOWS_SAVE_FILENAME);
-        try (Writer writer = new FileWriter(file)) {
-            WindowsState state = new WindowsState();
-            state.privateMode = mPrivateMode;
-            state.focusedWindowPlacement = mFocusedWindow.isFullScreen() ?  mFocusedWindow.getWindowPlacementBeforeFullscreen() : mFocusedWindow.getWindowPlacement();
-            ArrayList<Session> sessions = SessionStore.get().getSortedSessions(false);
-            state.tabs = sessions.stream()
-                    .map(Session::getSessionState)
-                    .filter(sessionState -> HistoryStore.getBLOCK_LIST().stream().noneMatch(uri ->
-                        sessionState.mUri != null && sessionState.mUri.startsWith(uri)
-                    ))
-                    .collect(Collectors.toCollection(ArrayList::new));
-            for (WindowWidget window : mRegularWindows) {
-                if (window.getSession() != null) {
-                    WindowState windowState = new WindowState();
-                    windowState.load(window, state, state.tabs.indexOf(window.getSession().getSessionState()));
-                    state.regularWindowsState.add(windowState);
-                }
+        saveState(0);
+    }
+
+    /**
+     * Saves the windows state and waits until it is written, e.g. before restarting the app.
+     */
+    public void saveStateNow() {
+        saveState(0);
+        mStateWriter.flush();
+    }
+
+    /**
+     * Saves the windows state after a short delay, coalescing consecutive changes in one write.
+     */
+    public void scheduleSaveState() {
+        saveState(SAVE_STATE_DEBOUNCE_MS);
+    }
+
+    private void saveState(long aDelayMs) {
+        WindowsState state = new WindowsState();
+        state.privateMode = mPrivateMode;
+        state.focusedWindowPlacement = mFocusedWindow.isFullScreen() ?  mFocusedWindow.getWindowPlacementBeforeFullscreen() : mFocusedWindow.getWindowPlacement();
+        ArrayList<Session> sessions = SessionStore.get().getSortedSessions(false);
+        ArrayList<SessionState> tabs = sessions.stream()
+                .map(Session::getSessionState)
+                .filter(sessionState -> HistoryStore.getBLOCK_LIST().stream().noneMatch(uri ->
+                    sessionState.mUri != null && sessionState.mUri.startsWith(uri)
+                ))
+                .collect(Collectors.toCollection(ArrayList::new));
+        for (WindowWidget window : mRegularWindows) {
+            if (window.getSession() != null) {
+                WindowState windowState = new WindowState();
+                windowState.load(window, state, tabs.indexOf(window.getSession().getSessionState()));
+                state.regularWindowsState.add(windowState);
             }
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            gson.toJson(state, writer);
-            writer.flush();
-
-            Log.d(LOGTAG, "Windows state saved");
-
-        } catch (IOException e) {
-            Log.e(LOGTAG, "Error saving windows state: " + e.getLocalizedMessage());
-            file.delete();
         }
+        ArrayList<SessionState> snapshots = tabs.stream()
+                .map(SessionState::snapshot)
+                .collect(Collectors.toCollection(ArrayList::new));
+        // Do not lose the tabs that are still waiting to be restored.
+        mPendingRestoredTabs.stream()
+                .map(SessionState::snapshot)
+                .forEach(snapshots::add);
+
+        mStateWriter.save(savedTabs -> {
+            state.tabs = new ArrayList<>(savedTabs);
+            return state;
+        }, snapshots, aDelayMs);
     }
 
     private WindowsState restoreState() {
         WindowsState restored = null;
 
-        File file = new File(mContext.getFilesDir(), WINDOWS_SAVE_FILENAME);
-        try (Reader reader = new FileReader(file)) {
+        AtomicFile file = new AtomicFile(new File(mContext.getFilesDir(), WINDOWS_SAVE_FILENAME));
+        try (JsonReader reader = new JsonReader(new InputStreamReader(file.openRead(), StandardCharsets.UTF_8))) {
+            // Stream the tabs one by one instead of building the whole document in memory. The
+            // engine state of each tab is kept unparsed until the tab is activated.
             Gson gson = new GsonBuilder().create();
-            Type type = new TypeToken<WindowsState>() {}.getType();
-            restored = gson.fromJson(reader, type);
+            Type windowsType = new TypeToken<ArrayList<WindowState>>() {}.getType();
+            WindowsState state = new WindowsState();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "focusedWindowPlacement":
+                        state.focusedWindowPlacement = gson.fromJson(reader, WindowPlacement.class);
+                        break;
+                    case "regularWindowsState":
+                        state.regularWindowsState = gson.fromJson(reader, windowsType);
+                        break;
+                    case "tabs":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            state.tabs.add(gson.fromJson(reader, SessionState.class));
+                        }
+                        reader.endArray();
+                        break;
+                    case "privateMode":
+                        state.privateMode = reader.nextBoolean();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (state.focusedWindowPlacement == null) {
+                state.focusedWindowPlacement = WindowPlacement.FRONT;
+            }
+            if (state.regularWindowsState == null) {
+                state.regularWindowsState = new ArrayList<>();
+            }
+            restored = state;
 
             Log.d(LOGTAG, "Windows state restored");
 
@@ -514,7 +578,7 @@ public class Windows implements TrayListener, TopBarWidget.Delegate, TitleBarWid
     public void onPause() {
         mIsPaused = true;
 
-        saveState();
+        saveStateNow();
     }
 
     public void onResume() {
@@ -532,6 +596,7 @@ public class Windows implements TrayListener, TopBarWidget.Delegate, TitleBarWid
     }
 
     public void onDestroy() {
+        mPendingRestoredTabs.clear();
         if (mTabsWidget != null && !mTabsWidget.isReleased()) {
             mTabsWidget.releaseWidget();
             mTabsWidget = null;
@@ -797,20 +862,20 @@ public class Windows implements TrayListener, TopBarWidget.Delegate, TitleBarWid
 
     public void restoreSessions() {
         if (mIsRestoreEnabled && mWindowsState != null) {
-            ArrayList<Session> restoredSessions = new ArrayList<>();
-            if (mWindowsState.tabs != null) {
-                mWindowsState.tabs.forEach(state -> {
-                    restoredSessions.add(SessionStore.get().createSuspendedSession(state));
-                    TelemetryService.Tabs.openedCounter(TelemetryService.Tabs.TabSource.PRE_EXISTING);
-                });
-            }
-
+            // Restore the tabs shown in the windows first, the rest are restored in batches once
+            // the windows are visible. Restoring order does not matter, tabs are sorted by last use.
+            ArrayList<SessionState> tabs = mWindowsState.tabs != null ? mWindowsState.tabs : new ArrayList<>();
+            Session[] restoredSessions = new Session[tabs.size()];
             for (WindowState windowState : mWindowsState.regularWindowsState) {
                 WindowWidget targetWindow = getWindowWithPlacement(windowState.placement);
                 if (targetWindow != null) {
-                    if (windowState.tabIndex >= 0 && windowState.tabIndex < restoredSessions.size()) {
+                    int tabIndex = windowState.tabIndex;
+                    if (tabIndex >= 0 && tabIndex < tabs.size() && tabs.get(tabIndex) != null) {
+                        if (restoredSessions[tabIndex] == null) {
+                            restoredSessions[tabIndex] = restoreSuspendedSession(tabs.get(tabIndex));
+                        }
                         Session defaultSession = targetWindow.getSession();
-                        Session session = restoredSessions.get(windowState.tabIndex);
+                        Session session = restoredSessions[tabIndex];
                         targetWindow.setSession(session, WindowWidget.DEACTIVATE_CURRENT_SESSION);
                         session.setActive(true);
                         // Destroy the default blank session
@@ -822,6 +887,16 @@ public class Windows implements TrayListener, TopBarWidget.Delegate, TitleBarWid
                 }
             }
 
+            mPendingRestoredTabs = new ArrayList<>();
+            for (int i = 0; i < tabs.size(); i++) {
+                if (restoredSessions[i] == null && tabs.get(i) != null) {
+                    mPendingRestoredTabs.add(tabs.get(i));
+                }
+            }
+            // The saved state is not needed anymore, the pending tabs are tracked separately.
+            mWindowsState.tabs = null;
+            restorePendingTabs();
+
             if (mWindowsState.privateMode) {
                 enterPrivateMode();
             } else {
@@ -843,6 +918,27 @@ public class Windows implements TrayListener, TopBarWidget.Delegate, TitleBarWid
         mAfterRestore = true;
     }
 
+    private Session restoreSuspendedSession(@NonNull SessionState aState) {
+        TelemetryService.Tabs.openedCounter(TelemetryService.Tabs.TabSource.PRE_EXISTING);
+        return SessionStore.get().createSuspendedSession(aState);
+    }
+
+    private void restorePendingTabs() {
+        if (mPendingRestoredTabs.isEmpty()) {
+            return;
+        }
+        mWidgetManager.getServicesProvider().getExecutors().mainThread().execute(() -> {
+            int count = Math.min(RESTORE_TABS_BATCH_SIZE, mPendingRestoredTabs.size());
+            List<SessionState> batch = mPendingRestoredTabs.subList(0, count);
+            batch.forEach(this::restoreSuspendedSession);
+            batch.clear();
+            if (mTabsWidget != null && mTabsWidget.isVisible()) {
+                mTabsWidget.refreshTabs();
+            }
+            restorePendingTabs();
+        });
+    }
+
     private void removeWindow(@NonNull WindowWidget aWindow) {
         BitmapCache.getInstance(mContext).removeBitmap(aWindow.getSession().getId());
         mWidgetManager.removeWidget(aWindow);
@@ -1424,7 +1520,7 @@ public void selectTab(@NonNull Session aTab) {
     public void openNewTabAfterRestore(@NonNull String aUri, @NewTabLocation int aLocation) {
         if (mAfterRestore) {
             openNewTab(aUri, aLocation);
-            saveState();
+            scheduleSaveState();
         } else {
             mAddedTabUri = aUri;
             mAddedTabLocation = aLocation;
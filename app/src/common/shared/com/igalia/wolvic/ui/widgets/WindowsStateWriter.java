@@ -0,0 +1,192 @@
+package com.igalia.wolvic.ui.widgets;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.igalia.wolvic.browser.api.WSessionState;
+import com.igalia.wolvic.browser.engine.SessionState;
+import com.igalia.wolvic.utils.SystemUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Persists the windows state in the background.
+ * <p>
+ * Save requests are debounced, so only the latest state is written, and the file is replaced
+ * atomically so a crash during the write never leaves a truncated state behind. The serialized
+ * {@link WSessionState} of every tab, which is the bulk of the file, is cached and only
+ * regenerated for the sessions whose state changed since the previous save. The tabs given to
+ * the writer are never modified, the cached state is set on copies of them. {@link #flush()}
+ * writes the pending state on the calling thread when it must be on disk before going on.
+ */
+class WindowsStateWriter {
+
+    private static final String LOGTAG = SystemUtils.createLogtag(WindowsStateWriter.class);
+
+    private static class PendingState {
+        final Function<List<SessionState>, Object> stateFactory;
+        final List<SessionState> tabs;
+
+        PendingState(@NonNull Function<List<SessionState>, Object> aStateFactory, @NonNull List<SessionState> aTabs) {
+            stateFactory = aStateFactory;
+            tabs = aTabs;
+        }
+    }
+
+    private static class CachedSessionState {
+        final WSessionState source;
+        final WSessionState serialized;
+
+        CachedSessionState(@NonNull WSessionState aSource, @NonNull WSessionState aSerialized) {
+            source = aSource;
+            serialized = aSerialized;
+        }
+    }
+
+    /**
+     * Already serialized session state, so writing it again is just copying the string.
+     */
+    private static class SerializedSessionState implements WSessionState {
+        private final String mJson;
+        private final boolean mIsEmpty;
+
+        SerializedSessionState(@NonNull WSessionState aState) {
+            mJson = aState.toJson();
+            // Do not parse the state of the tabs that have not been restored yet.
+            mIsEmpty = SessionState.isEmptyState(aState);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mIsEmpty;
+        }
+
+        @Override
+        public String toJson() {
+            return mJson;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final ScheduledExecutorService mExecutor;
+    private final Gson mGson = new GsonBuilder().create();
+    // Held while writing, so the writes of the executor and flush() never overlap.
+    private final Object mWriteLock = new Object();
+    // Only accessed while holding mWriteLock.
+    private final HashMap<String, CachedSessionState> mSessionStateCache = new HashMap<>();
+    private final Object mLock = new Object();
+    private PendingState mPendingState;
+    private ScheduledFuture<?> mPendingWrite;
+    private long mPendingWriteTime;
+
+    WindowsStateWriter(@NonNull File aFile, @NonNull ScheduledExecutorService aExecutor) {
+        mFile = new AtomicFile(aFile);
+        mExecutor = aExecutor;
+    }
+
+    /**
+     * Schedules the state to be written after the given delay. If there is already a pending
+     * write it is replaced by this state, keeping the earliest of both deadlines.
+     *
+     * @param aStateFactory Returns the object to be serialized with Gson for the tabs to be saved.
+     *                      It is called from the writer thread.
+     * @param aTabs Snapshots of the tabs to be saved, see {@link SessionState#snapshot()}. They
+     *              must not be modified afterwards.
+     * @param aDelayMs Delay before writing the state, in milliseconds.
+     */
+    void save(@NonNull Function<List<SessionState>, Object> aStateFactory, @NonNull List<SessionState> aTabs, long aDelayMs) {
+        synchronized (mLock) {
+            mPendingState = new PendingState(aStateFactory, aTabs);
+            long writeTime = System.currentTimeMillis() + aDelayMs;
+            if (mPendingWrite != null && !mPendingWrite.isDone()) {
+                if (mPendingWriteTime <= writeTime) {
+                    return;
+                }
+                mPendingWrite.cancel(false);
+            }
+            mPendingWriteTime = writeTime;
+            mPendingWrite = mExecutor.schedule(this::writePendingState, aDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the pending state, if any, before returning. It blocks the calling thread until the
+     * file has been replaced, waiting for a write already in progress if needed.
+     */
+    void flush() {
+        synchronized (mLock) {
+            if (mPendingWrite != null) {
+                mPendingWrite.cancel(false);
+                mPendingWrite = null;
+            }
+        }
+        writePendingState();
+    }
+
+    private void writePendingState() {
+        synchronized (mWriteLock) {
+            PendingState pending;
+            synchronized (mLock) {
+                pending = mPendingState;
+                mPendingState = null;
+            }
+            if (pending != null) {
+                write(pending);
+            }
+        }
+    }
+
+    private void write(@NonNull PendingState pending) {
+
+        Set<String> ids = new HashSet<>();
+        List<SessionState> tabs = new ArrayList<>(pending.tabs.size());
+        for (SessionState tab : pending.tabs) {
+            ids.add(tab.mId);
+            SessionState copy = tab.snapshot();
+            if (tab.mSessionState != null) {
+                CachedSessionState cached = mSessionStateCache.get(tab.mId);
+                if (cached == null || cached.source != tab.mSessionState) {
+                    cached = new CachedSessionState(tab.mSessionState, new SerializedSessionState(tab.mSessionState));
+                    mSessionStateCache.put(tab.mId, cached);
+                }
+                copy.mSessionState = cached.serialized;
+            }
+            tabs.add(copy);
+        }
+        mSessionStateCache.keySet().retainAll(ids);
+
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+            mGson.toJson(pending.stateFactory.apply(tabs), writer);
+            writer.flush();
+            mFile.finishWrite(stream);
+
+            Log.d(LOGTAG, "Windows state saved");
+
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Error saving windows state: " + e.getLocalizedMessage());
+            if (stream != null) {
+                mFile.failWrite(stream);
+            }
+        }
+    }
+}
@@ -39,7 +39,7 @@ public class SignOutDialogWidget extends PromptDialogWidget {
                         logout(() -> {
                             // Clear History and Bookmarks
                             mPlaces.clear();
-                            mWidgetManager.saveState();
+                            mWidgetManager.saveStateNow();
                             postDelayed(() -> SystemUtils.restart(getContext()), 500);
                         });
                     }
@@ -17,11 +17,17 @@ import com.igalia.wolvic.browser.SettingsStore;
 import com.igalia.wolvic.browser.engine.SessionStore;
 import com.igalia.wolvic.databinding.OptionsDeveloperBinding;
 import com.igalia.wolvic.ui.views.settings.SwitchSetting;
+import com.igalia.wolvic.ui.widgets.UIRedrawScheduler;
 import com.igalia.wolvic.ui.widgets.WidgetManagerDelegate;
 import com.igalia.wolvic.utils.DeviceType;
 
+import java.util.List;
+import java.util.stream.Collectors;
+
 class DeveloperOptionsView extends SettingsView {
 
+    private static final int MAX_UI_REDRAWS_SHOWN = 5;
+
     private OptionsDeveloperBinding mBinding;
 
     public DeveloperOptionsView(Context aContext, WidgetManagerDelegate aWidgetManager) {
@@ -77,6 +83,23 @@ class DeveloperOptionsView extends SettingsView {
 
         mBinding.localAddonSwitch.setOnCheckedChangeListener(mLocalAddonListener);
         setLocalAddon(SettingsStore.getInstance(getContext()).isLocalAddonAllowed(), false);
+
+        mBinding.uiRedrawsButton.setOnClickListener(v -> {
+            UIRedrawScheduler.get().resetStats();
+            updateUIRedraws();
+        });
+        updateUIRedraws();
+    }
+
+    private void updateUIRedraws() {
+        List<UIRedrawScheduler.Stats> stats = UIRedrawScheduler.get().getStats();
+        String summary = stats.isEmpty() ?
+                getContext().getString(R.string.developer_options_ui_redraws_none) :
+                stats.stream()
+                        .limit(MAX_UI_REDRAWS_SHOWN)
+                        .map(item -> item.name + " " + item.redraws + "/" + item.invalidations)
+                        .collect(Collectors.joining(", "));
+        mBinding.uiRedrawsButton.setDescription(getContext().getString(R.string.developer_options_ui_redraws, summary));
     }
 
     private SwitchSetting.OnCheckedChangeListener mRemoteDebuggingListener = (compoundButton, value, doApply) -> {
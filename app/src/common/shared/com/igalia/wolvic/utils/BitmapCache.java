@@ -4,6 +4,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.SurfaceTexture;
+import android.os.Build;
 import android.util.Log;
 import android.util.LruCache;
 import android.view.Surface;
@@ -14,23 +15,75 @@ import androidx.annotation.Nullable;
 import com.igalia.wolvic.VRBrowserApplication;
 import com.jakewharton.disklrucache.DiskLruCache;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Three tier cache for tab snapshots and other bitmaps:
+ * <ol>
+ *     <li>A small memory cache of decoded bitmaps, ready to be displayed.</li>
+ *     <li>A memory cache of compressed bytes, decoded on demand into pooled bitmaps.</li>
+ *     <li>A disk cache storing the same compressed bytes.</li>
+ * </ol>
+ * Bitmaps are encoded only once, in the IO thread, and the resulting bytes feed both the
+ * compressed memory tier and the disk tier.
+ * <p>
+ * Disk operations run in a small pool where reads are always scheduled before pending writes,
+ * and are guarded by striped per-key locks, so reading the snapshot of a tab never waits for the
+ * snapshot of another tab to be persisted. Operations on the same key still run in the order
+ * they were requested.
+ */
 public class BitmapCache {
     private Context mContext;
     private LruCache<String, Bitmap> mMemoryCache;
-    private DiskLruCache mDiskCache;
+    private LruCache<String, byte[]> mCompressedCache;
+    private final BitmapPool mBitmapPool = new BitmapPool(MAX_POOL_SIZE);
+    // Bitmaps decoded by this cache into mutable buffers. They are only reused when a decoded
+    // bitmap was never handed out, see getBitmap().
+    private final Set<Bitmap> mDecodedBitmaps = Collections.newSetFromMap(new WeakHashMap<>());
+    private final Bitmap.CompressFormat mCompressFormat = defaultCompressFormat();
+    private volatile DiskLruCache mDiskCache;
+    private volatile CountDownLatch mDiskCacheReady = new CountDownLatch(1);
     private Executor mIOExecutor;
+    private final ThreadPoolExecutor mDiskExecutor;
     private Executor mMainThreadExecutor;
-    private final Object mLock = new Object();
+    private final ReentrantReadWriteLock[] mLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+    // Latest bitmap waiting to be persisted for each key. Older pending writes are skipped.
+    private final ConcurrentHashMap<String, Bitmap> mPendingWrites = new ConcurrentHashMap<>();
+    // Last queued write or removal of each key. Later operations on the key are queued once it is
+    // done, so a read never overtakes them.
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> mLastMutations = new ConcurrentHashMap<>();
     private static final int DISK_CACHE_SIZE = 1024 * 1024 * 100; // 100MB
+    private static final int DISK_THREADS = 3;
+    private static final int LOCK_STRIPES = 16;
+    private static final int PRIORITY_READ = 0;
+    private static final int PRIORITY_WRITE = 1;
+    private static final int DEFAULT_COMPRESS_QUALITY = 80;
+    private static final int MAX_POOL_SIZE = 4;
     private static final String LOGTAG = SystemUtils.createLogtag(BitmapCache.class);
     private SurfaceTexture mCaptureSurfaceTexture;
     private Surface mCaptureSurface;
@@ -58,6 +111,15 @@ public class BitmapCache {
         }
     }
 
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat defaultCompressFormat() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Bitmap.CompressFormat.WEBP_LOSSY;
+        }
+        // Before Android R, WEBP is lossy for any quality value below 100.
+        return Bitmap.CompressFormat.WEBP;
+    }
+
     public static BitmapCache getInstance(Context aContext) {
         return ((VRBrowserApplication)aContext.getApplicationContext()).getBitmapCache();
     }
@@ -66,6 +128,12 @@ public class BitmapCache {
         mContext = aContext;
         mIOExecutor = aIOExecutor;
         mMainThreadExecutor = aMainThreadExecutor;
+        mDiskExecutor = new ThreadPoolExecutor(DISK_THREADS, DISK_THREADS, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), new DiskThreadFactory());
+        mDiskExecutor.allowCoreThreadTimeOut(true);
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            mLocks[i] = new ReentrantReadWriteLock();
+        }
     }
 
     public void onCreate() {
@@ -76,20 +144,30 @@ public class BitmapCache {
     void initMemoryCache() {
         // Get  available VM memory in KB.
         final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        // Use 1/8th of the available memory for this memory cache.
-        final int cacheSize = maxMemory / 8;
+        // Use 1/16th of the available memory for decoded bitmaps and another 1/16th for
+        // compressed ones. Compressed snapshots are ~10x smaller so most tabs fit in memory.
+        final int cacheSize = maxMemory / 16;
 
         mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
             @Override
             protected int sizeOf(String key, Bitmap bitmap) {
                 // Use KB as the size of the item
-                return bitmap.getByteCount() / 1024;
+                return Math.max(1, bitmap.getByteCount() / 1024);
+            }
+        };
+
+        mCompressedCache = new LruCache<String, byte[]>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, byte[] bytes) {
+                return Math.max(1, bytes.length / 1024);
             }
         };
     }
 
     void initDiskCache() {
         String path = mContext.getCacheDir() + File.separator + "snapshots";
+        final CountDownLatch ready = new CountDownLatch(1);
+        mDiskCacheReady = ready;
         mIOExecutor.execute(() -> {
             try {
                 mDiskCache = DiskLruCache.open(new File(path), 1, 1, DISK_CACHE_SIZE);
@@ -97,18 +175,32 @@ public class BitmapCache {
             catch (Exception ex) {
                 Log.e(LOGTAG, "Failed to initialize DiskLruCache:" + ex.getMessage());
             }
+            ready.countDown();
         });
     }
 
     public void addBitmap(@NonNull String aKey, @NonNull Bitmap aBitmap) {
         String finalKey = hashKey(aKey);
         mMemoryCache.put(finalKey, aBitmap);
-        runIO(() -> {
+        mPendingWrites.put(finalKey, aBitmap);
+        runDiskIO(finalKey, PRIORITY_WRITE, () -> {
+            Bitmap pending = mPendingWrites.remove(finalKey);
+            if (pending == null) {
+                // A newer write for the same key already persisted the latest bitmap.
+                return;
+            }
+            byte[] bytes = compress(pending, mCompressFormat, DEFAULT_COMPRESS_QUALITY);
+            if (bytes == null) {
+                return;
+            }
+            mCompressedCache.put(finalKey, bytes);
             DiskLruCache.Editor editor = null;
             try {
                 editor = mDiskCache.edit(finalKey);
                 if (editor != null) {
-                    aBitmap.compress(Bitmap.CompressFormat.PNG, 80, editor.newOutputStream(0));
+                    try (OutputStream out = editor.newOutputStream(0)) {
+                        out.write(bytes);
+                    }
                     editor.commit();
                 }
             }
@@ -126,6 +218,48 @@ public class BitmapCache {
         });
     }
 
+    private @Nullable byte[] compress(@NonNull Bitmap aBitmap, @NonNull Bitmap.CompressFormat aFormat, int aQuality) {
+        if (aBitmap.isRecycled()) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(aBitmap.getByteCount() / 8);
+            if (aBitmap.compress(aFormat, aQuality, out)) {
+                return out.toByteArray();
+            }
+        } catch (Exception ex) {
+            Log.e(LOGTAG, "Failed to compress Bitmap:" + ex.getMessage());
+        }
+        return null;
+    }
+
+    private @Nullable Bitmap decode(@NonNull byte[] aBytes) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(aBytes, 0, aBytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = mBitmapPool.acquire(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(aBytes, 0, aBytes.length, options);
+        } catch (IllegalArgumentException ex) {
+            // The pooled bitmap could not be reused, decode into a fresh one.
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(aBytes, 0, aBytes.length, options);
+        }
+        if (bitmap != null) {
+            synchronized (mDecodedBitmaps) {
+                mDecodedBitmaps.add(bitmap);
+            }
+        }
+        return bitmap;
+    }
+
     public @NonNull CompletableFuture<Bitmap> getBitmap(@NonNull String aKey) {
         String finalKey = hashKey(aKey);
         Bitmap cached = mMemoryCache.get(finalKey);
@@ -133,26 +267,29 @@ public class BitmapCache {
             return CompletableFuture.completedFuture(cached);
         } else {
             CompletableFuture<Bitmap> result = new CompletableFuture<>();
-            runIO(() -> {
-                try (DiskLruCache.Snapshot snapshot = mDiskCache.get(finalKey)){
-                    if (snapshot != null) {
-                        Bitmap bitmap = BitmapFactory.decodeStream(snapshot.getInputStream(0));
-                        if (bitmap != null) {
-                            mMainThreadExecutor.execute(() -> {
-                                if (mMemoryCache.get(finalKey) == null) {
-                                    // Do not update cache if it already contains a value
-                                    // A tab could have saved a new image while we were loading the cached disk image.
-                                    mMemoryCache.put(finalKey, bitmap);
-                                }
-                                result.complete(bitmap);
-                            });
-
-                            return;
-                        }
+            runDiskIO(finalKey, PRIORITY_READ, () -> {
+                byte[] bytes = mCompressedCache.get(finalKey);
+                if (bytes == null) {
+                    bytes = readFromDisk(finalKey);
+                    if (bytes != null) {
+                        mCompressedCache.put(finalKey, bytes);
                     }
                 }
-                catch (Exception ex) {
-                    Log.e(LOGTAG, "Failed to get Bitmap from DiskLruCache:" + ex.getMessage());
+                Bitmap bitmap = bytes != null ? decode(bytes) : null;
+                if (bitmap != null) {
+                    mMainThreadExecutor.execute(() -> {
+                        Bitmap current = mMemoryCache.get(finalKey);
+                        if (current == null) {
+                            mMemoryCache.put(finalKey, bitmap);
+                            result.complete(bitmap);
+                        } else {
+                            // Do not update cache if it already contains a value
+                            // A tab could have saved a new image while we were loading the cached image.
+                            releaseDecodedBitmap(bitmap);
+                            result.complete(current);
+                        }
+                    });
+                    return;
                 }
 
                 mMainThreadExecutor.execute(() -> result.complete(null));
@@ -162,10 +299,38 @@ public class BitmapCache {
         }
     }
 
+    private @Nullable byte[] readFromDisk(@NonNull String aHashedKey) {
+        try (DiskLruCache.Snapshot snapshot = mDiskCache.get(aHashedKey)) {
+            if (snapshot != null) {
+                int length = (int) snapshot.getLength(0);
+                byte[] bytes = new byte[length];
+                InputStream in = snapshot.getInputStream(0);
+                int offset = 0;
+                while (offset < length) {
+                    int read = in.read(bytes, offset, length - offset);
+                    if (read < 0) {
+                        break;
+                    }
+                    offset += read;
+                }
+                if (offset == length) {
+                    return bytes;
+                }
+            }
+        }
+        catch (Exception ex) {
+            Log.e(LOGTAG, "Failed to get Bitmap from DiskLruCache:" + ex.getMessage());
+        }
+        return null;
+    }
+
     public void removeBitmap(@NonNull String aKey) {
         String finalKey = hashKey(aKey);
+        // The removed bitmap is not pooled, views showing the tab could still be drawing it.
         mMemoryCache.remove(finalKey);
-        runIO(() -> {
+        mCompressedCache.remove(finalKey);
+        mPendingWrites.remove(finalKey);
+        runDiskIO(finalKey, PRIORITY_WRITE, () -> {
             try {
                 mDiskCache.remove(finalKey);
             } catch (Exception ex) {
@@ -174,18 +339,64 @@ public class BitmapCache {
         });
     }
 
+    private void releaseDecodedBitmap(@NonNull Bitmap aBitmap) {
+        boolean decoded;
+        synchronized (mDecodedBitmaps) {
+            decoded = mDecodedBitmaps.remove(aBitmap);
+        }
+        if (decoded) {
+            mBitmapPool.release(aBitmap);
+        }
+    }
+
     public boolean hasBitmap(@NonNull String aKey) {
-        return mMemoryCache.get(hashKey(aKey)) != null;
+        String finalKey = hashKey(aKey);
+        return mMemoryCache.get(finalKey) != null || mCompressedCache.get(finalKey) != null;
     }
 
-    private void runIO(Runnable aRunnable) {
-        mIOExecutor.execute(() -> {
-            if (mDiskCache != null) {
-                synchronized (mLock) {
-                    aRunnable.run();
+    private @NonNull ReentrantReadWriteLock lockFor(@NonNull String aHashedKey) {
+        return mLocks[(aHashedKey.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private void runDiskIO(@NonNull String aHashedKey, int aPriority, @NonNull Runnable aRunnable) {
+        final CompletableFuture<Void> previous;
+        final CompletableFuture<Void> done;
+        if (aPriority == PRIORITY_READ) {
+            previous = mLastMutations.get(aHashedKey);
+            done = null;
+        } else {
+            done = new CompletableFuture<>();
+            previous = mLastMutations.put(aHashedKey, done);
+        }
+
+        PrioritizedTask task = new PrioritizedTask(aPriority, () -> {
+            try {
+                mDiskCacheReady.await();
+                ReentrantReadWriteLock rwLock = lockFor(aHashedKey);
+                Lock lock = aPriority == PRIORITY_READ ? rwLock.readLock() : rwLock.writeLock();
+                lock.lock();
+                try {
+                    if (mDiskCache != null) {
+                        aRunnable.run();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (done != null) {
+                    mLastMutations.remove(aHashedKey, done);
+                    done.complete(null);
                 }
             }
         });
+
+        if (previous == null || previous.isDone()) {
+            mDiskExecutor.execute(task);
+        } else {
+            previous.whenComplete((result, error) -> mDiskExecutor.execute(task));
+        }
     }
 
     public CompletableFuture<Bitmap> scaleBitmap(Bitmap aBitmap, int aMaxWidth, int aMaxHeight) {
@@ -209,15 +420,17 @@ public class BitmapCache {
         final int scaleH = h;
         CompletableFuture<Bitmap> result = new CompletableFuture<>();
 
-        runIO(() -> {
+        mDiskExecutor.execute(new PrioritizedTask(PRIORITY_WRITE, () -> {
             Bitmap scaled = Bitmap.createScaledBitmap(aBitmap, scaledW, scaleH, true);
             if (scaled != null && scaled != aBitmap) {
-                aBitmap.recycle();
+                // The source bitmap is owned by the cache at this point, keep its buffer around
+                // for future decodes instead of freeing it.
+                mBitmapPool.release(aBitmap);
                 mMainThreadExecutor.execute(() -> result.complete(scaled));
             } else {
                 mMainThreadExecutor.execute(() -> result.complete(aBitmap));
             }
-        });
+        }));
 
         return result;
     }
@@ -241,16 +454,26 @@ public class BitmapCache {
     }
 
     public void onDestroy() {
-        if (mDiskCache != null) {
-            runIO(() -> {
-                try {
+        mPendingWrites.clear();
+        mIOExecutor.execute(() -> {
+            // Take every stripe so no disk operation is in progress while closing.
+            for (ReentrantReadWriteLock lock : mLocks) {
+                lock.writeLock().lock();
+            }
+            try {
+                if (mDiskCache != null) {
                     mDiskCache.close();
-                } catch (IOException ex) {
-                    Log.e(LOGTAG, "Failed to close DiskLruCache:" + ex.getMessage());
                 }
+            } catch (IOException ex) {
+                Log.e(LOGTAG, "Failed to close DiskLruCache:" + ex.getMessage());
+            } finally {
                 mDiskCache = null;
-            });
-        }
+                for (ReentrantReadWriteLock lock : mLocks) {
+                    lock.writeLock().unlock();
+                }
+            }
+        });
+        mBitmapPool.clear();
         if (mCaptureSurface != null) {
             mCaptureSurface.release();
             mCaptureSurface = null;
@@ -260,4 +483,106 @@ public class BitmapCache {
             mCaptureSurfaceTexture = null;
         }
     }
+
+    /**
+     * Small pool of mutable bitmaps whose buffers can be reused through
+     * {@link BitmapFactory.Options#inBitmap}, so decoding snapshots does not allocate.
+     */
+    private static class BitmapPool {
+        private final ArrayList<Bitmap> mBitmaps = new ArrayList<>();
+        private final int mMaxSize;
+
+        BitmapPool(int aMaxSize) {
+            mMaxSize = aMaxSize;
+        }
+
+        synchronized @Nullable Bitmap acquire(int aWidth, int aHeight, @NonNull Bitmap.Config aConfig) {
+            final int required = aWidth * aHeight * 4;
+            Bitmap best = null;
+            for (Bitmap bitmap : mBitmaps) {
+                if (bitmap.getConfig() == aConfig && bitmap.getAllocationByteCount() >= required) {
+                    if (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount()) {
+                        best = bitmap;
+                    }
+                }
+            }
+            if (best != null) {
+                mBitmaps.remove(best);
+            }
+            return best;
+        }
+
+        synchronized void release(@NonNull Bitmap aBitmap) {
+            if (aBitmap.isRecycled()) {
+                return;
+            }
+            if (mBitmaps.contains(aBitmap)) {
+                return;
+            }
+            if (!aBitmap.isMutable()) {
+                aBitmap.recycle();
+                return;
+            }
+            mBitmaps.add(aBitmap);
+            if (mBitmaps.size() > mMaxSize) {
+                // Drop the smallest buffer, it is the least likely to fit future decodes.
+                Bitmap smallest = null;
+                for (Bitmap bitmap : mBitmaps) {
+                    if (smallest == null || bitmap.getAllocationByteCount() < smallest.getAllocationByteCount()) {
+                        smallest = bitmap;
+                    }
+                }
+                mBitmaps.remove(smallest);
+                smallest.recycle();
+            }
+        }
+
+        synchronized void clear() {
+            Iterator<Bitmap> it = mBitmaps.iterator();
+            while (it.hasNext()) {
+                it.next().recycle();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Task wrapper ordering the disk queue by priority and then by submission order.
+     */
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private static final AtomicLong sSequence = new AtomicLong();
+        private final int mPriority;
+        private final long mSequence;
+        private final Runnable mRunnable;
+
+        PrioritizedTask(int aPriority, @NonNull Runnable aRunnable) {
+            mPriority = aPriority;
+            mSequence = sSequence.getAndIncrement();
+            mRunnable = aRunnable;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask aOther) {
+            if (mPriority != aOther.mPriority) {
+                return Integer.compare(mPriority, aOther.mPriority);
+            }
+            return Long.compare(mSequence, aOther.mSequence);
+        }
+    }
+
+    private static class DiskThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable aRunnable) {
+            Thread thread = new Thread(aRunnable, "BitmapCacheIO-" + mCount.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
 }
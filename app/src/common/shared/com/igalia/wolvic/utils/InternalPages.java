@@ -1,8 +1,12 @@
 package com.igalia.wolvic.utils;
 
 import android.content.Context;
+import android.content.res.Configuration;
+import android.os.LocaleList;
 import android.util.Base64;
+import android.util.SparseArray;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.igalia.wolvic.R;
@@ -14,8 +18,42 @@ import java.io.InputStreamReader;
 
 import mozilla.components.browser.errorpages.ErrorType;
 
+/**
+ * Builds the internal about and error pages.
+ * <p>
+ * The private browsing page and the raw resources of the pages are rendered once for each
+ * locale and theme and kept, so checking whether a url is the private browsing page does not
+ * build it again.
+ */
 public class InternalPages {
 
+    private static final String DATA_URI_PREFIX = "data:text/html;base64,";
+
+    private static class RenderedPage {
+        final LocaleList locales;
+        final int uiMode;
+        final byte[] bytes;
+        final String dataUri;
+        final int dataUriHash;
+
+        RenderedPage(@NonNull Configuration aConfiguration, @NonNull byte[] aBytes) {
+            locales = aConfiguration.getLocales();
+            uiMode = aConfiguration.uiMode;
+            bytes = aBytes;
+            dataUri = DATA_URI_PREFIX + Base64.encodeToString(aBytes, Base64.NO_WRAP);
+            dataUriHash = dataUri.hashCode();
+        }
+
+        boolean isFor(@NonNull Configuration aConfiguration) {
+            return aConfiguration.uiMode == uiMode && aConfiguration.getLocales().equals(locales);
+        }
+    }
+
+    private static volatile RenderedPage sPrivatePage;
+    // Raw resources read for the locale and theme of sResourcesConfiguration.
+    private static final SparseArray<String> sResources = new SparseArray<>();
+    private static Configuration sResourcesConfiguration;
+
     private static ErrorType fromSessionErrorToErrorType(int error) {
         switch(error) {
             case WWebRequestError.ERROR_SECURITY_SSL: {
@@ -117,8 +155,8 @@ public class InternalPages {
     public static String createErrorPageDataURI(Context context,
                                                 @Nullable String uri,
                                                 int sessionError) {
-        String html = readRawResourceString(context, R.raw.error_pages);
-        String css = readRawResourceString(context, R.raw.error_style);
+        String html = getRawResourceString(context, R.raw.error_pages);
+        String css = getRawResourceString(context, R.raw.error_style);
 
         boolean showSSLAdvanced;
         switch (sessionError) {
@@ -143,13 +181,13 @@ public class InternalPages {
             html = html.replace("%url%", uri);
         }
 
-        return "data:text/html;base64," + Base64.encodeToString(html.getBytes(), Base64.NO_WRAP);
+        return DATA_URI_PREFIX + Base64.encodeToString(html.getBytes(), Base64.NO_WRAP);
     }
 
-    public static byte[] createAboutPage(Context context,
-                                         PageResources resources) {
-        String html = readRawResourceString(context, resources.html);
-        String css = readRawResourceString(context, resources.css);
+    private static byte[] createAboutPage(Context context,
+                                          PageResources resources) {
+        String html = getRawResourceString(context, resources.html);
+        String css = getRawResourceString(context, resources.css);
 
         String pageBody = context.getString(R.string.private_browsing_body, context.getString(R.string.app_name));
         html = html
@@ -161,6 +199,49 @@ public class InternalPages {
         return html.getBytes();
     }
 
+    @NonNull
+    private static RenderedPage getPrivatePage(@NonNull Context context) {
+        Configuration configuration = context.getResources().getConfiguration();
+        RenderedPage page = sPrivatePage;
+        if (page == null || !page.isFor(configuration)) {
+            page = new RenderedPage(configuration,
+                    createAboutPage(context, PageResources.create(R.raw.private_mode, R.raw.private_style)));
+            sPrivatePage = page;
+        }
+        return page;
+    }
+
+    /**
+     * @return The private browsing page for the current locale and theme. It must not be modified.
+     */
+    @NonNull
+    public static byte[] getPrivatePageBytes(@NonNull Context context) {
+        return getPrivatePage(context).bytes;
+    }
+
+    public static boolean isPrivatePage(@NonNull Context context, @Nullable String uri) {
+        if (uri == null || !uri.startsWith(DATA_URI_PREFIX)) {
+            return false;
+        }
+        RenderedPage page = getPrivatePage(context);
+        return uri.length() == page.dataUri.length() && uri.hashCode() == page.dataUriHash && uri.equals(page.dataUri);
+    }
+
+    private static synchronized String getRawResourceString(Context context, int resource) {
+        Configuration configuration = context.getResources().getConfiguration();
+        if (sResourcesConfiguration == null || !sResourcesConfiguration.getLocales().equals(configuration.getLocales()) ||
+                sResourcesConfiguration.uiMode != configuration.uiMode) {
+            sResources.clear();
+            sResourcesConfiguration = new Configuration(configuration);
+        }
+        String result = sResources.get(resource);
+        if (result == null) {
+            result = readRawResourceString(context, resource);
+            sResources.put(resource, result);
+        }
+        return result;
+    }
+
     private static String readRawResourceString(Context context, int resource) {
         StringBuilder total = new StringBuilder();
         try {
@@ -6,7 +6,6 @@
 package com.igalia.wolvic.utils;
 
 import android.content.Context;
-import android.util.Base64;
 import android.webkit.MimeTypeMap;
 import android.webkit.URLUtil;
 
@@ -105,9 +104,7 @@ public class UrlUtils {
     }
 
     public static boolean isPrivateAboutPage(@Nullable Context context,  @Nullable String uri) {
-        InternalPages.PageResources pageResources = InternalPages.PageResources.create(R.raw.private_mode, R.raw.private_style);
-        byte[] privatePageBytes = InternalPages.createAboutPage(context, pageResources);
-        return uri != null && uri.equals("data:text/html;base64," + Base64.encodeToString(privatePageBytes, Base64.NO_WRAP));
+        return context != null && InternalPages.isPrivatePage(context, uri);
     }
 
     public static Boolean isHomeUri(@Nullable Context context, @Nullable String aUri) {
@@ -3,21 +3,79 @@ package com.igalia.wolvic.utils.zip;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.progress.ProgressMonitor;
+import com.igalia.wolvic.utils.SystemUtils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+/**
+ * Extracts a zip file into a folder in the background.
+ * <p>
+ * Entries are extracted in parallel into a staging folder next to the output one, which only
+ * replaces the previous output once every entry has been written, so a failed or cancelled
+ * extraction leaves the previous contents untouched. Files of the previous output that match
+ * the size and CRC of an entry are linked into the staging folder instead of being extracted again.
+ * Progress is reported as entries are written, in steps of at least {@link #PROGRESS_STEP} percent.
+ */
 public class UnzipTask {
 
+    private static final String LOGTAG = SystemUtils.createLogtag(UnzipTask.class);
+
+    private static final String STAGING_SUFFIX = ".staging";
+    private static final String OLD_SUFFIX = ".old";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final double PROGRESS_STEP = 1.0;
+
+    // Extractions run one at a time, while their entries are extracted in parallel.
+    private static ExecutorService sTaskExecutor;
+    private static ExecutorService sEntriesExecutor;
+
+    private static synchronized ExecutorService getTaskExecutor() {
+        if (sTaskExecutor == null) {
+            sTaskExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sTaskExecutor;
+    }
+
+    private static synchronized ExecutorService getEntriesExecutor() {
+        if (sEntriesExecutor == null) {
+            sEntriesExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        }
+        return sEntriesExecutor;
+    }
+
     private String mZipPath;
-    private ProgressMonitor mUnzipMonitor;
     private UnzipResultReceiver mReceiver;
-    private boolean mIsRunning;
+    private volatile boolean mIsRunning;
+    // Ids of the extractions started so far and of the last one cancelled by cancel(), which
+    // also cancels the ones started before it.
+    private final AtomicLong mLastRunId = new AtomicLong();
+    private final AtomicLong mCancelledRunId = new AtomicLong();
+    private final AtomicLong mWrittenBytes = new AtomicLong();
+    private long mTotalBytes;
+    private double mLastProgress;
 
     public UnzipTask(@NonNull Context context) {
         mReceiver = new UnzipResultReceiver(new Handler(context.getMainLooper()));
@@ -32,65 +90,203 @@ public class UnzipTask {
         mReceiver.removeReceiver(listener);
     }
 
+    /**
+     * State of one extraction, so starting a new one never affects the cancellation of the
+     * previous ones, which may still be queued or running.
+     */
+    private class Run {
+        final long id;
+        // Set when an entry fails, to stop the other entries.
+        volatile boolean failed;
+
+        Run(long aId) {
+            id = aId;
+        }
+
+        boolean isCancelled() {
+            return failed || id <= mCancelledRunId.get();
+        }
+    }
+
     public void start(@NonNull String zipPath, @NonNull String outputPath) {
-        Executors.newSingleThreadExecutor().submit(() -> startUnzip(zipPath, outputPath));
+        Run run = new Run(mLastRunId.incrementAndGet());
+        getTaskExecutor().execute(() -> startUnzip(run, zipPath, outputPath));
     }
 
-    private void startUnzip(@NonNull String zipPath, @NonNull String outputPath) {
+    private void startUnzip(@NonNull Run aRun, @NonNull String zipPath, @NonNull String outputPath) {
         mZipPath = zipPath;
+        File output = new File(outputPath);
+        File staging = new File(outputPath + STAGING_SUFFIX);
 
-        // Remove previous unzip attempt
-        File file = new File(outputPath);
-        if (file.exists() && file.isDirectory()) {
-            String[] children = file.list();
-            for (String child : children) {
-                new File(file, child).delete();
-            }
-        }
-
-        // Start unzip
         try {
             notifyStarted();
 
-            mIsRunning =  true;
+            mIsRunning = true;
+            mWrittenBytes.set(0);
+            mLastProgress = 0;
 
-            ZipFile zipFile = new ZipFile(mZipPath);
-            zipFile.setRunInThread(true);
-            zipFile.extractAll(outputPath);
-            mUnzipMonitor = zipFile.getProgressMonitor();
-            while (mUnzipMonitor.getState() == ProgressMonitor.State.BUSY) {
-                double progress = zipFile.getProgressMonitor().getPercentDone();
+            // Remove previous unzip attempt
+            deleteRecursively(staging);
+            if (!staging.mkdirs()) {
+                throw new IOException("Can not create " + staging.getPath());
+            }
 
-                notifyProgress(progress);
+            try (ZipFile zipFile = new ZipFile(zipPath)) {
+                List<ZipEntry> entries = new ArrayList<>();
+                mTotalBytes = 0;
+                Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+                while (enumeration.hasMoreElements()) {
+                    ZipEntry entry = enumeration.nextElement();
+                    entries.add(entry);
+                    mTotalBytes += Math.max(0, entry.getSize());
+                }
 
+                List<Future<?>> futures = new ArrayList<>();
+                for (ZipEntry entry : entries) {
+                    futures.add(getEntriesExecutor().submit(() -> {
+                        extractEntry(aRun, zipFile, entry, output, staging);
+                        return null;
+                    }));
+                }
                 try {
-                    Thread.sleep(500);
-
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } catch (ExecutionException e) {
+                    aRun.failed = true;
+                    // Wait for the other entries to stop before removing the staging folder.
+                    for (Future<?> future : futures) {
+                        try {
+                            future.get();
+                        } catch (ExecutionException ignored) {
+                        }
+                    }
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                 }
             }
 
-            if (!mUnzipMonitor.isCancelAllTasks()) {
-                notifyFinish(outputPath);
-
-            } else {
+            if (aRun.isCancelled()) {
+                deleteRecursively(staging);
                 notifyCancelled();
+                return;
             }
 
+            // Swap the staging folder with the previous output.
+            File old = new File(outputPath + OLD_SUFFIX);
+            deleteRecursively(old);
+            if (output.exists() && !output.renameTo(old)) {
+                throw new IOException("Can not replace " + outputPath);
+            }
+            if (!staging.renameTo(output)) {
+                old.renameTo(output);
+                throw new IOException("Can not replace " + outputPath);
+            }
+            deleteRecursively(old);
+
+            notifyFinish(outputPath);
+
         } catch (Exception e) {
-            notifyError(e.getLocalizedMessage());
+            Log.e(LOGTAG, "Error extracting " + zipPath + ": " + e.getMessage());
+            deleteRecursively(staging);
+            notifyError(e.getLocalizedMessage() != null ? e.getLocalizedMessage() : e.toString());
 
         } finally {
             mIsRunning = false;
-            mUnzipMonitor = null;
         }
     }
 
-    public void cancel() {
-        if (mUnzipMonitor != null) {
-            mUnzipMonitor.setCancelAllTasks(true);
+    private void extractEntry(@NonNull Run aRun, @NonNull ZipFile aZipFile, @NonNull ZipEntry aEntry, @NonNull File aOutput, @NonNull File aStaging) throws IOException {
+        if (aRun.isCancelled()) {
+            return;
         }
+        File target = new File(aStaging, aEntry.getName());
+        // Reject entries that would be written outside of the output folder.
+        if (!target.getCanonicalPath().startsWith(aStaging.getCanonicalPath() + File.separator)) {
+            throw new IOException("Invalid zip entry " + aEntry.getName());
+        }
+        if (aEntry.isDirectory()) {
+            if (!target.mkdirs() && !target.isDirectory()) {
+                throw new IOException("Can not create " + target.getPath());
+            }
+            return;
+        }
+        File parent = target.getParentFile();
+        if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Can not create " + parent.getPath());
+        }
+
+        // Reuse the file of the previous output if it did not change. It is linked rather than
+        // moved, so the previous output stays complete until it is replaced.
+        File previous = new File(aOutput, aEntry.getName());
+        if (isUnchanged(aRun, previous, aEntry)) {
+            try {
+                Os.link(previous.getPath(), target.getPath());
+                addProgress(aEntry.getSize());
+                return;
+            } catch (ErrnoException e) {
+                Log.w(LOGTAG, "Can not link " + previous.getPath() + ", extracting it again: " + e.getMessage());
+            }
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = aZipFile.getInputStream(aEntry);
+             OutputStream out = new FileOutputStream(target)) {
+            int n;
+            while (!aRun.isCancelled() && (n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                addProgress(n);
+            }
+        }
+    }
+
+    private boolean isUnchanged(@NonNull Run aRun, @NonNull File aFile, @NonNull ZipEntry aEntry) {
+        if (!aFile.isFile() || aEntry.getCrc() < 0 || aFile.length() != aEntry.getSize()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(aFile))) {
+            int n;
+            while (!aRun.isCancelled() && (n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return crc.getValue() == aEntry.getCrc();
+    }
+
+    private void addProgress(long aBytes) {
+        long written = mWrittenBytes.addAndGet(aBytes);
+        if (mTotalBytes <= 0) {
+            return;
+        }
+        double progress = Math.min(100.0, written * 100.0 / mTotalBytes);
+        synchronized (this) {
+            if (progress - mLastProgress < PROGRESS_STEP && progress < 100.0) {
+                return;
+            }
+            mLastProgress = progress;
+        }
+        notifyProgress(progress);
+    }
+
+    private static void deleteRecursively(@NonNull File aFile) {
+        File[] children = aFile.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        aFile.delete();
+    }
+
+    /**
+     * Cancels the extractions started so far, but not the ones started afterwards.
+     */
+    public void cancel() {
+        long lastRunId = mLastRunId.get();
+        mCancelledRunId.accumulateAndGet(lastRunId, Math::max);
     }
 
     public boolean isIsRunning() {
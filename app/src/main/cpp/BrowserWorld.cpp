@@ -59,6 +59,7 @@
 
 #include <android/asset_manager_jni.h>
 #include <array>
+#include <atomic>
 #include <functional>
 #include <fstream>
 #include <unordered_map>
@@ -210,6 +211,7 @@ struct BrowserWorld::State {
   bool reorientRequested = false;
   bool inHeadLockMode = false;
   VRLayerPassthroughPtr layerPassthrough;
+  std::atomic<bool> frameCallbackRequested { false };
 #if HVR
   bool wasButtonAppPressed = false;
 #elif defined(OCULUSVR) && defined(STORE_BUILD)
@@ -1199,6 +1201,11 @@ BrowserWorld::EndFrame() {
   const vrb::Vector p = head.GetTranslation();
   const vrb::Quaternion q(head);
   VRBrowser::HandleAudioPose(q.x(), q.y(), q.z(), q.w(), p.x(), p.y(), p.z());
+
+  // Let the UI flush the widget redraws it collected since the previous frame.
+  if (m.frameCallbackRequested.exchange(false)) {
+    VRBrowser::OnCompositorFrame();
+  }
 }
 
 void
@@ -1703,6 +1710,12 @@ BrowserWorld::SetPointerMode(crow::DeviceDelegate::PointerMode pointerMode) {
   m.device->SetPointerMode(pointerMode);
 }
 
+void
+BrowserWorld::RequestFrameCallback() {
+  // Called from the UI thread, the flag is consumed at the end of the next frame.
+  m.frameCallbackRequested = true;
+}
+
 JNIEnv*
 BrowserWorld::GetJNIEnv() const {
   ASSERT_ON_RENDER_THREAD(nullptr);
@@ -2219,4 +2232,9 @@ JNI_METHOD(void, setPointerModeNative)
     crow::BrowserWorld::Instance().SetPointerMode(pointerMode);
 }
 
+JNI_METHOD(void, requestFrameCallbackNative)
+(JNIEnv*, jobject) {
+  crow::BrowserWorld::Instance().RequestFrameCallback();
+}
+
 } // extern "C"
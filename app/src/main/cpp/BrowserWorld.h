@@ -78,6 +78,7 @@ public:
   void SetIsServo(const bool aIsServo);
   void SetCPULevel(const device::CPULevel aLevel);
   void SetPointerMode(crow::DeviceDelegate::PointerMode);
+  void RequestFrameCallback();
   JNIEnv* GetJNIEnv() const;
   void OnReorient() override;
 #if HVR
@@ -74,6 +74,8 @@ const char* const kOnAppFocusChangedName = "onAppFocusChanged";
 const char* const kOnAppFocusChangedSignature = "(Z)V";
 const char* const kSetEyeTrackingSupported = "setEyeTrackingSupported";
 const char* const kSetEyeTrackingSupportedSignature = "(Z)V";
+const char* const kOnCompositorFrameName = "onCompositorFrame";
+const char* const kOnCompositorFrameSignature = "()V";
 
 JNIEnv* sEnv = nullptr;
 jclass sBrowserClass = nullptr;
@@ -110,6 +112,7 @@ jmethodID sAppendAppNotesToCrashReport = nullptr;
 jmethodID sUpdateControllerBatteryLevels = nullptr;
 jmethodID sOnAppFocusChanged = nullptr;
 jmethodID sSetEyeTrackingSupported = nullptr;
+jmethodID sOnCompositorFrame = nullptr;
 
 } // namespace
 
@@ -162,6 +165,7 @@ VRBrowser::InitializeJava(JNIEnv* aEnv, jobject aActivity) {
   sUpdateControllerBatteryLevels = FindJNIMethodID(sEnv, sBrowserClass, kUpdateControllerBatteryLevelsName, kUpdateControllerBatteryLevelsSignature);
   sOnAppFocusChanged = FindJNIMethodID(sEnv, sBrowserClass, kOnAppFocusChangedName, kOnAppFocusChangedSignature);
   sSetEyeTrackingSupported = FindJNIMethodID(sEnv, sBrowserClass, kSetEyeTrackingSupported, kSetEyeTrackingSupportedSignature);
+  sOnCompositorFrame = FindJNIMethodID(sEnv, sBrowserClass, kOnCompositorFrameName, kOnCompositorFrameSignature);
 }
 
 JNIEnv * VRBrowser::Env()
@@ -209,6 +213,7 @@ VRBrowser::ShutdownJava() {
   sHaltActivity = nullptr;
   sOnAppLink = nullptr;
   sDisableLayers = nullptr;
+  sOnCompositorFrame = nullptr;
   sEnv = nullptr;
   sAppendAppNotesToCrashReport = nullptr;
 }
@@ -482,4 +487,11 @@ VRBrowser::SetEyeTrackingSupported(bool aIsSupported) {
     CheckJNIException(sEnv, __FUNCTION__);
 }
 
+void
+VRBrowser::OnCompositorFrame() {
+  if (!ValidateMethodID(sEnv, sActivity, sOnCompositorFrame, __FUNCTION__)) { return; }
+  sEnv->CallVoidMethod(sActivity, sOnCompositorFrame);
+  CheckJNIException(sEnv, __FUNCTION__);
+}
+
 } // namespace crow
@@ -51,6 +51,7 @@ void AppendAppNotesToCrashLog(const std::string& aNotes);
 void UpdateControllerBatteryLevels(const jint aLeftBatteryLevel, const jint aRightBatteryLevel);
 void OnAppFocusChanged(const bool aIsFocused);
 void SetEyeTrackingSupported(bool aIsSupported);
+void OnCompositorFrame();
 } // namespace VRBrowser;
 
 } // namespace crow
@@ -0,0 +1,73 @@
+package com.igalia.wolvic.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.room.testing.MigrationTestHelper;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class AppDatabaseMigrationTest {
+    private static final String TEST_DATABASE = "migration-test";
+
+    @Rule
+    public MigrationTestHelper mHelper = new MigrationTestHelper(InstrumentationRegistry.getInstrumentation(), AppDatabase.class);
+
+    private static void insert(SupportSQLiteDatabase aDatabase, int aId, String aUrl, @SitePermission.Category int aCategory) {
+        ContentValues values = new ContentValues();
+        values.put("id", aId);
+        values.put("url", aUrl);
+        values.put("principal", "");
+        values.put("allowed", false);
+        values.put("category", aCategory);
+        aDatabase.insert("SitePermission", SQLiteDatabase.CONFLICT_NONE, values);
+    }
+
+    @Test
+    public void migrate4To5() throws IOException {
+        try (SupportSQLiteDatabase database = mHelper.createDatabase(TEST_DATABASE, 4)) {
+            insert(database, 1, "https://Example.com/page.html", SitePermission.SITE_PERMISSION_POPUP);
+            insert(database, 2, "example.org", SitePermission.SITE_PERMISSION_POPUP);
+            insert(database, 3, "https://Example.com:8080/path?query", SitePermission.SITE_PERMISSION_WEBXR);
+            insert(database, 4, "Example.net", SitePermission.SITE_PERMISSION_LOCATION);
+        }
+
+        // Checks the schema against the exported one of version 5, including the origin index.
+        SupportSQLiteDatabase database = mHelper.runMigrationsAndValidate(TEST_DATABASE, 5, true, AppDatabase.MIGRATION_4_5);
+
+        Map<Integer, String> origins = new HashMap<>();
+        try (Cursor cursor = database.query("SELECT id, origin FROM SitePermission")) {
+            while (cursor.moveToNext()) {
+                origins.put(cursor.getInt(0), cursor.getString(1));
+            }
+        }
+        assertEquals(4, origins.size());
+        assertEquals("example.com", origins.get(1));
+        assertEquals("example.org", origins.get(2));
+        assertEquals("https://example.com:8080", origins.get(3));
+        assertEquals("example.net", origins.get(4));
+
+        try (Cursor cursor = database.query("SELECT * FROM SitePermission WHERE origin = ? AND category = ?",
+                new Object[] { "example.com", SitePermission.SITE_PERMISSION_POPUP })) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("https://Example.com/page.html", cursor.getString(cursor.getColumnIndexOrThrow("url")));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.igalia.wolvic.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SitePermissionIndexTest {
+
+    private static SitePermission createSite(int aId, String aUrl, @SitePermission.Category int aCategory) {
+        SitePermission site = new SitePermission(aUrl, "", aCategory);
+        site.id = aId;
+        return site;
+    }
+
+    @Test
+    public void popUpsMatchByHost() {
+        assertEquals("example.com", SitePermission.normalizeOrigin("https://Example.com/path", SitePermission.SITE_PERMISSION_POPUP));
+        assertEquals("example.com", SitePermission.normalizeOrigin("Example.com", SitePermission.SITE_PERMISSION_POPUP));
+        assertEquals("https://example.com", SitePermission.normalizeOrigin("https://Example.com/path", SitePermission.SITE_PERMISSION_WEBXR));
+
+        // Rows of older versions may store the full url of the page.
+        SitePermissionIndex index = new SitePermissionIndex();
+        index.reset(Arrays.asList(
+                createSite(1, "https://legacy.example.com/page.html", SitePermission.SITE_PERMISSION_POPUP),
+                createSite(2, "new.example.com", SitePermission.SITE_PERMISSION_POPUP)));
+
+        assertTrue(index.contains("legacy.example.com", SitePermission.SITE_PERMISSION_POPUP));
+        assertTrue(index.contains("http://new.example.com/other", SitePermission.SITE_PERMISSION_POPUP));
+        assertFalse(index.contains("legacy.example.com", SitePermission.SITE_PERMISSION_WEBXR));
+        assertFalse(index.contains("example.com", SitePermission.SITE_PERMISSION_POPUP));
+    }
+
+    @Test
+    public void duplicatedRowsAreCounted() {
+        SitePermission first = createSite(1, "example.com", SitePermission.SITE_PERMISSION_WEBXR);
+        SitePermission second = createSite(2, "EXAMPLE.com", SitePermission.SITE_PERMISSION_WEBXR);
+        SitePermissionIndex index = new SitePermissionIndex();
+        index.reset(Arrays.asList(first, second));
+        assertEquals(1, index.size());
+
+        index.remove(createSite(1, "example.com", SitePermission.SITE_PERMISSION_WEBXR));
+        assertTrue(index.contains("example.com", SitePermission.SITE_PERMISSION_WEBXR));
+        assertSame(second, index.get("example.com", SitePermission.SITE_PERMISSION_WEBXR));
+
+        index.remove(second);
+        assertFalse(index.contains("example.com", SitePermission.SITE_PERMISSION_WEBXR));
+    }
+
+    @Test
+    public void putReplacesTheSameRow() {
+        SitePermission site = createSite(0, "example.com", SitePermission.SITE_PERMISSION_LOCATION);
+        SitePermissionIndex index = new SitePermissionIndex();
+        index.put(site);
+        site.allowed = true;
+        index.put(site);
+
+        index.remove(site);
+        assertFalse(index.contains("example.com", SitePermission.SITE_PERMISSION_LOCATION));
+
+        index.put(createSite(0, "example.com", SitePermission.SITE_PERMISSION_LOCATION));
+        index.removeCategory(SitePermission.SITE_PERMISSION_LOCATION);
+        assertEquals(0, index.size());
+    }
+}
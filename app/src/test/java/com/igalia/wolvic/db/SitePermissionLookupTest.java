@@ -0,0 +1,88 @@
+package com.igalia.wolvic.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.app.Application;
+import android.database.Cursor;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class SitePermissionLookupTest {
+    private static final int ROWS = 10000;
+    private static final int LOOKUPS = 1000;
+
+    private AppDatabase mDatabase;
+    private SitePermissionDao mDao;
+
+    @Before
+    public void setUp() {
+        mDatabase = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+        mDao = mDatabase.sitePermissionDao();
+
+        List<SitePermission> sites = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            sites.add(new SitePermission("site" + i + ".example.com", "", i % 2 == 0 ?
+                    SitePermission.SITE_PERMISSION_POPUP : SitePermission.SITE_PERMISSION_WEBXR));
+        }
+        mDao.insertAll(sites);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void normalizeOrigin() {
+        assertEquals("example.com", SitePermission.normalizeOrigin("Example.COM"));
+        assertEquals("https://example.com", SitePermission.normalizeOrigin("https://Example.com/path?query"));
+        assertEquals("http://example.com:8080", SitePermission.normalizeOrigin("http://example.com:8080/"));
+    }
+
+    @Test
+    public void lookupUsesIndex() {
+        try (Cursor cursor = mDatabase.query("EXPLAIN QUERY PLAN SELECT * FROM SitePermission WHERE origin = ? AND category = ?",
+                new Object[] { "site1.example.com", SitePermission.SITE_PERMISSION_WEBXR })) {
+            StringBuilder plan = new StringBuilder();
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnCount() - 1));
+            }
+            assertTrue(plan.toString(), plan.toString().contains("index_SitePermission_origin_category"));
+        }
+    }
+
+    @Test
+    public void lookupByOrigin() {
+        assertNotNull(mDao.getByOrigin(SitePermission.normalizeOrigin("SITE1.example.com"), SitePermission.SITE_PERMISSION_WEBXR));
+        assertNull(mDao.getByOrigin("site1.example.com", SitePermission.SITE_PERMISSION_POPUP));
+
+        for (int i = 0; i < LOOKUPS; i++) {
+            int row = (i * 7919) % ROWS;
+            String origin = "site" + row + ".example.com";
+            int category = row % 2 == 0 ? SitePermission.SITE_PERMISSION_POPUP : SitePermission.SITE_PERMISSION_WEBXR;
+            SitePermission site = mDao.getByOrigin(origin, category);
+            assertNotNull(origin, site);
+            assertEquals(origin, site.url);
+            assertEquals(category, site.category);
+            assertNull(origin, mDao.getByOrigin(origin, SitePermission.SITE_PERMISSION_TRACKING));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.igalia.wolvic.input;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.app.Application;
+import android.content.res.Configuration;
+import android.graphics.SurfaceTexture;
+import android.view.MotionEvent;
+import android.view.Surface;
+
+import com.igalia.wolvic.ui.widgets.Widget;
+import com.igalia.wolvic.ui.widgets.WidgetManagerDelegate;
+import com.igalia.wolvic.ui.widgets.WidgetPlacement;
+
+import java.lang.reflect.Proxy;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class MotionEventGeneratorTest {
+    private static final int FRAMES = 100;
+    private static final int SAMPLES_PER_FRAME = 4;
+
+    private static class TestWidget implements Widget {
+        int touchEvents;
+        int historySamples;
+        int lastAction;
+        int lastPointerCount;
+        int lastHistorySize;
+        int[] lastPointerIds;
+
+        @Override
+        public void handleTouchEvent(MotionEvent aEvent) {
+            touchEvents++;
+            historySamples += aEvent.getHistorySize();
+            lastAction = aEvent.getAction();
+            lastPointerCount = aEvent.getPointerCount();
+            lastHistorySize = aEvent.getHistorySize();
+            lastPointerIds = new int[aEvent.getPointerCount()];
+            for (int i = 0; i < lastPointerIds.length; i++) {
+                lastPointerIds[i] = aEvent.getPointerId(i);
+            }
+        }
+
+        @Override
+        public boolean supportsMultipleInputDevices() {
+            return true;
+        }
+
+        @Override public void handleHoverEvent(MotionEvent aEvent) {}
+        @Override public void onPause() {}
+        @Override public void onResume() {}
+        @Override public void onConfigurationChanged(Configuration newConfig) {}
+        @Override public void setSurfaceTexture(SurfaceTexture aTexture, int aWidth, int aHeight, Runnable aFirstDrawCallback) {}
+        @Override public void setSurface(Surface aSurface, int aWidth, int aHeight, Runnable aFirstDrawCallback) {}
+        @Override public void resizeSurface(int aWidth, int aHeight) {}
+        @Override public int getHandle() { return 1; }
+        @Override public WidgetPlacement getPlacement() { return null; }
+        @Override public void handleResizeEvent(float aWorldWidth, float aWorldHeight) {}
+        @Override public void handleMoveEvent(float aDeltaX, float aDeltaY, float aDeltaZ, float aRotation) {}
+        @Override public void releaseWidget() {}
+        @Override public void setFirstPaintReady(boolean aIsFirstDraw) {}
+        @Override public boolean isFirstPaintReady() { return true; }
+        @Override public boolean isVisible() { return true; }
+        @Override public boolean isDialog() { return false; }
+        @Override public void setVisible(boolean aVisible) {}
+        @Override public void resizeByMultiplier(float aspect, float multiplier) {}
+        @Override public int getBorderWidth() { return 0; }
+        @Override public void updatePlacementTranslationZ() {}
+    }
+
+    private WidgetManagerDelegate mWidgetManager;
+    private TestWidget mWidget;
+
+    @Before
+    public void setUp() {
+        MotionEventGenerator.clearDevices();
+        mWidgetManager = (WidgetManagerDelegate) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { WidgetManagerDelegate.class }, (proxy, method, args) -> null);
+        mWidget = new TestWidget();
+    }
+
+    @Test
+    public void devicesShareTheWidgetStream() {
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 0, true, true, 10, 10);
+        assertEquals(MotionEvent.ACTION_DOWN, mWidget.lastAction);
+        assertEquals(1, mWidget.lastPointerCount);
+
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 1, true, true, 50, 50);
+        assertEquals(MotionEvent.ACTION_POINTER_DOWN | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT), mWidget.lastAction);
+        assertEquals(2, mWidget.lastPointerCount);
+
+        int events = mWidget.touchEvents;
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 0, true, true, 11, 11);
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 1, true, true, 51, 51);
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 0, true, true, 12, 12);
+        assertEquals(events, mWidget.touchEvents);
+        MotionEventGenerator.flush();
+        assertEquals(events + 1, mWidget.touchEvents);
+        assertEquals(MotionEvent.ACTION_MOVE, mWidget.lastAction);
+        assertEquals(2, mWidget.lastPointerCount);
+        assertEquals(2, mWidget.lastHistorySize);
+
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 0, true, false, 12, 12);
+        assertEquals(MotionEvent.ACTION_POINTER_UP, mWidget.lastAction);
+        assertEquals(2, mWidget.lastPointerCount);
+
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 1, true, false, 51, 51);
+        assertEquals(MotionEvent.ACTION_UP, mWidget.lastAction);
+        assertEquals(1, mWidget.lastPointerCount);
+    }
+
+    @Test
+    public void pointersGetTheLowestFreeId() {
+        // Device ids that are equal modulo the maximum pointer id still get different pointers.
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 0, true, true, 10, 10);
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 32, true, true, 20, 20);
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 5, true, true, 30, 30);
+        assertArrayEquals(new int[] { 0, 1, 2 }, mWidget.lastPointerIds);
+
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 0, true, false, 10, 10);
+        assertArrayEquals(new int[] { 0, 1, 2 }, mWidget.lastPointerIds);
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 7, true, true, 40, 40);
+        assertArrayEquals(new int[] { 1, 2, 0 }, mWidget.lastPointerIds);
+
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 32, true, true, 21, 21);
+        MotionEventGenerator.flush();
+        assertEquals(MotionEvent.ACTION_MOVE, mWidget.lastAction);
+        assertArrayEquals(new int[] { 1, 2, 0 }, mWidget.lastPointerIds);
+    }
+
+    @Test
+    public void movesAreSentOncePerFrame() {
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 0, true, true, 0, 0);
+        MotionEventGenerator.dispatch(mWidgetManager, mWidget, 1, true, true, 0, 0);
+
+        int events = mWidget.touchEvents;
+        int samples = mWidget.historySamples;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            for (int sample = 1; sample <= SAMPLES_PER_FRAME; sample++) {
+                float position = frame + sample * 0.1f;
+                MotionEventGenerator.dispatch(mWidgetManager, mWidget, 0, true, true, position, position);
+                MotionEventGenerator.dispatch(mWidgetManager, mWidget, 1, true, true, position + 50, position);
+            }
+            MotionEventGenerator.flush();
+            assertEquals(events + frame + 1, mWidget.touchEvents);
+            assertEquals(MotionEvent.ACTION_MOVE, mWidget.lastAction);
+            assertEquals(2, mWidget.lastPointerCount);
+        }
+        // Every sample but the last one of each frame is in the history of the move.
+        assertEquals(FRAMES * (2 * SAMPLES_PER_FRAME - 1), mWidget.historySamples - samples);
+    }
+}